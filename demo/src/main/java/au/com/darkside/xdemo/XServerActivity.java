@@ -73,6 +73,7 @@ public class XServerActivity extends Activity {
     private static final int MENU_TOGGLE_WINDOWMANAGER = 8;
     private static final int MENU_TOGGLE_ORIENTATION = 9;
     private static final int MENU_TOGGLE_SHARED_CLIPBOARD = 10;
+    private static final int MENU_STATISTICS = 11;
     private static final int ACTIVITY_ACCESS_CONTROL = 1;
 
     private static final int DEFAULT_PORT = 6000;
@@ -275,6 +276,9 @@ public class XServerActivity extends Activity {
 
         item = menu.add(0, MENU_TOGGLE_ORIENTATION, 0, "Screen Orientation (H)");
 
+        item = menu.add(0, MENU_STATISTICS, 0, "Statistics");
+        item.setIcon(android.R.drawable.ic_menu_info_details);
+
         return true;
     }
 
@@ -365,6 +369,9 @@ public class XServerActivity extends Activity {
                     item.setTitle("Window Manager (off)");
                 }
                 return true;
+            case MENU_STATISTICS:
+                getMenuStatisticsDialog().show();
+                return true;
             case MENU_TOGGLE_ORIENTATION:
                 if (getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE) {
                     setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
@@ -406,6 +413,45 @@ public class XServerActivity extends Activity {
         return s;
     }
 
+    /**
+     * Return a report of the server's request and drawing statistics.
+     *
+     * @return A string describing the server's statistics.
+     */
+    private String getStatisticsInfo() {
+        ScreenView sv = _xServer.getScreen();
+        String s = _xServer.dumpRequestStats();
+
+        s += "Frames: n=" + sv.getFrameCount() + " mean=" + sv.getAverageFrameTime() + " max=" + sv.getMaxFrameTime() + "\n";
+        s += "Invalidated pixels/s: " + sv.getDamagedPixelsPerSecond() + " composed=" + sv.getComposedPixels() + "\n";
+        s += "Window memory: " + (sv.getWindowMemory() / 1024) + " KB\n";
+
+        return s;
+    }
+
+    /**
+     * @return The Dialog showing the server statistics.
+     */
+    private Dialog getMenuStatisticsDialog() {
+        final String info = getStatisticsInfo();
+
+        Log.i("XServer", info);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Statistics").setMessage(info).setPositiveButton("OK", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                dialog.cancel();
+            }
+        }).setNegativeButton("Reset", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                _xServer.getRequestStats().reset();
+                _xServer.getScreen().resetFrameStatistics();
+                dialog.cancel();
+            }
+        });
+        return builder.create();
+    }
+
     /**
      * @return The Dialog to enter the server IP Adress.
      */
@@ -0,0 +1,7 @@
+# ProGuard rules for the X server library. These are also applied to
+# apps that use the library.
+
+# RequestStats names opcodes from the fields of RequestCode.
+-keepclassmembers class au.com.darkside.xserver.RequestCode {
+    public static final byte *;
+}
@@ -0,0 +1,159 @@
+package au.com.darkside.xserver;
+
+import java.util.Arrays;
+
+/**
+ * This class is a surface held in an array of ARGB pixels.
+ * It uses nothing from Android, so it can stand in for a bitmap when the
+ * server is run headless on an ordinary JVM.
+ *
+ * @author Matthew Kwan
+ */
+public class ArraySurface implements Surface {
+    private final int _width;
+    private final int _height;
+    private int[] _pixels;
+
+    /**
+     * Constructor.
+     *
+     * @param width  The surface width.
+     * @param height The surface height.
+     */
+    public ArraySurface(int width, int height) {
+        _width = width;
+        _height = height;
+        _pixels = new int[width * height];
+    }
+
+    /**
+     * Return the pixel array. Row y starts at index y * width.
+     *
+     * @return The surface's pixels.
+     */
+    public int[] getPixelArray() {
+        return _pixels;
+    }
+
+    /**
+     * Return the surface's width.
+     *
+     * @return The width in pixels.
+     */
+    @Override
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Return the surface's height.
+     *
+     * @return The height in pixels.
+     */
+    @Override
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Copy pixels out of a rectangle of the surface.
+     *
+     * @param pixels Array to receive the pixels.
+     * @param offset Index of the first pixel in the array.
+     * @param stride Number of array entries between rows.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++)
+            System.arraycopy(_pixels, (y + row) * _width + x, pixels, offset + row * stride, width);
+    }
+
+    /**
+     * Replace the pixels in a rectangle of the surface.
+     *
+     * @param pixels The new pixels.
+     * @param offset Index of the first pixel in the array.
+     * @param stride Number of array entries between rows.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++)
+            System.arraycopy(pixels, offset + row * stride, _pixels, (y + row) * _width + x, width);
+    }
+
+    /**
+     * Set every pixel to a color.
+     *
+     * @param color The color.
+     */
+    @Override
+    public void fill(int color) {
+        Arrays.fill(_pixels, color);
+    }
+
+    /**
+     * Set every pixel in a rectangle of the surface to a color.
+     *
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param color  The color.
+     */
+    @Override
+    public void fillRect(int x, int y, int width, int height, int color) {
+        for (int row = 0; row < height; row++) {
+            int i = (y + row) * _width + x;
+
+            Arrays.fill(_pixels, i, i + width, color);
+        }
+    }
+
+    /**
+     * Move a rectangle of pixels within the surface. The source and
+     * destination may overlap.
+     *
+     * @param sx     X coordinate of the source.
+     * @param sy     Y coordinate of the source.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param dx     X coordinate of the destination.
+     * @param dy     Y coordinate of the destination.
+     */
+    @Override
+    public void copyRect(int sx, int sy, int width, int height, int dx, int dy) {
+        if (dy > sy) {    // Moving down, so start at the bottom.
+            for (int row = height - 1; row >= 0; row--)
+                System.arraycopy(_pixels, (sy + row) * _width + sx, _pixels, (dy + row) * _width + dx, width);
+        } else {
+            for (int row = 0; row < height; row++)
+                System.arraycopy(_pixels, (sy + row) * _width + sx, _pixels, (dy + row) * _width + dx, width);
+        }
+    }
+
+    /**
+     * Return the number of bytes of pixel storage.
+     *
+     * @return The number of bytes.
+     */
+    @Override
+    public int getMemoryBytes() {
+        return (_pixels == null) ? 0 : _pixels.length * 4;
+    }
+
+    /**
+     * Free the pixel storage. The surface can't be used afterwards.
+     */
+    @Override
+    public void recycle() {
+        _pixels = null;
+    }
+}
@@ -0,0 +1,189 @@
+package au.com.darkside.xserver;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * This class is a surface held in an Android bitmap, which can also be
+ * drawn on with a canvas.
+ *
+ * @author Matthew Kwan
+ */
+public class BitmapSurface implements Surface {
+    private final Bitmap _bitmap;
+
+    private static final int MaxBandBytes = 65536;
+
+    /**
+     * Constructor.
+     *
+     * @param width  The surface width.
+     * @param height The surface height.
+     */
+    public BitmapSurface(int width, int height) {
+        this(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Constructor for a surface around an existing bitmap.
+     *
+     * @param bitmap The bitmap holding the pixels.
+     */
+    public BitmapSurface(Bitmap bitmap) {
+        _bitmap = bitmap;
+    }
+
+    /**
+     * Return the bitmap holding the pixels.
+     *
+     * @return The surface's bitmap.
+     */
+    public Bitmap getBitmap() {
+        return _bitmap;
+    }
+
+    /**
+     * Return the surface's width.
+     *
+     * @return The width in pixels.
+     */
+    @Override
+    public int getWidth() {
+        return _bitmap.getWidth();
+    }
+
+    /**
+     * Return the surface's height.
+     *
+     * @return The height in pixels.
+     */
+    @Override
+    public int getHeight() {
+        return _bitmap.getHeight();
+    }
+
+    /**
+     * Copy pixels out of a rectangle of the surface.
+     *
+     * @param pixels Array to receive the pixels.
+     * @param offset Index of the first pixel in the array.
+     * @param stride Number of array entries between rows.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        _bitmap.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+
+    /**
+     * Replace the pixels in a rectangle of the surface.
+     *
+     * @param pixels The new pixels.
+     * @param offset Index of the first pixel in the array.
+     * @param stride Number of array entries between rows.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        _bitmap.setPixels(pixels, offset, stride, x, y, width, height);
+    }
+
+    /**
+     * Set every pixel to a color.
+     *
+     * @param color The color.
+     */
+    @Override
+    public void fill(int color) {
+        _bitmap.eraseColor(color);
+    }
+
+    /**
+     * Set every pixel in a rectangle of the surface to a color.
+     * Bands of rows are written from a buffer of the color.
+     *
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param color  The color.
+     */
+    @Override
+    public void fillRect(int x, int y, int width, int height, int color) {
+        if (width <= 0 || height <= 0) return;
+
+        int bandRows = Math.max(1, Math.min(height, MaxBandBytes / 4 / width));
+        BufferPool pool = BufferPool.get();
+        int[] pixels = pool.getInts(bandRows * width);
+
+        Arrays.fill(pixels, 0, bandRows * width, color);
+        for (int row = 0; row < height; row += bandRows)
+            _bitmap.setPixels(pixels, 0, width, x, y + row, width, Math.min(bandRows, height - row));
+
+        pool.release(pixels);
+    }
+
+    /**
+     * Move a rectangle of pixels within the bitmap.
+     * Bands of rows are copied through a scratch buffer, starting from the
+     * end the rectangle is moving towards, so overlapping source pixels are
+     * read before they are overwritten.
+     *
+     * @param sx     X coordinate of the source.
+     * @param sy     Y coordinate of the source.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param dx     X coordinate of the destination.
+     * @param dy     Y coordinate of the destination.
+     */
+    @Override
+    public void copyRect(int sx, int sy, int width, int height, int dx, int dy) {
+        int bandRows = Math.max(1, Math.min(height, MaxBandBytes / 4 / width));
+        BufferPool pool = BufferPool.get();
+        int[] pixels = pool.getInts(bandRows * width);
+
+        if (dy > sy) {    // Moving down, so start at the bottom.
+            for (int row = height; row > 0; row -= bandRows) {
+                int rows = Math.min(bandRows, row);
+                int y = row - rows;
+
+                _bitmap.getPixels(pixels, 0, width, sx, sy + y, width, rows);
+                _bitmap.setPixels(pixels, 0, width, dx, dy + y, width, rows);
+            }
+        } else {
+            for (int y = 0; y < height; y += bandRows) {
+                int rows = Math.min(bandRows, height - y);
+
+                _bitmap.getPixels(pixels, 0, width, sx, sy + y, width, rows);
+                _bitmap.setPixels(pixels, 0, width, dx, dy + y, width, rows);
+            }
+        }
+
+        pool.release(pixels);
+    }
+
+    /**
+     * Return the number of bytes of pixel storage.
+     *
+     * @return The number of bytes.
+     */
+    @Override
+    public int getMemoryBytes() {
+        return _bitmap.getRowBytes() * _bitmap.getHeight();
+    }
+
+    /**
+     * Free the pixel storage. The surface can't be used afterwards.
+     */
+    @Override
+    public void recycle() {
+        _bitmap.recycle();
+    }
+}
@@ -0,0 +1,293 @@
+package au.com.darkside.xserver;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps scratch pixel arrays and bitmaps for reuse, so the
+ * image transfer paths don't allocate on every request.
+ * Arrays of up to 256K elements are kept in power-of-two size classes,
+ * and larger ones are allocated at their exact size and not pooled, so
+ * rounding up never wastes more than a megabyte. Bitmaps are rounded up
+ * to whole tiles. Each thread has its own pool, so no locking is needed,
+ * and a pool never holds more than MaxPoolBytes. Buffers released beyond
+ * that are left to the garbage collector.
+ * Buffers are returned dirty, and may be larger than requested.
+ *
+ * @author Matthew Kwan
+ */
+public class BufferPool {
+    private final ArrayList<int[]>[] _ints;
+    private final ArrayList<byte[]>[] _bytes;
+    private final ArrayList<Bitmap> _bitmaps = new ArrayList<Bitmap>();
+    private long _pooledBytes = 0;
+
+    private static final int MinClassBits = 8;
+    private static final int MaxClassBits = 18;
+    private static final int MaxPerClass = 2;
+    private static final int MaxBitmaps = 4;
+    private static final int BitmapTile = 64;
+    private static final long MaxPoolBytes = 4 * 1024 * 1024;
+
+    private static final AtomicLong _allocatedBytes = new AtomicLong();
+    private static final AtomicLong _reusedCount = new AtomicLong();
+    private static final ThreadLocal<BufferPool> _pools = new ThreadLocal<BufferPool>() {
+        @Override
+        protected BufferPool initialValue() {
+            return new BufferPool();
+        }
+    };
+
+    /**
+     * Constructor.
+     */
+    @SuppressWarnings("unchecked")
+    private BufferPool() {
+        int n = MaxClassBits - MinClassBits + 1;
+
+        _ints = new ArrayList[n];
+        _bytes = new ArrayList[n];
+        for (int i = 0; i < n; i++) {
+            _ints[i] = new ArrayList<int[]>(MaxPerClass);
+            _bytes[i] = new ArrayList<byte[]>(MaxPerClass);
+        }
+    }
+
+    /**
+     * Return the calling thread's pool.
+     *
+     * @return The buffer pool.
+     */
+    public static BufferPool get() {
+        return _pools.get();
+    }
+
+    /**
+     * Free the calling thread's pool. Called when a client's thread
+     * finishes.
+     */
+    public static void releaseCurrent() {
+        _pools.get().clear();
+        _pools.remove();
+    }
+
+    /**
+     * Return the number of bytes allocated for scratch buffers, by all
+     * the pools.
+     *
+     * @return The number of bytes allocated.
+     */
+    public static long getAllocatedBytes() {
+        return _allocatedBytes.get();
+    }
+
+    /**
+     * Return the number of times a pooled buffer has been reused.
+     *
+     * @return The number of reused buffers.
+     */
+    public static long getReusedCount() {
+        return _reusedCount.get();
+    }
+
+    /**
+     * Return the size class of a length.
+     *
+     * @param length The number of elements needed.
+     * @return The size class, or -1 if the length is too large to pool.
+     */
+    private static int sizeClass(int length) {
+        if (length <= 1 << MinClassBits) return 0;
+
+        int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+
+        if (bits > MaxClassBits) return -1;
+
+        return bits - MinClassBits;
+    }
+
+    /**
+     * Return an array of at least the specified length.
+     *
+     * @param length The number of ints needed.
+     * @return An array. Its contents are undefined.
+     */
+    public int[] getInts(int length) {
+        int c = sizeClass(length);
+
+        if (c < 0) {
+            _allocatedBytes.addAndGet(4L * length);
+            return new int[length];
+        }
+
+        ArrayList<int[]> list = _ints[c];
+        int n = list.size();
+
+        if (n > 0) {
+            int[] a = list.remove(n - 1);
+
+            _pooledBytes -= 4L * a.length;
+            _reusedCount.incrementAndGet();
+
+            return a;
+        }
+
+        int[] a = new int[1 << (c + MinClassBits)];
+
+        _allocatedBytes.addAndGet(4L * a.length);
+
+        return a;
+    }
+
+    /**
+     * Return an array to the pool.
+     *
+     * @param a The array, as returned by getInts().
+     */
+    public void release(int[] a) {
+        int c = sizeClass(a.length);
+
+        if (c < 0 || a.length != 1 << (c + MinClassBits)) return;
+
+        ArrayList<int[]> list = _ints[c];
+
+        if (list.size() >= MaxPerClass || _pooledBytes + 4L * a.length > MaxPoolBytes) return;
+
+        list.add(a);
+        _pooledBytes += 4L * a.length;
+    }
+
+    /**
+     * Return an array of at least the specified length.
+     *
+     * @param length The number of bytes needed.
+     * @return An array. Its contents are undefined.
+     */
+    public byte[] getBytes(int length) {
+        int c = sizeClass(length);
+
+        if (c < 0) {
+            _allocatedBytes.addAndGet(length);
+            return new byte[length];
+        }
+
+        ArrayList<byte[]> list = _bytes[c];
+        int n = list.size();
+
+        if (n > 0) {
+            byte[] a = list.remove(n - 1);
+
+            _pooledBytes -= a.length;
+            _reusedCount.incrementAndGet();
+
+            return a;
+        }
+
+        byte[] a = new byte[1 << (c + MinClassBits)];
+
+        _allocatedBytes.addAndGet(a.length);
+
+        return a;
+    }
+
+    /**
+     * Return an array to the pool.
+     *
+     * @param a The array, as returned by getBytes().
+     */
+    public void release(byte[] a) {
+        int c = sizeClass(a.length);
+
+        if (c < 0 || a.length != 1 << (c + MinClassBits)) return;
+
+        ArrayList<byte[]> list = _bytes[c];
+
+        if (list.size() >= MaxPerClass || _pooledBytes + a.length > MaxPoolBytes) return;
+
+        list.add(a);
+        _pooledBytes += a.length;
+    }
+
+    /**
+     * Return an ARGB bitmap at least as large as the specified size.
+     * Only the top left corner should be drawn from.
+     *
+     * @param width  The width needed.
+     * @param height The height needed.
+     * @return A mutable bitmap. Its contents are undefined.
+     */
+    public Bitmap getBitmap(int width, int height) {
+        Bitmap best = null;
+
+        for (Bitmap bm : _bitmaps) {
+            if (bm.getWidth() < width || bm.getHeight() < height) continue;
+
+            if (best == null || bm.getByteCount() < best.getByteCount()) best = bm;
+        }
+
+        if (best != null) {
+            _bitmaps.remove(best);
+            _pooledBytes -= best.getByteCount();
+            _reusedCount.incrementAndGet();
+
+            return best;
+        }
+
+        int w = (Math.max(width, 1) + BitmapTile - 1) / BitmapTile * BitmapTile;
+        int h = (Math.max(height, 1) + BitmapTile - 1) / BitmapTile * BitmapTile;
+
+        _allocatedBytes.addAndGet(4L * w * h);
+
+        return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Return a bitmap to the pool. If the pool is full, the smallest
+     * bitmap is recycled to make room, and if there still isn't room the
+     * bitmap itself is recycled.
+     *
+     * @param bm The bitmap, as returned by getBitmap().
+     */
+    public void release(Bitmap bm) {
+        long size = bm.getByteCount();
+
+        if (_bitmaps.size() >= MaxBitmaps) {
+            Bitmap smallest = _bitmaps.get(0);
+
+            for (Bitmap b : _bitmaps)
+                if (b.getByteCount() < smallest.getByteCount()) smallest = b;
+
+            if (smallest.getByteCount() < size) {
+                _bitmaps.remove(smallest);
+                _pooledBytes -= smallest.getByteCount();
+                smallest.recycle();
+            }
+        }
+
+        if (_bitmaps.size() >= MaxBitmaps || _pooledBytes + size > MaxPoolBytes) {
+            bm.recycle();
+            return;
+        }
+
+        _bitmaps.add(bm);
+        _pooledBytes += size;
+    }
+
+    /**
+     * Drop all the pooled buffers.
+     */
+    public void clear() {
+        for (int i = 0; i < _ints.length; i++) {
+            _ints[i].clear();
+            _bytes[i].clear();
+        }
+
+        for (Bitmap bm : _bitmaps)
+            bm.recycle();
+
+        _bitmaps.clear();
+        _pooledBytes = 0;
+    }
+}
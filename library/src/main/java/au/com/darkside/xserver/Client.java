@@ -3,6 +3,7 @@ package au.com.darkside.xserver;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
 
 import au.com.darkside.xserver.Xext.Extensions;
 
@@ -27,6 +28,11 @@ public class Client extends Thread {
     private boolean _isConnected = true;
     private int _closeDownMode = Destroy;
     private boolean _imperviousToServerGrabs = false;
+    private final int[] _peekedIds = new int[3];
+    private final EventQueue _eventQueue = new EventQueue(this);
+    private long _requestCount = 0;
+    private long _requestBytes = 0;
+    private long _requestTime = 0;
 
     /**
      * Constructor.
@@ -38,12 +44,26 @@ public class Client extends Thread {
      * @throws IOException
      */
     public Client(XServer xserver, Socket socket, int resourceIdBase, int resourceIdMask) throws IOException {
+        this(xserver, socket, new InputOutput(socket), resourceIdBase, resourceIdMask);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param xserver        The X Server.
+     * @param socket         The communications socket.
+     * @param inputOutput    Communicate via this handle.
+     * @param resourceIdBase The lowest resource ID the client can use.
+     * @param resourceIdMask The range of resource IDs the client can use.
+     */
+    public Client(XServer xserver, Socket socket, InputOutput inputOutput, int resourceIdBase, int resourceIdMask) {
         _xServer = xserver;
         _socket = socket;
-        _inputOutput = new InputOutput(socket);
+        _inputOutput = inputOutput;
         _resourceIdBase = resourceIdBase;
         _resourceIdMask = resourceIdMask;
         _resources = new Vector<Resource>();
+        _inputOutput.setRequestStats(xserver.getRequestStats());
     }
 
     /**
@@ -64,6 +84,51 @@ public class Client extends Thread {
         return _inputOutput;
     }
 
+    /**
+     * Return the lowest resource ID the client can use.
+     *
+     * @return The client's resource ID base.
+     */
+    public int getResourceIdBase() {
+        return _resourceIdBase;
+    }
+
+    /**
+     * Return the number of requests the client has sent.
+     *
+     * @return The number of requests.
+     */
+    public long getRequestCount() {
+        return _requestCount;
+    }
+
+    /**
+     * Return the number of request bytes the client has sent.
+     *
+     * @return The number of bytes.
+     */
+    public long getRequestBytes() {
+        return _requestBytes;
+    }
+
+    /**
+     * Return the time spent processing the client's requests.
+     *
+     * @return The processing time, in nanoseconds.
+     */
+    public long getRequestTime() {
+        return _requestTime;
+    }
+
+    /**
+     * Return the queue of held back events.
+     *
+     * @return The client's event queue.
+     */
+    public EventQueue getEventQueue() {
+        return _eventQueue;
+    }
+
     /**
      * Get the sequence number of the latest request sent by the client.
      *
@@ -127,8 +192,20 @@ public class Client extends Thread {
         } catch (IOException e) {
         }
 
-        synchronized (_xServer) {
+        disconnect();
+        BufferPool.releaseCurrent();
+    }
+
+    /**
+     * Close the connection after the client has gone away or the
+     * communications have failed.
+     */
+    public void disconnect() {
+        _xServer.getLock().writeLock().lock();
+        try {
             close();
+        } finally {
+            _xServer.getLock().writeLock().unlock();
         }
     }
 
@@ -150,7 +227,8 @@ public class Client extends Thread {
 
         try {
             _inputOutput.close();
-            _socket.close();
+            if (!_inputOutput.isNonBlocking())    // The writer closes it once the output is sent.
+                _socket.shutdownInput();    // Wakes the client's thread.
         } catch (IOException e) {
         }
 
@@ -168,12 +246,24 @@ public class Client extends Thread {
      * @throws IOException
      */
     private void doComms() throws IOException {
+        if (!processConnectionSetup()) return;
+
+        while (!_closeConnection) processNextRequest();
+    }
+
+    /**
+     * Read the connection setup from the client and write the reply.
+     *
+     * @return False if the client uses an unknown byte order.
+     * @throws IOException
+     */
+    public boolean processConnectionSetup() throws IOException {
         // Read the connection setup.
         int byteOrder = _inputOutput.readByte();
 
         if (byteOrder == 0x42) _inputOutput.setMSB(true);
         else if (byteOrder == 0x6c) _inputOutput.setMSB(false);
-        else return;
+        else return false;
 
         _inputOutput.readByte();    // Unused.
         _inputOutput.readShort();    // Protocol major version.
@@ -232,32 +322,144 @@ public class Client extends Thread {
         }
         _inputOutput.flush();
 
-        while (!_closeConnection) {
-            byte opcode = (byte) _inputOutput.readByte();
-            byte arg = (byte) _inputOutput.readByte();
-            int requestLength = _inputOutput.readShort();
-            int bytesRemaining;
-
-            if (requestLength == 0) {    // Handle big requests.
-                requestLength = _inputOutput.readInt();
-                if (requestLength > 2) bytesRemaining = requestLength * 4 - 8;
-                else bytesRemaining = 0;
-            } else {
-                bytesRemaining = requestLength * 4 - 4;
+        return true;
+    }
+
+    /**
+     * Read a single request from the client and process it.
+     *
+     * @throws IOException
+     */
+    public void processNextRequest() throws IOException {
+        byte opcode = (byte) _inputOutput.readByte();
+        byte arg = (byte) _inputOutput.readByte();
+        int requestLength = _inputOutput.readShort();
+        int bytesRemaining;
+
+        if (requestLength == 0) {    // Handle big requests.
+            requestLength = _inputOutput.readInt();
+            if (requestLength < 2 || requestLength > XServer.MaxBigRequestLength) {
+                _sequenceNumber++;
+                ErrorCode.write(this, ErrorCode.Length, opcode, 0);
+                throw new IOException("Bad request length");
             }
 
-            // Deal with server grabs.
-            while (!_xServer.processingAllowed(this)) {
-                try {
-                    sleep(100);
-                } catch (InterruptedException e) {
-                }
+            bytesRemaining = requestLength * 4 - 8;
+        } else {
+            bytesRemaining = requestLength * 4 - 4;
+        }
+
+        // Deal with server grabs.
+        while (!_xServer.processingAllowed(this)) {
+            try {
+                sleep(100);
+            } catch (InterruptedException e) {
             }
+        }
+
+        // Drawing on the client's own pixmaps can run in parallel
+        // with other clients. Everything else is serialized.
+        Lock lock;
+
+        if (isClientLocalRequest(opcode, bytesRemaining)) lock = _xServer.getLock().readLock();
+        else lock = _xServer.getLock().writeLock();
 
-            synchronized (_xServer) {
+        RequestStats stats = _xServer.getRequestStats();
+
+        // Output to other clients, which may have stalled, mustn't hold
+        // up everyone waiting for the lock, so it is flushed after the
+        // lock is released.
+        InputOutput.deferFlushes(_inputOutput);
+
+        if (!stats.isEnabled()) {
+            lock.lock();
+            try {
                 processRequest(opcode, arg, bytesRemaining);
+            } finally {
+                lock.unlock();
+                InputOutput.flushDeferred();
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        long locked, end;
+
+        lock.lock();
+        try {
+            locked = System.nanoTime();
+            processRequest(opcode, arg, bytesRemaining);
+        } finally {
+            lock.unlock();
+            InputOutput.flushDeferred();
+        }
+
+        end = System.nanoTime();
+        stats.recordLockWait(locked - start);
+        stats.recordRequest(opcode, requestLength * 4, end - locked);
+        _requestCount++;
+        _requestBytes += requestLength * 4;
+        _requestTime += end - locked;
+    }
+
+    /**
+     * Does the request only touch pixmaps and graphics contexts owned by
+     * this client, including any pixmaps the graphics context refers to? Such requests can't affect the screen or any other
+     * client, so they only need the server's read lock.
+     * The resource IDs are peeked from the input stream without
+     * consuming them.
+     *
+     * @param opcode         The request's opcode.
+     * @param bytesRemaining Bytes yet to be read in the request.
+     * @return True if the request can run in parallel with other clients.
+     * @throws IOException
+     */
+    private boolean isClientLocalRequest(byte opcode, int bytesRemaining) throws IOException {
+        int count;
+
+        switch (opcode) {
+            case RequestCode.PolyPoint:
+            case RequestCode.PolyLine:
+            case RequestCode.PolySegment:
+            case RequestCode.PolyRectangle:
+            case RequestCode.PolyArc:
+            case RequestCode.FillPoly:
+            case RequestCode.PolyFillRectangle:
+            case RequestCode.PolyFillArc:
+            case RequestCode.PutImage:
+            case RequestCode.PolyText8:
+            case RequestCode.PolyText16:
+            case RequestCode.ImageText8:
+            case RequestCode.ImageText16:
+                count = 2;    // Drawable, GC.
+                break;
+            case RequestCode.CopyArea:
+            case RequestCode.CopyPlane:
+                count = 3;    // Source, destination, GC.
+                break;
+            default:
+                return false;
+        }
+
+        if (bytesRemaining < count * 4) return false;
+
+        _inputOutput.peekInts(_peekedIds, count);
+
+        for (int i = 0; i < count; i++) {
+            Resource r = _xServer.getResource(_peekedIds[i]);
+
+            if (r == null || r.getClient() != this) return false;
+
+            int type = r.getType();
+
+            if (i == count - 1) {
+                if (type != Resource.GCONTEXT || ((GContext) r).usesOtherPixmaps(this)) return false;
+            } else if (type != Resource.PIXMAP) {
+                return false;
             }
         }
+
+        return true;
     }
 
     /**
@@ -794,7 +996,7 @@ public class Client extends Thread {
             client = r.getClient();
         }
 
-        if (client != null && client._isConnected) client._closeConnection = true;
+        if (client != null && client._isConnected) client.cancel();    // Closes it whether or not it has a thread.
         else if (client == null || client._closeDownMode != Destroy)
             _xServer.destroyClientResources(client);
     }
@@ -41,22 +41,22 @@ public class Cursor extends Resource {
         _foregroundColor = foregroundColor;
         _backgroundColor = backgroundColor;
 
-        Bitmap bm = p.getDrawable().getBitmap();
-        int width = bm.getWidth();
-        int height = bm.getHeight();
+        Surface s = p.getDrawable().getSurface();
+        int width = s.getWidth();
+        int height = s.getHeight();
         int[] pixels = new int[width * height];
 
-        bm.getPixels(pixels, 0, width, 0, 0, width, height);
+        s.getPixels(pixels, 0, width, 0, 0, width, height);
         if (mp == null) {
             for (int i = 0; i < pixels.length; i++) {
                 if (pixels[i] == 0xffffffff) pixels[i] = foregroundColor;
                 else pixels[i] = backgroundColor;
             }
         } else {
-            Bitmap mbm = mp.getDrawable().getBitmap();
+            Surface ms = mp.getDrawable().getSurface();
             int[] mask = new int[width * height];
 
-            mbm.getPixels(mask, 0, width, 0, 0, width, height);
+            ms.getPixels(mask, 0, width, 0, 0, width, height);
             for (int i = 0; i < pixels.length; i++) {
                 if (mask[i] != 0xffffffff) pixels[i] = 0;
                 else if (pixels[i] == 0xffffffff) pixels[i] = foregroundColor;
@@ -252,10 +252,10 @@ public class Cursor extends Resource {
                     return;
                 }
 
-                Bitmap bm1 = p.getDrawable().getBitmap();
-                Bitmap bm2 = mp.getDrawable().getBitmap();
+                Surface s1 = p.getDrawable().getSurface();
+                Surface s2 = mp.getDrawable().getSurface();
 
-                if (bm1.getWidth() != bm2.getWidth() || bm1.getHeight() != bm2.getHeight()) {
+                if (s1.getWidth() != s2.getWidth() || s1.getHeight() != s2.getHeight()) {
                     ErrorCode.write(client, ErrorCode.Match, opcode, mid);
                     return;
                 }
@@ -6,8 +6,11 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
+import android.graphics.RegionIterator;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 
 /**
@@ -16,16 +19,28 @@ import java.io.IOException;
  * @author Matthew Kwan
  */
 public class Drawable {
-    private final Bitmap _bitmap;
+    private final Surface _surface;
     private final Canvas _canvas;
     private final int _depth;
+    private final boolean _shared;
+    private int _x = 0;
+    private int _y = 0;
+    private int _width;
+    private int _height;
+    private Path _clipPath = null;
+    private Region _clipRegion = null;
     private Bitmap _backgroundBitmap;
     private int _backgroundColor;
     private boolean[] _shapeMask = null;
+    private int _version = 0;
+    private final Rect _damage = new Rect();
+    private final Rect _clipBounds = new Rect();
 
     private static final byte BITMAP_FORMAT = 0;
     private static final byte XY_PIXMAP_FORMAT = 1;
     private static final byte Z_PIXMAP_FORMAT = 2;
+    private static final int GXcopy = 3;
+    private static final int MaxBandBytes = 65536;
 
     /**
      * Constructor.
@@ -37,9 +52,62 @@ public class Drawable {
      * @param bgcolor  Background color.
      */
     public Drawable(int width, int height, int depth, Bitmap bgbitmap, int bgcolor) {
-        _bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        _canvas = new Canvas(_bitmap);
+        BitmapSurface surface = new BitmapSurface(width, height);
+
+        _surface = surface;
+        _canvas = new Canvas(surface.getBitmap());
         _depth = depth;
+        _shared = false;
+        _width = width;
+        _height = height;
+        _backgroundBitmap = bgbitmap;
+        _backgroundColor = bgcolor;
+    }
+
+    /**
+     * Constructor for a drawable whose pixels are held in a surface.
+     * Unless the surface is a BitmapSurface the drawable has no canvas,
+     * and only clears, solid rectangle fills, copies and images with a
+     * Copy function and no clipping can be drawn on it. That's enough to
+     * run the server headless on an ArraySurface.
+     *
+     * @param surface The surface holding the pixels.
+     * @param depth   The drawable depth.
+     * @param bgcolor Background color.
+     */
+    public Drawable(Surface surface, int depth, int bgcolor) {
+        _surface = surface;
+        _canvas = (surface instanceof BitmapSurface) ? new Canvas(((BitmapSurface) surface).getBitmap()) : null;
+        _depth = depth;
+        _shared = false;
+        _width = surface.getWidth();
+        _height = surface.getHeight();
+        _backgroundBitmap = null;
+        _backgroundColor = bgcolor;
+    }
+
+    /**
+     * Constructor for a drawable that lives in a shared framebuffer.
+     * It owns no pixels of its own. Drawing is translated to the
+     * drawable's position in the framebuffer and clipped to the region
+     * set by setClipRegion(), which is initially empty.
+     *
+     * @param framebuffer The shared framebuffer.
+     * @param width       The drawable width.
+     * @param height      The drawable height.
+     * @param depth       The drawable depth.
+     * @param bgbitmap    Background bitmap. Can be null.
+     * @param bgcolor     Background color.
+     */
+    public Drawable(BitmapSurface framebuffer, int width, int height, int depth, Bitmap bgbitmap, int bgcolor) {
+        _surface = framebuffer;
+        _canvas = new Canvas(framebuffer.getBitmap());
+        _depth = depth;
+        _shared = true;
+        _width = width;
+        _height = height;
+        _clipPath = new Path();
+        _clipRegion = new Region();
         _backgroundBitmap = bgbitmap;
         _backgroundColor = bgcolor;
     }
@@ -50,7 +118,7 @@ public class Drawable {
      * @return The drawable's width.
      */
     public int getWidth() {
-        return _bitmap.getWidth();
+        return _width;
     }
 
     /**
@@ -59,7 +127,186 @@ public class Drawable {
      * @return The drawable's height.
      */
     public int getHeight() {
-        return _bitmap.getHeight();
+        return _height;
+    }
+
+    /**
+     * Does the drawable live in a shared framebuffer?
+     *
+     * @return True if the drawable has no pixels of its own.
+     */
+    public boolean isShared() {
+        return _shared;
+    }
+
+    /**
+     * Set the position of a shared drawable in the framebuffer.
+     *
+     * @param x X coordinate of the drawable's origin.
+     * @param y Y coordinate of the drawable's origin.
+     */
+    public void setPosition(int x, int y) {
+        _x = x;
+        _y = y;
+    }
+
+    /**
+     * Return a number that changes whenever the drawable's pixels may
+     * have changed, so results computed from them can be cached.
+     *
+     * @return The drawable's version.
+     */
+    public int getVersion() {
+        return _version;
+    }
+
+    /**
+     * Resize a shared drawable. Private drawables are replaced instead.
+     *
+     * @param width  The new width.
+     * @param height The new height.
+     */
+    public void setSize(int width, int height) {
+        if (!_shared) return;
+
+        _width = width;
+        _height = height;
+    }
+
+    /**
+     * Set the part of the framebuffer a shared drawable can draw to.
+     *
+     * @param r The visible region, in framebuffer coordinates.
+     */
+    public void setClipRegion(Region r) {
+        if (!_shared) return;
+
+        _clipPath.reset();
+        r.getBoundaryPath(_clipPath);
+        _clipRegion.set(r);
+    }
+
+    /**
+     * Return the number of bytes of pixel storage owned by the drawable.
+     *
+     * @return The number of bytes of pixel storage.
+     */
+    public int getMemoryBytes() {
+        if (_shared) return 0;
+
+        return _surface.getMemoryBytes();
+    }
+
+    /**
+     * Free the drawable's pixel storage. A shared framebuffer is left alone.
+     */
+    public void recycle() {
+        if (!_shared) _surface.recycle();
+    }
+
+    /**
+     * Copy the visible contents of a shared drawable into this one.
+     *
+     * @param src The drawable to copy from.
+     */
+    public void copyFrom(Drawable src) {
+        _version++;
+        _canvas.save();
+        _canvas.translate(-src._x, -src._y);
+        if (src._shared) _canvas.clipPath(src._clipPath);
+        _canvas.drawBitmap(src.getBitmap(), 0, 0, null);
+        _canvas.restore();
+    }
+
+    /**
+     * Prepare the canvas for drawing to the drawable.
+     * Must be balanced by a call to endDraw().
+     */
+    private void beginDraw() {
+        _version++;
+        if (_canvas == null) return;
+
+        _canvas.save();
+
+        if (_shared) {
+            _canvas.clipPath(_clipPath);
+            _canvas.translate(_x, _y);
+        }
+    }
+
+    /**
+     * Restore the canvas after drawing to the drawable.
+     */
+    private void endDraw() {
+        if (_canvas != null) _canvas.restore();
+    }
+
+    /**
+     * Copy pixels out of the drawable. Parts of a shared drawable that
+     * fall outside the framebuffer are returned as zero.
+     *
+     * @param pixels Array to receive the pixels.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    private void getPixels(int[] pixels, int x, int y, int width, int height) {
+        if (!_shared) {
+            _surface.getPixels(pixels, 0, width, x, y, width, height);
+            return;
+        }
+
+        Rect r = new Rect(x + _x, y + _y, x + _x + width, y + _y + height);
+
+        if (r.intersect(0, 0, _surface.getWidth(), _surface.getHeight())) {
+            int offset = (r.top - y - _y) * width + r.left - x - _x;
+
+            _surface.getPixels(pixels, offset, width, r.left, r.top, r.width(), r.height());
+        }
+    }
+
+    /**
+     * Copy pixels into a private drawable, clipped to its bounds,
+     * replacing what's there.
+     *
+     * @param pixels The pixels, in rows of the given width.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param dx     X coordinate of the destination.
+     * @param dy     Y coordinate of the destination.
+     */
+    private void putPixels(int[] pixels, int width, int height, int dx, int dy) {
+        int x1 = Math.max(0, -dx);
+        int y1 = Math.max(0, -dy);
+        int x2 = Math.min(width, _width - dx);
+        int y2 = Math.min(height, _height - dy);
+
+        if (x1 >= x2 || y1 >= y2) return;
+
+        _version++;
+        _surface.setPixels(pixels, y1 * width + x1, width, dx + x1, dy + y1, x2 - x1, y2 - y1);
+    }
+
+    /**
+     * Fill a rectangle of a private drawable, clipped to its bounds.
+     *
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param color  The fill color.
+     */
+    private void fillRect(int x, int y, int width, int height, int color) {
+        int x1 = Math.max(0, x);
+        int y1 = Math.max(0, y);
+        int x2 = Math.min(_width, x + width);
+        int y2 = Math.min(_height, y + height);
+
+        if (x1 >= x2 || y1 >= y2) return;
+
+        _version++;
+        _surface.fillRect(x1, y1, x2 - x1, y2 - y1, color);
     }
 
     /**
@@ -71,13 +318,25 @@ public class Drawable {
         return _depth;
     }
 
+    /**
+     * Return the surface holding the drawable's pixels. A shared
+     * drawable returns the whole framebuffer.
+     *
+     * @return The drawable's surface.
+     */
+    public Surface getSurface() {
+        return _surface;
+    }
+
     /**
      * Return the drawable's bitmap.
      *
-     * @return The drawable's bitmap.
+     * @return The drawable's bitmap, or null if its surface isn't a bitmap.
      */
     public Bitmap getBitmap() {
-        return _bitmap;
+        if (!(_surface instanceof BitmapSurface)) return null;
+
+        return ((BitmapSurface) _surface).getBitmap();
     }
 
     /**
@@ -135,6 +394,8 @@ public class Drawable {
                         ErrorCode.write(client, ErrorCode.Drawable, opcode, did);
                     } else if (r2 == null || r2.getType() != Resource.GCONTEXT) {
                         ErrorCode.write(client, ErrorCode.GContext, opcode, gcid);
+                    } else if (!canCopyTo(r1, (GContext) r2)) {
+                        ErrorCode.write(client, ErrorCode.Implementation, opcode, did);
                     } else if (width > 0 && height > 0) {
                         copyArea(sx, sy, width, height, r1, dx, dy, (GContext) r2);
                     }
@@ -161,6 +422,8 @@ public class Drawable {
                         ErrorCode.write(client, ErrorCode.Drawable, opcode, did);
                     } else if (r2 == null || r2.getType() != Resource.GCONTEXT) {
                         ErrorCode.write(client, ErrorCode.GContext, opcode, gcid);
+                    } else if (!canCopyTo(r1, (GContext) r2)) {
+                        ErrorCode.write(client, ErrorCode.Implementation, opcode, did);
                     } else {
                         if (_depth != 32)
                             copyPlane(sx, sy, width, height, bitPlane, r1, dx, dy, (GContext) r2);
@@ -247,105 +510,126 @@ public class Drawable {
         int width = io.readShort();    // Width.
         int height = io.readShort();    // Height.
         int planeMask = io.readInt();    // Plane mask.
-        int wh = width * height;
         int n, pad;
-        int[] pixels;
-        byte[] bytes = null;
 
-        if (x < 0 || y < 0 || x + width > _bitmap.getWidth() || y + height > _bitmap.getHeight()) {
+        if (x < 0 || y < 0 || x + width > _width || y + height > _height) {
             ErrorCode.write(client, ErrorCode.Match, RequestCode.GetImage, 0);
             return;
         }
 
-        try {
-            pixels = new int[wh];
-        } catch (OutOfMemoryError e) {
-            ErrorCode.write(client, ErrorCode.Alloc, RequestCode.GetImage, 0);
-            return;
-        }
-
-        _bitmap.getPixels(pixels, 0, width, x, y, width, height);
+        int rowBytes = width * 3;
+        int xmax = width + (-width & 7);
 
         if (format == Z_PIXMAP_FORMAT) {
-            n = wh * 3;
+            n = height * rowBytes;
         } else {    // XY_PIXMAP_FORMAT is the only other valid value.
-            int planes = Util.bitcount(planeMask);
-            int rightPad = -width & 7;
-            int xmax = width + rightPad;
-            int offset = 0;
-
-            n = planes * height * (width + rightPad) / 8;
-
-            try {
-                bytes = new byte[n];
-            } catch (OutOfMemoryError e) {
-                ErrorCode.write(client, ErrorCode.Alloc, RequestCode.GetImage, 0);
-                return;
-            }
-
-            for (int plane = 31; plane >= 0; plane--) {
-                int bit = 1 << plane;
-
-                if ((planeMask & bit) == 0) continue;
-
-                byte b = 0;
-
-                for (int yi = 0; yi < height; yi++) {
-                    for (int xi = 0; xi < xmax; xi++) {
-                        b <<= 1;
-                        if (xi < width && (pixels[yi * width + xi] & bit) != 0) b |= 1;
-
-                        if ((xi & 7) == 7) {
-                            bytes[offset++] = b;
-                            b = 0;
-                        }
-                    }
-                }
-            }
+            n = Util.bitcount(planeMask) * height * xmax / 8;
+            rowBytes = xmax / 8;
         }
 
         pad = -n & 3;
 
+        // The image is read and written a band of rows at a time, so the
+        // buffers stay the same size however large the image is.
+        int bandRows = Math.max(1, Math.min(height, MaxBandBytes / 4 / Math.max(width, 1)));
+        BufferPool pool = BufferPool.get();
+        int[] pixels = pool.getInts(bandRows * width);
+        byte[] bytes = pool.getBytes(bandRows * rowBytes);
+
         synchronized (io) {
             Util.writeReplyHeader(client, (byte) 32);
             io.writeInt((n + pad) / 4);    // Reply length.
             io.writeInt(0);    // Visual ID.
             io.writePadBytes(20);    // Unused.
 
-            if (format == 2) {
-                for (int i = 0; i < wh; i++) {
-                    n = pixels[i] & planeMask;
-                    io.writeByte((byte) (n & 0xff));
-                    io.writeByte((byte) ((n >> 8) & 0xff));
-                    io.writeByte((byte) ((n >> 16) & 0xff));
+            if (format == Z_PIXMAP_FORMAT) {
+                for (int row = 0; row < height; row += bandRows) {
+                    int rows = Math.min(bandRows, height - row);
+                    int count = rows * width;
+                    int offset = 0;
+
+                    getPixels(pixels, x, y + row, width, rows);
+                    for (int i = 0; i < count; i++) {
+                        int p = pixels[i] & planeMask;
+
+                        bytes[offset++] = (byte) p;
+                        bytes[offset++] = (byte) (p >> 8);
+                        bytes[offset++] = (byte) (p >> 16);
+                    }
+
+                    io.writeBytes(bytes, 0, offset);
                 }
             } else {
-                io.writeBytes(bytes, 0, n);
+                for (int plane = 31; plane >= 0; plane--) {
+                    int bit = 1 << plane;
+
+                    if ((planeMask & bit) == 0) continue;
+
+                    for (int row = 0; row < height; row += bandRows) {
+                        int rows = Math.min(bandRows, height - row);
+                        int offset = 0;
+
+                        getPixels(pixels, x, y + row, width, rows);
+                        for (int yi = 0; yi < rows; yi++) {
+                            int b = 0;
+
+                            for (int xi = 0; xi < xmax; xi++) {
+                                b <<= 1;
+                                if (xi < width && (pixels[yi * width + xi] & bit) != 0) b |= 1;
+
+                                if ((xi & 7) == 7) {
+                                    bytes[offset++] = (byte) b;
+                                    b = 0;
+                                }
+                            }
+                        }
+
+                        io.writeBytes(bytes, 0, offset);
+                    }
+                }
             }
 
             io.writePadBytes(pad);    // Unused.
         }
         io.flush();
+
+        pool.release(pixels);
+        pool.release(bytes);
     }
 
     /**
      * Clear the entire drawable.
      */
     public void clear() {
-        if (_backgroundBitmap == null || _backgroundBitmap.isRecycled()) {
-            _bitmap.eraseColor(_backgroundColor);
+        _version++;
+        if (_shared) {
+            clearArea(0, 0, _width, _height);
+        } else if (_canvas == null || _backgroundBitmap == null || _backgroundBitmap.isRecycled()) {
+            _surface.fill(_backgroundColor);
         } else {
-            int width = _bitmap.getWidth();
-            int height = _bitmap.getHeight();
             int dx = _backgroundBitmap.getWidth();
             int dy = _backgroundBitmap.getHeight();
 
-            for (int y = 0; y < height; y += dy)
-                for (int x = 0; x < width; x += dx)
+            for (int y = 0; y < _height; y += dy)
+                for (int x = 0; x < _width; x += dx)
                     _canvas.drawBitmap(_backgroundBitmap, x, y, null);
         }
     }
 
+    /**
+     * Clear the parts of a shared drawable that lie in a region.
+     *
+     * @param r The region to clear, in framebuffer coordinates.
+     */
+    public void clearRegion(Region r) {
+        Rect bounds = r.getBounds();
+
+        _canvas.save();
+        _canvas.clipPath(r.getBoundaryPath());
+        clearArea(bounds.left - _x, bounds.top - _y, bounds.width(), bounds.height());
+        _canvas.restore();
+    }
+
     /**
      * Clear a rectangular region of the drawable.
      *
@@ -355,16 +639,23 @@ public class Drawable {
      * @param height Height of the rectangle.
      */
     public void clearArea(int x, int y, int width, int height) {
+        if (_canvas == null) {
+            fillRect(x, y, width, height, _backgroundColor);
+            return;
+        }
+
         Rect r = new Rect(x, y, x + width, y + height);
         Paint paint = new Paint();
 
+        beginDraw();
+
         if (_backgroundBitmap == null || _backgroundBitmap.isRecycled()) {
             paint.setColor(_backgroundColor);
             paint.setStyle(Paint.Style.FILL);
             _canvas.drawRect(r, paint);
         } else {
-            int bw = _bitmap.getWidth();
-            int bh = _bitmap.getHeight();
+            int bw = _width;
+            int bh = _height;
             int dx = _backgroundBitmap.getWidth();
             int dy = _backgroundBitmap.getHeight();
 
@@ -385,10 +676,15 @@ public class Drawable {
 
             _canvas.restore();
         }
+
+        endDraw();
     }
 
     /**
      * Copy a rectangle from this drawable to another.
+     * Copies within a private drawable are done by moving rows of pixels,
+     * copies between different bitmaps draw straight from the source, and
+     * copies to a drawable with no canvas replace its pixels.
      *
      * @param sx     X coordinate of this rectangle.
      * @param sy     Y coordinate of this rectangle.
@@ -406,32 +702,153 @@ public class Drawable {
         if (dr.getType() == Resource.PIXMAP) dst = ((Pixmap) dr).getDrawable();
         else dst = ((Window) dr).getDrawable();
 
-        if (sx < 0) {
-            width += sx;
-            dx -= sx;
-            sx = 0;
+        Region lost = null;
+        Rect src = new Rect(sx, sy, sx + width, sy + height);
+
+        if (gc.getGraphicsExposure()) lost = getUnavailableRegion(src);
+
+        if (src.intersect(0, 0, _width, _height)) {
+            dx += src.left - sx;
+            dy += src.top - sy;
+            width = src.width();
+            height = src.height();
+
+            if (dst._surface == _surface && !_shared && gc.getFunction() == GXcopy && !gc.hasClipRectangles()) {
+                moveRows(src.left, src.top, width, height, dx, dy);
+            } else if (dst._canvas == null) {
+                BufferPool pool = BufferPool.get();
+                int[] pixels = pool.getInts(width * height);
+
+                getPixels(pixels, src.left, src.top, width, height);
+                dst.putPixels(pixels, width, height, dx, dy);
+                pool.release(pixels);
+            } else if (dst._surface != _surface && _canvas != null) {
+                Rect from = new Rect(src);
+
+                from.offset(_x, _y);
+                if (from.intersect(0, 0, _surface.getWidth(), _surface.getHeight())) {
+                    int x = dx + from.left - src.left - _x;
+                    int y = dy + from.top - src.top - _y;
+
+                    dst.beginDraw();
+                    gc.applyClipRectangles(dst._canvas);
+                    dst._canvas.drawBitmap(getBitmap(), from, new Rect(x, y, x + from.width(), y + from.height()), gc.getPaint());
+                    dst.endDraw();
+                }
+            } else {
+                BufferPool pool = BufferPool.get();
+                int[] pixels = pool.getInts(width * height);
+                Bitmap bm = pool.getBitmap(width, height);
+
+                getPixels(pixels, src.left, src.top, width, height);
+                bm.setPixels(pixels, 0, width, 0, 0, width, height);
+                pool.release(pixels);
+
+                dst.beginDraw();
+                gc.applyClipRectangles(dst._canvas);
+                dst._canvas.drawBitmap(bm, new Rect(0, 0, width, height), new Rect(dx, dy, dx + width, dy + height), gc.getPaint());
+                dst.endDraw();
+                pool.release(bm);
+            }
+
+            if (dr.getType() == Resource.WINDOW) ((Window) dr).invalidate(dx, dy, width, height);
         }
 
-        if (sy < 0) {
-            height += sy;
-            dy -= sy;
-            sy = 0;
+        if (lost != null) sendGraphicsExposures(gc, dr, dst, RequestCode.CopyArea, lost, dx - src.left, dy - src.top);
+    }
+
+    /**
+     * Move a rectangle of pixels within this drawable's own surface,
+     * after clipping the destination to the drawable.
+     *
+     * @param sx     X coordinate of the source.
+     * @param sy     Y coordinate of the source.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param dx     X coordinate of the destination.
+     * @param dy     Y coordinate of the destination.
+     */
+    private void moveRows(int sx, int sy, int width, int height, int dx, int dy) {
+        if (dx < 0) {
+            sx -= dx;
+            width += dx;
+            dx = 0;
         }
 
-        if (sx + width > _bitmap.getWidth()) width = _bitmap.getWidth() - sx;
+        if (dy < 0) {
+            sy -= dy;
+            height += dy;
+            dy = 0;
+        }
+
+        if (dx + width > _width) width = _width - dx;
+
+        if (dy + height > _height) height = _height - dy;
 
-        if (sy + height > _bitmap.getHeight()) height = _bitmap.getHeight() - sy;
+        if (width <= 0 || height <= 0 || (sx == dx && sy == dy)) return;
+
+        _version++;
+        _surface.copyRect(sx, sy, width, height, dx, dy);
+    }
+
+    /**
+     * Return the part of a source rectangle whose contents aren't
+     * available. That's anything outside the drawable, and for a shared
+     * drawable, anything hidden by other windows.
+     *
+     * @param r The source rectangle.
+     * @return The unavailable region, in this drawable's coordinates.
+     */
+    private Region getUnavailableRegion(Rect r) {
+        Region lost = new Region(r);
+        Region avail = new Region(0, 0, _width, _height);
+
+        if (_shared) {
+            Region visible = new Region(_clipRegion);
+
+            visible.translate(-_x, -_y);
+            avail.op(visible, Region.Op.INTERSECT);
+        }
+
+        lost.op(avail, Region.Op.DIFFERENCE);
+
+        return lost;
+    }
+
+    /**
+     * Send GraphicsExposure events for the parts of a copy's destination
+     * whose source wasn't available, or NoExposure if there are none.
+     *
+     * @param gc          The GContext used for the copy.
+     * @param dr          The destination pixmap or window.
+     * @param dst         The destination drawable.
+     * @param majorOpcode CopyArea or CopyPlane.
+     * @param lost        The unavailable source region. It is modified.
+     * @param ox          X offset from source to destination.
+     * @param oy          Y offset from source to destination.
+     * @throws IOException
+     */
+    private static void sendGraphicsExposures(GContext gc, Resource dr, Drawable dst, byte majorOpcode, Region lost, int ox, int oy) throws IOException {
+        Client client = gc.getClient();
 
-        if (width <= 0 || height <= 0) return;
+        lost.translate(ox, oy);
+        lost.op(0, 0, dst._width, dst._height, Region.Op.INTERSECT);
 
-        Bitmap bm = Bitmap.createBitmap(_bitmap, sx, sy, width, height);
+        if (lost.isEmpty()) {
+            EventCode.sendNoExposure(client, dr, majorOpcode);
+            return;
+        }
 
-        dst._canvas.drawBitmap(bm, dx, dy, gc.getPaint());
+        Rect r = new Rect();
+        RegionIterator ri = new RegionIterator(lost);
+        int count = 0;
 
-        if (dr.getType() == Resource.WINDOW) ((Window) dr).invalidate(dx, dy, width, height);
+        while (ri.next(r))
+            count++;
 
-        if (gc.getGraphicsExposure())
-            EventCode.sendNoExposure(gc.getClient(), dr, RequestCode.CopyArea);
+        ri = new RegionIterator(lost);
+        while (ri.next(r))
+            EventCode.sendGraphicsExposure(client, dr, majorOpcode, r.left, r.top, r.width(), r.height(), --count);
     }
 
     /**
@@ -454,45 +871,193 @@ public class Drawable {
         if (dr.getType() == Resource.PIXMAP) dst = ((Pixmap) dr).getDrawable();
         else dst = ((Window) dr).getDrawable();
 
-        int fg = (_depth == 1) ? 0xffffffff : gc.getForegroundColor();
-        int bg = (_depth == 1) ? 0 : gc.getBackgroundColor();
-        int[] pixels = new int[width * height];
+        Region lost = null;
+        Rect src = new Rect(sx, sy, sx + width, sy + height);
+
+        if (gc.getGraphicsExposure()) lost = getUnavailableRegion(src);
+
+        if (src.intersect(0, 0, _width, _height)) {
+            int fg = (_depth == 1) ? 0xffffffff : gc.getForegroundColor();
+            int bg = (_depth == 1) ? 0 : gc.getBackgroundColor();
 
-        _bitmap.getPixels(pixels, 0, width, sx, sy, width, height);
-        for (int i = 0; i < pixels.length; i++)
-            pixels[i] = ((pixels[i] & bitPlane) != 0) ? fg : bg;
+            dx += src.left - sx;
+            dy += src.top - sy;
+            width = src.width();
+            height = src.height();
 
-        Bitmap pixelsBmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        pixelsBmp.setPixels(pixels, 0, width, 0, 0, width, height);
-        dst._canvas.drawBitmap(pixelsBmp, dx, dy, gc.getPaint());
+            int n = width * height;
+            BufferPool pool = BufferPool.get();
+            int[] pixels = pool.getInts(n);
 
-        if (dr.getType() == Resource.WINDOW) ((Window) dr).invalidate(dx, dy, width, height);
+            getPixels(pixels, src.left, src.top, width, height);
+            for (int i = 0; i < n; i++)
+                pixels[i] = ((pixels[i] & bitPlane) != 0) ? fg : bg;
 
-        if (gc.getGraphicsExposure())
-            EventCode.sendNoExposure(gc.getClient(), dr, RequestCode.CopyPlane);
+            if (dst._canvas == null) {
+                dst.putPixels(pixels, width, height, dx, dy);
+            } else {
+                Bitmap pixelsBmp = pool.getBitmap(width, height);
+
+                pixelsBmp.setPixels(pixels, 0, width, 0, 0, width, height);
+                dst.beginDraw();
+                gc.applyClipRectangles(dst._canvas);
+                dst._canvas.drawBitmap(pixelsBmp, new Rect(0, 0, width, height), new Rect(dx, dy, dx + width, dy + height), gc.getPaint());
+                dst.endDraw();
+                pool.release(pixelsBmp);
+            }
+
+            pool.release(pixels);
+
+            if (dr.getType() == Resource.WINDOW) ((Window) dr).invalidate(dx, dy, width, height);
+        }
+
+        if (lost != null) sendGraphicsExposures(gc, dr, dst, RequestCode.CopyPlane, lost, dx - src.left, dy - src.top);
+    }
+
+    /**
+     * Read 8-bit text. Each byte is a character code.
+     *
+     * @param io     The input/output stream.
+     * @param length Number of characters.
+     * @return The characters.
+     * @throws IOException
+     */
+    private static char[] readText8(InputOutput io, int length) throws IOException {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) io.readByte();
+
+        return chars;
+    }
+
+    /**
+     * Read 16-bit text. Each character code is two bytes, most significant
+     * first.
+     *
+     * @param io     The input/output stream.
+     * @param length Number of characters.
+     * @return The characters.
+     * @throws IOException
+     */
+    private static char[] readText16(InputOutput io, int length) throws IOException {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            int b1 = io.readByte();
+            int b2 = io.readByte();
+
+            chars[i] = (char) ((b1 << 8) | b2);
+        }
+
+        return chars;
     }
 
     /**
      * Draw text at the specified location, on top of a bounding rectangle
      * drawn in the background color.
      *
-     * @param s  The string to write.
-     * @param x  X coordinate.
-     * @param y  Y coordinate.
-     * @param gc Graphics context for drawing the text.
+     * @param chars  The text to write.
+     * @param length Number of characters.
+     * @param x      X coordinate.
+     * @param y      Y coordinate.
+     * @param gc     Graphics context for drawing the text.
      */
-    private void drawImageText(String s, int x, int y, GContext gc) {
+    private void drawImageText(char[] chars, int length, int x, int y, GContext gc) {
         Paint paint = gc.getPaint();
         Font font = gc.getFont();
         Rect rect = new Rect();
+        Rect bounds = new Rect();
 
-        font.getTextBounds(s, x, y, rect);
+        rect.set(x, y - font.getAscent(), x + (int) font.measureText(chars, length), y + font.getDescent());
         paint.setColor(gc.getBackgroundColor());
         paint.setStyle(Paint.Style.FILL);
         _canvas.drawRect(rect, paint);
 
         paint.setColor(gc.getForegroundColor());
-        _canvas.drawText(s, x, y, paint);
+        font.drawText(_canvas, chars, length, x, y, paint, bounds);
+        rect.union(bounds);
+        addDamage(rect.left, rect.top, rect.right, rect.bottom, 1);
+    }
+
+    /**
+     * Return the area changed by the last drawing request, in the
+     * drawable's coordinates. It is empty if nothing was drawn.
+     *
+     * @return The damaged rectangle. It must not be modified.
+     */
+    public Rect getDamage() {
+        return _damage;
+    }
+
+    /**
+     * Add a rectangle to the area changed by the current request.
+     *
+     * @param left   Left edge of the rectangle.
+     * @param top    Top edge of the rectangle.
+     * @param right  Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @param outset How far the drawing can extend beyond the rectangle.
+     */
+    private void addDamage(float left, float top, float right, float bottom, float outset) {
+        _damage.union((int) Math.floor(left - outset), (int) Math.floor(top - outset), (int) Math.ceil(right + outset), (int) Math.ceil(bottom + outset));
+    }
+
+    /**
+     * Add the bounding box of a list of points to the area changed by
+     * the current request.
+     *
+     * @param points The X and Y coordinates of the points.
+     * @param outset How far the drawing can extend beyond the points.
+     */
+    private void addDamage(float[] points, float outset) {
+        if (points.length < 2) return;
+
+        float left = points[0];
+        float top = points[1];
+        float right = left;
+        float bottom = top;
+
+        for (int i = 2; i + 1 < points.length; i += 2) {
+            left = Math.min(left, points[i]);
+            right = Math.max(right, points[i]);
+            top = Math.min(top, points[i + 1]);
+            bottom = Math.max(bottom, points[i + 1]);
+        }
+
+        addDamage(left, top, right, bottom, outset);
+    }
+
+    /**
+     * Add the bounds of a path to the area changed by the current request.
+     *
+     * @param path   The path.
+     * @param outset How far the drawing can extend beyond the path.
+     */
+    private void addDamage(Path path, float outset) {
+        RectF r = new RectF();
+
+        path.computeBounds(r, false);
+        addDamage(r.left, r.top, r.right, r.bottom, outset);
+    }
+
+    /**
+     * Return how far a stroked shape can extend beyond its outline.
+     * Square caps on a diagonal reach half the line width times the
+     * square root of two, and miter joins up to the miter limit. The
+     * extra pixel covers zero-width lines and antialiasing.
+     *
+     * @param paint  The paint used for stroking.
+     * @param joined Whether the lines are joined.
+     * @return The distance in pixels.
+     */
+    private static float strokeOutset(Paint paint, boolean joined) {
+        float half = Math.max(paint.getStrokeWidth(), 1) / 2;
+        float scale = 1.415f;
+
+        if (joined) scale = Math.max(scale, paint.getStrokeMiter());
+
+        return half * scale + 1;
     }
 
     /**
@@ -506,7 +1071,8 @@ public class Drawable {
      * @param opcode         The request's opcode.
      * @param arg            Optional first argument.
      * @param bytesRemaining Bytes yet to be read in the request.
-     * @return True if the drawable is modified.
+     * @return True if the drawable is modified. The changed area is
+     * returned by getDamage().
      * @throws IOException
      */
     public boolean processGCRequest(XServer xServer, Client client, int id, GContext gc, byte opcode, byte arg, int bytesRemaining) throws IOException {
@@ -515,7 +1081,10 @@ public class Drawable {
         boolean changed = false;
         int originalColor = paint.getColor();
 
-        _canvas.save();
+        if (_canvas == null) return processSurfaceRequest(client, gc, opcode, arg, bytesRemaining);
+
+        _damage.setEmpty();
+        beginDraw();
         gc.applyClipRectangles(_canvas);
 
         switch (opcode) {
@@ -543,6 +1112,7 @@ public class Drawable {
                         for (i = 0; i < points.length; i += 2)
                             _canvas.drawPoint(points[i], points[i + 1], paint);
                     }
+                    addDamage(points, strokeOutset(paint, false));
                     changed = true;
                 }
                 break;
@@ -568,6 +1138,7 @@ public class Drawable {
                     }
                     paint.setStyle(Paint.Style.STROKE);
                     _canvas.drawPath(path, paint);
+                    addDamage(path, strokeOutset(paint, true));
                     changed = true;
                 }
                 break;
@@ -585,6 +1156,7 @@ public class Drawable {
                     }
 
                     _canvas.drawLines(points, paint);
+                    addDamage(points, strokeOutset(paint, false));
                     changed = true;
                 }
                 break;
@@ -594,8 +1166,14 @@ public class Drawable {
                     io.readSkip(bytesRemaining);
                     ErrorCode.write(client, ErrorCode.Length, opcode, 0);
                 } else {
-                    if (opcode == RequestCode.PolyRectangle) paint.setStyle(Paint.Style.STROKE);
-                    else paint.setStyle(Paint.Style.FILL);
+                    float outset = 1;
+
+                    if (opcode == RequestCode.PolyRectangle) {
+                        paint.setStyle(Paint.Style.STROKE);
+                        outset = strokeOutset(paint, true);
+                    } else {
+                        paint.setStyle(Paint.Style.FILL);
+                    }
 
                     while (bytesRemaining > 0) {
                         float x = (short) io.readShort();
@@ -604,7 +1182,11 @@ public class Drawable {
                         float height = io.readShort();
 
                         bytesRemaining -= 8;
+                        if (gc.isClippedOut(x - outset, y - outset, x + width + outset, y + height + outset))
+                            continue;
+
                         _canvas.drawRect(x, y, x + width, y + height, paint);
+                        addDamage(x, y, x + width, y + height, outset);
                         changed = true;
                     }
                 }
@@ -640,6 +1222,7 @@ public class Drawable {
                     path.setFillType(gc.getFillType());
                     paint.setStyle(Paint.Style.FILL);
                     _canvas.drawPath(path, paint);
+                    addDamage(path, 1);
                     changed = true;
                 }
                 break;
@@ -650,9 +1233,11 @@ public class Drawable {
                     ErrorCode.write(client, ErrorCode.Length, opcode, 0);
                 } else {
                     boolean useCenter = false;
+                    float outset = 1;
 
                     if (opcode == RequestCode.PolyArc) {
                         paint.setStyle(Paint.Style.STROKE);
+                        outset = strokeOutset(paint, false);
                     } else {
                         paint.setStyle(Paint.Style.FILL);
                         if (gc.getArcMode() == 1)        // Pie slice.
@@ -666,10 +1251,15 @@ public class Drawable {
                         float height = io.readShort();
                         float angle1 = (short) io.readShort();
                         float angle2 = (short) io.readShort();
-                        RectF r = new RectF(x, y, x + width, y + height);
 
                         bytesRemaining -= 12;
+                        if (gc.isClippedOut(x - outset, y - outset, x + width + outset, y + height + outset))
+                            continue;
+
+                        RectF r = new RectF(x, y, x + width, y + height);
+
                         _canvas.drawArc(r, angle1 / -64.0f, angle2 / -64.0f, useCenter, paint);
+                        addDamage(x, y, x + width, y + height, outset);
                         changed = true;
                     }
                 }
@@ -689,11 +1279,10 @@ public class Drawable {
                     int x = (short) io.readShort();
                     int y = (short) io.readShort();
                     int pad = -arg & 3;
-                    byte[] bytes = new byte[arg];
+                    char[] chars = readText8(io, arg);
 
-                    io.readBytes(bytes, 0, arg);
                     io.readSkip(pad);
-                    drawImageText(new String(bytes), x, y, gc);
+                    drawImageText(chars, arg, x, y, gc);
                     changed = true;
                 }
                 break;
@@ -705,17 +1294,10 @@ public class Drawable {
                     int x = (short) io.readShort();
                     int y = (short) io.readShort();
                     int pad = (-2 * arg) & 3;
-                    char[] chars = new char[arg];
-
-                    for (int i = 0; i < arg; i++) {
-                        int b1 = io.readByte();
-                        int b2 = io.readByte();
-
-                        chars[i] = (char) ((b1 << 8) | b2);
-                    }
+                    char[] chars = readText16(io, arg);
 
                     io.readSkip(pad);
-                    drawImageText(new String(chars), x, y, gc);
+                    drawImageText(chars, arg, x, y, gc);
                     changed = true;
                 }
                 break;
@@ -727,11 +1309,80 @@ public class Drawable {
 
         if (_depth == 1) paint.setColor(originalColor);
 
-        _canvas.restore();        // Undo any clip rectangles.
+        if (!_canvas.getClipBounds(_clipBounds) || !_damage.intersect(_clipBounds))
+            _damage.setEmpty();
+
+        endDraw();        // Undo any clip rectangles.
+
+        return changed;
+    }
+
+    /**
+     * Process a drawing request on a drawable with no canvas. Only
+     * PolyFillRectangle and PutImage are supported, with a Copy function
+     * and no clipping. Anything else returns an Implementation error.
+     *
+     * @param client         The remote client.
+     * @param gc             The GContext to use for drawing.
+     * @param opcode         The request's opcode.
+     * @param arg            Optional first argument.
+     * @param bytesRemaining Bytes yet to be read in the request.
+     * @return True if the drawable is modified. The changed area is
+     * returned by getDamage().
+     * @throws IOException
+     */
+    private boolean processSurfaceRequest(Client client, GContext gc, byte opcode, byte arg, int bytesRemaining) throws IOException {
+        InputOutput io = client.getInputOutput();
+        boolean changed = false;
+
+        _damage.setEmpty();
+
+        if (gc.getFunction() != GXcopy || gc.hasClipRectangles() || (opcode != RequestCode.PolyFillRectangle && opcode != RequestCode.PutImage)) {
+            io.readSkip(bytesRemaining);
+            ErrorCode.write(client, ErrorCode.Implementation, opcode, 0);
+        } else if (opcode == RequestCode.PutImage) {
+            changed = processPutImage(client, gc, arg, bytesRemaining);
+        } else if ((bytesRemaining & 7) != 0) {
+            io.readSkip(bytesRemaining);
+            ErrorCode.write(client, ErrorCode.Length, opcode, 0);
+        } else {
+            int color = gc.getForegroundColor();
+
+            while (bytesRemaining > 0) {
+                int x = (short) io.readShort();
+                int y = (short) io.readShort();
+                int width = io.readShort();
+                int height = io.readShort();
+
+                bytesRemaining -= 8;
+                fillRect(x, y, width, height, color);
+                addDamage(x, y, x + width, y + height, 0);
+                changed = true;
+            }
+        }
+
+        if (!_damage.intersect(0, 0, _width, _height)) _damage.setEmpty();
 
         return changed;
     }
 
+    /**
+     * Can a GContext be used to copy to a pixmap or window? Drawables
+     * with no canvas only accept plain copies with no clipping.
+     *
+     * @param dr The destination pixmap or window.
+     * @param gc The GContext.
+     * @return True if the copy can be done.
+     */
+    private static boolean canCopyTo(Resource dr, GContext gc) {
+        Drawable dst;
+
+        if (dr.getType() == Resource.PIXMAP) dst = ((Pixmap) dr).getDrawable();
+        else dst = ((Window) dr).getDrawable();
+
+        return dst._canvas != null || (gc.getFunction() == GXcopy && !gc.hasClipRectangles());
+    }
+
     /**
      * Process a PutImage request.
      *
@@ -804,10 +1455,20 @@ public class Drawable {
             return false;
         }
 
+        if (!_shared && format == Z_PIXMAP_FORMAT && depth == 32 && gc.getFunction() == GXcopy && !gc.hasClipRectangles() && (_shapeMask == null || _shapeMask.length != width * height)) {
+            putZPixmapDirect(io, width, height, (int) dstX, (int) dstY);
+            io.readSkip(pad);
+            addDamage(dstX, dstY, dstX + width, dstY + height, 0);
+
+            return true;
+        }
+
+        int wh = width * height;
+        BufferPool pool = BufferPool.get();
         int[] colors;
 
         try {
-            colors = new int[width * height];
+            colors = pool.getInts(wh);
         } catch (OutOfMemoryError e) {
             ErrorCode.write(client, ErrorCode.Alloc, RequestCode.PutImage, 0);
             return false;
@@ -841,6 +1502,7 @@ public class Drawable {
         } else if (format == XY_PIXMAP_FORMAT) {
             int planeBit = 1 << (depth - 1);
 
+            Arrays.fill(colors, 0, wh, 0);
             for (int i = 0; i < depth; i++) {
                 int offset = 0;
                 int count = 0;
@@ -868,9 +1530,9 @@ public class Drawable {
                 planeBit >>= 1;
             }
         } else if (depth == 32) {    // 32-bit ZPixmap.
-            boolean useShapeMask = (_shapeMask != null && colors.length == _shapeMask.length);
+            boolean useShapeMask = (_shapeMask != null && wh == _shapeMask.length);
 
-            for (int i = 0; i < colors.length; i++) {
+            for (int i = 0; i < wh; i++) {
                 int b = io.readByte();
                 int g = io.readByte();
                 int r = io.readByte();
@@ -881,7 +1543,8 @@ public class Drawable {
 
             if (useShapeMask) _shapeMask = null;
         } else if (isShapeMask) {    // ZPixmap, depth = 1, shape mask.
-            _shapeMask = new boolean[colors.length];
+            pool.release(colors);
+            _shapeMask = new boolean[wh];
             io.readShapeMask(_shapeMask, width, height);
             io.readSkip(pad);
 
@@ -889,22 +1552,87 @@ public class Drawable {
         } else {    // ZPixmap with depth = 1.
             int fg = gc.getForegroundColor();
             int bg = gc.getBackgroundColor();
-            boolean[] bits = new boolean[colors.length];
+            boolean[] bits = new boolean[wh];
 
-            io.readBits(bits, 0, colors.length);
+            io.readBits(bits, 0, wh);
 
-            for (int i = 0; i < colors.length; i++)
+            for (int i = 0; i < wh; i++)
                 colors[i] = bits[i] ? fg : bg;
         }
 
         io.readSkip(pad);
-        Bitmap colorsBmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        colorsBmp.setPixels(colors, 0, width, 0, 0, width, height);
-        _canvas.drawBitmap(colorsBmp, dstX, dstY, gc.getPaint());
+        if (_canvas == null) {
+            putPixels(colors, width, height, (int) dstX, (int) dstY);
+            pool.release(colors);
+        } else {
+            Bitmap colorsBmp = pool.getBitmap(width, height);
+
+            colorsBmp.setPixels(colors, 0, width, 0, 0, width, height);
+            pool.release(colors);
+            _canvas.drawBitmap(colorsBmp, new Rect(0, 0, width, height), new RectF(dstX, dstY, dstX + width, dstY + height), gc.getPaint());
+            pool.release(colorsBmp);
+        }
+        addDamage(dstX, dstY, dstX + width, dstY + height, 0);
 
         return true;
     }
 
+    /**
+     * Read 32-bit ZPixmap data and copy it straight into the bitmap, a
+     * band of rows at a time. This can only be used when the pixels
+     * replace what's already there, i.e. a Copy function and no clipping.
+     *
+     * @param io     The input/output stream.
+     * @param width  Width of the image.
+     * @param height Height of the image.
+     * @param dstX   X coordinate of the destination.
+     * @param dstY   Y coordinate of the destination.
+     * @throws IOException
+     */
+    private void putZPixmapDirect(InputOutput io, int width, int height, int dstX, int dstY) throws IOException {
+        if (width == 0 || height == 0) return;
+
+        int rowBytes = width * 3;
+        int bandRows = MaxBandBytes / rowBytes;
+
+        if (bandRows < 1) bandRows = 1;
+        else if (bandRows > height) bandRows = height;
+
+        BufferPool pool = BufferPool.get();
+        byte[] bytes = pool.getBytes(bandRows * rowBytes);
+        int[] pixels = pool.getInts(bandRows * width);
+
+        // Columns and rows of the image that land on the bitmap.
+        int x1 = Math.max(0, -dstX);
+        int x2 = Math.min(width, _surface.getWidth() - dstX);
+        int w = x2 - x1;
+
+        for (int row = 0; row < height; row += bandRows) {
+            int rows = Math.min(bandRows, height - row);
+            int y1 = Math.max(row, -dstY);
+            int y2 = Math.min(row + rows, _surface.getHeight() - dstY);
+
+            io.readBytes(bytes, 0, rows * rowBytes);
+            if (w <= 0 || y1 >= y2) continue;
+
+            int p = 0;
+
+            for (int y = y1; y < y2; y++) {
+                int i = (y - row) * rowBytes + x1 * 3;
+
+                for (int x = 0; x < w; x++) {
+                    pixels[p++] = 0xff000000 | ((bytes[i + 2] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i] & 0xff);
+                    i += 3;
+                }
+            }
+
+            _surface.setPixels(pixels, 0, w, dstX + x1, dstY + y1, w, y2 - y1);
+        }
+
+        pool.release(bytes);
+        pool.release(pixels);
+    }
+
     /**
      * Process a PolyText8 or PolyText16 request.
      *
@@ -926,6 +1654,7 @@ public class Drawable {
 
         float x = (short) io.readShort();
         float y = (short) io.readShort();
+        Rect bounds = new Rect();
 
         bytesRemaining -= 4;
         while (bytesRemaining > 1) {
@@ -953,35 +1682,21 @@ public class Drawable {
                 bytesRemaining -= 4;
                 if (!gc.setFont(fid)) ErrorCode.write(client, ErrorCode.Font, opcode, fid);
             } else {    // It's a string.
-                int delta = io.readByte();
-                String s;
+                int delta = (byte) io.readByte();
+                char[] chars;
 
                 bytesRemaining--;
                 if (opcode == RequestCode.PolyText8) {
-                    byte[] bytes = new byte[length];
-
-                    io.readBytes(bytes, 0, length);
+                    chars = readText8(io, length);
                     bytesRemaining -= length;
-                    s = new String(bytes);
                 } else {
-                    char[] chars = new char[length];
-
-                    for (int i = 0; i < length; i++) {
-                        int b1 = io.readByte();
-                        int b2 = io.readByte();
-
-                        chars[i] = (char) ((b1 << 8) | b2);
-                    }
-
+                    chars = readText16(io, length);
                     bytesRemaining -= length * 2;
-                    s = new String(chars);
                 }
 
-                Paint paint = gc.getPaint();
-
                 x += delta;
-                _canvas.drawText(s, x, y, paint);
-                x += paint.measureText(s);
+                x = gc.getFont().drawText(_canvas, chars, length, x, y, gc.getPaint(), bounds);
+                addDamage(bounds.left, bounds.top, bounds.right, bounds.bottom, 1);
             }
         }
         io.readSkip(bytesRemaining);
@@ -55,6 +55,7 @@ public class ErrorCode {
         short sn = (short) (client.getSequenceNumber() & 0xffff);
 
         synchronized (io) {
+            client.getEventQueue().writePending();    // Keep any held back motion in order.
             io.writeByte((byte) 0);    // Indicates an error.
             io.writeByte(error);        // Error code.
             io.writeShort(sn);            // Sequence number.
@@ -80,6 +80,20 @@ public class EventCode {
      */
     private static void writeHeader(Client client, byte code, int arg) throws IOException {
         InputOutput io = client.getInputOutput();
+        EventQueue eq = client.getEventQueue();
+
+        eq.writePending();    // Keep any held back motion in order.
+
+        switch (code) {
+            case KeyPress:
+            case KeyRelease:
+            case ButtonPress:
+            case ButtonRelease:
+            case EnterNotify:
+            case LeaveNotify:
+                eq.resetMotionHint();
+                break;
+        }
 
         io.writeByte((byte) code);
         io.writeByte((byte) arg);
@@ -231,7 +245,8 @@ public class EventCode {
     }
 
     /**
-     * Send a motion notify event.
+     * Queue a motion notify event. It is merged with any later motion for
+     * the same window, and sent when the current input frame is flushed.
      *
      * @param client      The client to write to.
      * @param timestamp   Time in milliseconds since last server reset.
@@ -247,23 +262,8 @@ public class EventCode {
      * @throws IOException
      */
     public static void sendMotionNotify(Client client, int timestamp, int detail, Window root, Window eventWindow, Window child, int rootX, int rootY, int eventX, int eventY, int state) throws IOException {
-        InputOutput io = client.getInputOutput();
-
-        synchronized (io) {
-            writeHeader(client, MotionNotify, detail);
-            io.writeInt(timestamp);    // Time.
-            io.writeInt(root.getId());    // Root.
-            io.writeInt(eventWindow.getId());    // Event.
-            io.writeInt(child == null ? 0 : child.getId());    // Child.
-            io.writeShort((short) rootX);    // Root X.
-            io.writeShort((short) rootY);    // Root Y.
-            io.writeShort((short) eventX);    // Event X.
-            io.writeShort((short) eventY);    // Event Y.
-            io.writeShort((short) state);    // State.
-            io.writeByte((byte) 1);    // Same screen.
-            io.writePadBytes(1);    // Unused.
-        }
-        io.flush();
+        if (client.getEventQueue().addMotionNotify(timestamp, detail, root, eventWindow, child, rootX, rootY, eventX, eventY, state))
+            root.getScreen().scheduleEventFlush(client);
     }
 
     /**
@@ -400,6 +400,7 @@ public class EventCode {
         InputOutput io = client.getInputOutput();
 
         synchronized (io) {
+            client.getEventQueue().writePending();
             io.writeByte(KeymapNotify);
             io.writeBytes(keys, 0, 31);    // Keys.
         }
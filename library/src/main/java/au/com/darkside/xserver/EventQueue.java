@@ -0,0 +1,166 @@
+package au.com.darkside.xserver;
+
+import java.io.IOException;
+
+/**
+ * This class holds back pointer motion events for a client, so a burst
+ * of motion can be merged into a single MotionNotify event.
+ * It shares the monitor of the client's input/output handle, so queued
+ * motion is always written before any event, reply or error that
+ * follows it.
+ *
+ * @author Matthew Kwan
+ */
+public class EventQueue {
+    private final Client _client;
+    private boolean _motionPending = false;
+    private long _motionTime;
+    private int _timestamp;
+    private int _detail;
+    private int _rootId;
+    private int _eventId;
+    private int _childId;
+    private int _rootX;
+    private int _rootY;
+    private int _eventX;
+    private int _eventY;
+    private int _state;
+    private int _hintWindowId = 0;
+    private long _mergedCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param client The client the events are sent to.
+     */
+    public EventQueue(Client client) {
+        _client = client;
+    }
+
+    /**
+     * Queue a motion notify event. If the previous queued event was for
+     * the same window, child and state, it is replaced by this one.
+     * Only one hint event is sent to a window until the hint is reset.
+     *
+     * @param timestamp   Time in milliseconds since last server reset.
+     * @param detail      0=Normal, 1=Hint.
+     * @param root        The root window of the event window.
+     * @param eventWindow The window interested in the event.
+     * @param child       Child of event window, ancestor of source. Can be null.
+     * @param rootX       Pointer root X coordinate at the time of the event.
+     * @param rootY       Pointer root Y coordinate at the time of the event.
+     * @param eventX      Pointer X coordinate relative to event window.
+     * @param eventY      Pointer Y coordinate relative to event window.
+     * @param state       Bitmask of the buttons and modifier keys.
+     * @return True if the event has to be flushed later.
+     * @throws IOException
+     */
+    public boolean addMotionNotify(int timestamp, int detail, Window root, Window eventWindow, Window child, int rootX, int rootY, int eventX, int eventY, int state) throws IOException {
+        int eventId = eventWindow.getId();
+        int childId = (child == null) ? 0 : child.getId();
+
+        synchronized (_client.getInputOutput()) {
+            if (detail == 1) {    // Hint.
+                if (_hintWindowId == eventId) return false;
+
+                _hintWindowId = eventId;
+            }
+
+            if (_motionPending) {
+                if (_eventId == eventId && _childId == childId && _detail == detail && _state == state) _mergedCount++;
+                else writePending();
+            }
+
+            if (!_motionPending) {
+                _motionPending = true;
+                _motionTime = System.nanoTime();
+            }
+
+            _timestamp = timestamp;
+            _detail = detail;
+            _rootId = root.getId();
+            _eventId = eventId;
+            _childId = childId;
+            _rootX = rootX;
+            _rootY = rootY;
+            _eventX = eventX;
+            _eventY = eventY;
+            _state = state;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write any queued motion event to the output buffer.
+     *
+     * @throws IOException
+     */
+    public void writePending() throws IOException {
+        InputOutput io = _client.getInputOutput();
+
+        synchronized (io) {
+            if (!_motionPending) return;
+
+            _motionPending = false;
+            io.writeByte(EventCode.MotionNotify);
+            io.writeByte((byte) _detail);
+            io.writeShort((short) (_client.getSequenceNumber() & 0xffff));
+            io.writeInt(_timestamp);    // Time.
+            io.writeInt(_rootId);    // Root.
+            io.writeInt(_eventId);    // Event.
+            io.writeInt(_childId);    // Child.
+            io.writeShort((short) _rootX);    // Root X.
+            io.writeShort((short) _rootY);    // Root Y.
+            io.writeShort((short) _eventX);    // Event X.
+            io.writeShort((short) _eventY);    // Event Y.
+            io.writeShort((short) _state);    // State.
+            io.writeByte((byte) 1);    // Same screen.
+            io.writePadBytes(1);    // Unused.
+        }
+    }
+
+    /**
+     * Send any queued motion event to the client. While the client still
+     * has unsent output, the event is held back so later motion can be
+     * merged into it, for no longer than the maximum latency.
+     *
+     * @param maxLatency Longest time to hold back an event, in milliseconds.
+     * @return False if the event is still being held back.
+     * @throws IOException
+     */
+    public boolean flush(int maxLatency) throws IOException {
+        InputOutput io = _client.getInputOutput();
+
+        synchronized (io) {
+            if (!_motionPending) return true;
+
+            if (io.isBacklogged() && System.nanoTime() - _motionTime < maxLatency * 1000000L)
+                return false;
+
+            writePending();
+        }
+        io.flush();
+
+        return true;
+    }
+
+    /**
+     * Allow another hint event to be sent. Called when the client queries
+     * the pointer, or a button, key, enter or leave event is sent.
+     */
+    public void resetMotionHint() {
+        synchronized (_client.getInputOutput()) {
+            _hintWindowId = 0;
+        }
+    }
+
+    /**
+     * Return the number of motion events merged into later ones.
+     *
+     * @return The number of merged motion events.
+     */
+    public long getMergedCount() {
+        return _mergedCount;
+    }
+}
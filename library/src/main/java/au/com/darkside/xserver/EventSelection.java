@@ -0,0 +1,197 @@
+package au.com.darkside.xserver;
+
+/**
+ * This class holds the event masks that clients have selected on a window.
+ * It is immutable, so windows replace it when a selection changes and
+ * events can be delivered from it without locking. The clients selecting
+ * each event are worked out in advance, so finding the clients for an
+ * event allocates nothing.
+ *
+ * @author Matthew Kwan
+ */
+public class EventSelection {
+    public static final EventSelection Empty = new EventSelection(new Client[0], new int[0]);
+
+    private final Client[] _clients;
+    private final int[] _masks;
+    private final int _eventMask;
+    private final Client[][] _bitClients = new Client[32][];
+    private volatile Selected _lastSelected = null;
+
+    /**
+     * Constructor.
+     *
+     * @param clients The selecting clients.
+     * @param masks   The event mask of each client.
+     */
+    private EventSelection(Client[] clients, int[] masks) {
+        int eventMask = 0;
+
+        _clients = clients;
+        _masks = masks;
+
+        for (int m : masks)
+            eventMask |= m;
+
+        _eventMask = eventMask;
+
+        for (int bit = 0; bit < 32; bit++)
+            if ((eventMask & (1 << bit)) != 0) _bitClients[bit] = selecting(1 << bit);
+    }
+
+    /**
+     * Return the union of all the clients' event masks.
+     *
+     * @return The cumulative event mask.
+     */
+    public int getEventMask() {
+        return _eventMask;
+    }
+
+    /**
+     * Return the event mask that a client is selecting on.
+     *
+     * @param client The client.
+     * @return The event mask, or zero if the client isn't selecting.
+     */
+    public int getClientMask(Client client) {
+        for (int i = 0; i < _clients.length; i++)
+            if (_clients[i] == client) return _masks[i];
+
+        return 0;
+    }
+
+    /**
+     * Return the clients selecting on any of the events in a mask.
+     * The array must not be modified.
+     *
+     * @param mask The event mask.
+     * @return The selecting clients, or null if there are none.
+     */
+    public Client[] getClients(int mask) {
+        mask &= _eventMask;
+        if (mask == 0) return null;
+
+        if ((mask & (mask - 1)) == 0)    // A single event.
+            return _bitClients[Integer.numberOfTrailingZeros(mask)];
+
+        // Pointer motion asks for several events at once, usually with
+        // the same mask each time.
+        Selected s = _lastSelected;
+
+        if (s != null && s.mask == mask) return s.clients;
+
+        Client[] clients = selecting(mask);
+
+        _lastSelected = new Selected(mask, clients);
+
+        return clients;
+    }
+
+    /**
+     * Build a list of the clients selecting on any of the events in a mask.
+     *
+     * @param mask The event mask.
+     * @return The selecting clients.
+     */
+    private Client[] selecting(int mask) {
+        int n = 0;
+
+        for (int m : _masks)
+            if ((m & mask) != 0) n++;
+
+        Client[] clients = new Client[n];
+
+        n = 0;
+        for (int i = 0; i < _clients.length; i++)
+            if ((_masks[i] & mask) != 0) clients[n++] = _clients[i];
+
+        return clients;
+    }
+
+    /**
+     * Return a selection with a client's event mask changed.
+     *
+     * @param client The client.
+     * @param mask   The client's new event mask. If zero, the client is
+     *               removed.
+     * @return The new selection.
+     */
+    public EventSelection with(Client client, int mask) {
+        int n = _clients.length;
+        int i;
+
+        for (i = 0; i < n; i++)
+            if (_clients[i] == client) break;
+
+        if (i < n) {
+            if (_masks[i] == mask) return this;
+
+            if (mask == 0) return without(client);
+
+            int[] masks = _masks.clone();
+
+            masks[i] = mask;
+
+            return new EventSelection(_clients, masks);
+        }
+
+        if (mask == 0) return this;
+
+        Client[] clients = new Client[n + 1];
+        int[] masks = new int[n + 1];
+
+        System.arraycopy(_clients, 0, clients, 0, n);
+        System.arraycopy(_masks, 0, masks, 0, n);
+        clients[n] = client;
+        masks[n] = mask;
+
+        return new EventSelection(clients, masks);
+    }
+
+    /**
+     * Return a selection without a client.
+     *
+     * @param client The client to remove.
+     * @return The new selection.
+     */
+    public EventSelection without(Client client) {
+        int n = _clients.length;
+        int i;
+
+        for (i = 0; i < n; i++)
+            if (_clients[i] == client) break;
+
+        if (i == n) return this;
+        if (n == 1) return Empty;
+
+        Client[] clients = new Client[n - 1];
+        int[] masks = new int[n - 1];
+
+        System.arraycopy(_clients, 0, clients, 0, i);
+        System.arraycopy(_clients, i + 1, clients, i, n - i - 1);
+        System.arraycopy(_masks, 0, masks, 0, i);
+        System.arraycopy(_masks, i + 1, masks, i, n - i - 1);
+
+        return new EventSelection(clients, masks);
+    }
+
+    /**
+     * The clients selecting on a combination of events.
+     */
+    private static class Selected {
+        public final int mask;
+        public final Client[] clients;
+
+        /**
+         * Constructor.
+         *
+         * @param mask    The event mask.
+         * @param clients The clients selecting on the events.
+         */
+        public Selected(int mask, Client[] clients) {
+            this.mask = mask;
+            this.clients = clients;
+        }
+    }
+}
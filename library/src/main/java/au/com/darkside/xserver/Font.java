@@ -1,5 +1,6 @@
 package au.com.darkside.xserver;
 
+import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
@@ -16,19 +17,13 @@ import java.util.Vector;
 public class Font extends Resource {
     private static int _dpi = 250;
 
+    private final FontInfo _info;
     private final Paint _paint;
-    private final float _minWidth;
-    private final float _maxWidth;
-    private final short _ascent;
-    private final short _descent;
-    private final short _maxAscent;
-    private final short _maxDescent;
-    private final char _maxChar;
     private Atom _nameAtom = null;
 
     private static final String[] _allFonts = {"-android-default-medium-r-normal--0-0-0-0-p-0-iso8859-1", "-android-default-bold-r-normal--0-0-0-0-p-0-iso8859-1", "-android-default-medium-i-normal--0-0-0-0-p-0-iso8859-1", "-android-default-bold-i-normal--0-0-0-0-p-0-iso8859-1", "-android-default-medium-r-normal--0-0-0-0-p-0-iso10646-1", "-android-default-bold-r-normal--0-0-0-0-p-0-iso10646-1", "-android-default-medium-i-normal--0-0-0-0-p-0-iso10646-1", "-android-default-bold-i-normal--0-0-0-0-p-0-iso10646-1", "-android-monospace-medium-r-normal--0-0-0-0-m-0-iso8859-1", "-android-monospace-bold-r-normal--0-0-0-0-m-0-iso8859-1", "-android-monospace-medium-i-normal--0-0-0-0-m-0-iso8859-1", "-android-monospace-bold-i-normal--0-0-0-0-m-0-iso8859-1", "-android-monospace-medium-r-normal--0-0-0-0-m-0-iso10646-1", "-android-monospace-bold-r-normal--0-0-0-0-m-0-iso10646-1", "-android-monospace-medium-i-normal--0-0-0-0-m-0-iso10646-1", "-android-monospace-bold-i-normal--0-0-0-0-m-0-iso10646-1", "-android-serif-medium-r-normal--0-0-0-0-p-0-iso8859-1", "-android-serif-bold-r-normal--0-0-0-0-p-0-iso8859-1", "-android-serif-medium-i-normal--0-0-0-0-p-0-iso8859-1", "-android-serif-bold-i-normal--0-0-0-0-p-0-iso8859-1", "-android-serif-medium-r-normal--0-0-0-0-p-0-iso10646-1", "-android-serif-bold-r-normal--0-0-0-0-p-0-iso10646-1", "-android-serif-medium-i-normal--0-0-0-0-p-0-iso10646-1", "-android-serif-bold-i-normal--0-0-0-0-p-0-iso10646-1", "-android-sans serif-medium-r-normal--0-0-0-0-p-0-iso8859-1", "-android-sans serif-bold-r-normal--0-0-0-0-p-0-iso8859-1", "-android-sans serif-medium-i-normal--0-0-0-0-p-0-iso8859-1", "-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso8859-1", "-android-sans serif-medium-r-normal--0-0-0-0-p-0-iso10646-1", "-android-sans serif-bold-r-normal--0-0-0-0-p-0-iso10646-1", "-android-sans serif-medium-i-normal--0-0-0-0-p-0-iso10646-1", "-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso10646-1", "fixed", "cursor"};
 
-    private static String[][] _allFontFields = null;
+    private static final FontIndex _fontIndex = new FontIndex(_allFonts);
 
     /**
      * Set the dots-per-inch resolution at which fonts will be displayed.
@@ -50,69 +45,8 @@ public class Font extends Resource {
     public Font(int id, XServer xServer, Client client, String name) {
         super(FONT, id, xServer, client);
 
-        char maxChar = 255;
-
-        _paint = new Paint();
-        if (name == null || name.equalsIgnoreCase("cursor")) {
-            _paint.setTypeface(Typeface.DEFAULT);
-        } else if (name.equalsIgnoreCase("fixed")) {
-            _paint.setTypeface(Typeface.MONOSPACE);
-        } else {
-            String[] fields = name.split("-");
-            Typeface base = Typeface.DEFAULT;
-            int style = Typeface.NORMAL;
-
-            if (fields.length == 15) {
-                if (fields[3].equalsIgnoreCase("bold")) style |= Typeface.BOLD;
-                if (fields[4].equalsIgnoreCase("i")) style |= Typeface.ITALIC;
-
-                try {
-                    int n = Integer.valueOf(fields[7]);
-
-                    if (n > 0) _paint.setTextSize(n);
-                } catch (java.lang.NumberFormatException e) {
-                }
-
-                if (!fields[11].equalsIgnoreCase("p")) base = Typeface.MONOSPACE;
-                else if (fields[2].equalsIgnoreCase("default")) base = Typeface.DEFAULT;
-                else if (fields[2].equalsIgnoreCase("serif")) base = Typeface.SERIF;
-                else if (fields[2].equalsIgnoreCase("sans serif")) base = Typeface.SANS_SERIF;
-                else base = Typeface.create(fields[2], style);
-
-                if (fields[13].equalsIgnoreCase("iso10646")) maxChar = 65534;
-            }
-
-            _paint.setTypeface(Typeface.create(base, style));
-        }
-
-        _maxChar = maxChar;
-
-        // Calculate the minimum and maximum widths.
-        byte[] bytes = new byte[126 - 32 + 1];
-        float[] widths = new float[bytes.length];
-
-        for (int i = 0; i < bytes.length; i++)
-            bytes[i] = (byte) (i + 32);
-
-        _paint.getTextWidths(new String(bytes), widths);
-
-        float minw = widths[0];
-        float maxw = widths[0];
-
-        for (float width : widths) {
-            if (width < minw) minw = width;
-            if (width > maxw) maxw = width;
-        }
-
-        _minWidth = minw;
-        _maxWidth = maxw;
-
-        Paint.FontMetricsInt metrics = _paint.getFontMetricsInt();
-
-        _ascent = (short) -metrics.ascent;
-        _descent = (short) metrics.descent;
-        _maxAscent = (short) -metrics.top;
-        _maxDescent = (short) metrics.bottom;
+        _info = FontInfo.get(name);
+        _paint = _info.createPaint();
     }
 
     /**
@@ -121,7 +55,7 @@ public class Font extends Resource {
      * @return The font's typeface.
      */
     public Typeface getTypeface() {
-        return _paint.getTypeface();
+        return _info.getTypeface();
     }
 
     /**
@@ -130,22 +64,52 @@ public class Font extends Resource {
      * @return The font's size.
      */
     public int getSize() {
-        return (int) _paint.getTextSize();
+        return (int) _info.getTextSize();
+    }
+
+    /**
+     * Return the font's ascent.
+     *
+     * @return The ascent.
+     */
+    public int getAscent() {
+        return _info.getAscent();
+    }
+
+    /**
+     * Return the font's descent.
+     *
+     * @return The descent.
+     */
+    public int getDescent() {
+        return _info.getDescent();
+    }
+
+    /**
+     * Return the width of some text.
+     *
+     * @param chars  The text.
+     * @param length Number of characters.
+     * @return The width of the text.
+     */
+    public float measureText(char[] chars, int length) {
+        return GlyphAtlas.get(_info).measureText(chars, length);
     }
 
     /**
-     * Calculate the bounding rectangle for text drawn at a location.
+     * Draw text using the font's glyph atlas.
      *
-     * @param s    The text.
-     * @param x    X coordinate.
-     * @param y    Y coordinate.
-     * @param rect Return value. The bounding rectangle.
+     * @param canvas The canvas to draw on.
+     * @param chars  The text.
+     * @param length Number of characters.
+     * @param x      X coordinate of the text's origin.
+     * @param y      Y coordinate of the text's baseline.
+     * @param paint  The paint to draw with.
+     * @param bounds Return value. The text's bounding rectangle.
+     * @return The X coordinate after the text.
      */
-    public void getTextBounds(String s, int x, int y, Rect rect) {
-        rect.left = x;
-        rect.right = x + (int) _paint.measureText(s);
-        rect.top = y - _ascent;
-        rect.bottom = y + _descent;
+    public float drawText(Canvas canvas, char[] chars, int length, float x, float y, Paint paint, Rect bounds) {
+        return GlyphAtlas.get(_info).drawText(canvas, chars, length, x, y, paint, bounds);
     }
 
     /**
@@ -259,17 +223,9 @@ public class Font extends Resource {
     private void processQueryFontRequest(Client client) throws IOException {
         InputOutput io = client.getInputOutput();
         int numFontProperties = (_nameAtom == null) ? 0 : 1;
-        int numCharInfos = _maxChar - 31;
-        char[] chars = new char[numCharInfos];
-
-        for (char c = 32; c <= _maxChar; c++)
-            chars[c - 32] = c;
-
-        String s = new String(chars);
-        Rect bounds = new Rect();
-        float[] widths = new float[numCharInfos];
-
-        _paint.getTextWidths(s, widths);
+        char maxChar = _info.getMaxChar();
+        int numCharInfos = maxChar - 31;
+        short[] charInfo = _info.getCharInfo();
 
         synchronized (io) {
             Util.writeReplyHeader(client, (byte) 0);
@@ -279,7 +235,7 @@ public class Font extends Resource {
             // Min bounds.
             io.writeShort((short) 0);    // Left side bearing.
             io.writeShort((short) 0);    // Right side bearing.
-            io.writeShort((short) _minWidth);    // Character width.
+            io.writeShort((short) _info.getMinWidth());    // Character width.
             io.writeShort((short) 0);    // Ascent.
             io.writeShort((short) 0);    // Descent.
             io.writeShort((short) 0);    // Attributes.
@@ -287,23 +243,23 @@ public class Font extends Resource {
 
             // Max bounds.
             io.writeShort((short) 0);    // Left side bearing.
-            io.writeShort((short) _maxWidth);    // Right side bearing.
-            io.writeShort((short) _maxWidth);    // Character width.
-            io.writeShort(_maxAscent);    // Ascent.
-            io.writeShort(_maxDescent);    // Descent.
+            io.writeShort((short) _info.getMaxWidth());    // Right side bearing.
+            io.writeShort((short) _info.getMaxWidth());    // Character width.
+            io.writeShort(_info.getMaxAscent());    // Ascent.
+            io.writeShort(_info.getMaxDescent());    // Descent.
             io.writeShort((short) 0);    // Attributes.
             io.writePadBytes(4);    // Unused.
 
             io.writeShort((short) 32);    // Min char or byte2.
-            io.writeShort((short) _maxChar);    // Max char or byte2.
+            io.writeShort((short) maxChar);    // Max char or byte2.
             io.writeShort((short) 32);    // Default char.
             io.writeShort((short) numFontProperties);
             io.writeByte((byte) 0);    // Draw direction = left-to-right.
             io.writeByte((byte) 0);    // Min byte 1.
             io.writeByte((byte) 0);    // Max byte 1.
             io.writeByte((byte) 0);    // All chars exist = false.
-            io.writeShort(_ascent);    // Font ascent.
-            io.writeShort(_descent);    // Font descent.
+            io.writeShort(_info.getAscent());    // Font ascent.
+            io.writeShort(_info.getDescent());    // Font descent.
             io.writeInt(numCharInfos);
 
             // If name atom is specified, write the FONT property.
@@ -314,13 +270,12 @@ public class Font extends Resource {
                 io.writeInt(_nameAtom.getId());    // Value.
             }
 
-            for (int i = 0; i < numCharInfos; i++) {
-                _paint.getTextBounds(s, i, i + 1, bounds);
-                io.writeShort((short) bounds.left);    // Left side bearing.
-                io.writeShort((short) bounds.right);    // Right side bearing.
-                io.writeShort((short) widths[i]);    // Character width.
-                io.writeShort((short) -bounds.top);    // Ascent.
-                io.writeShort((short) bounds.bottom);    // Descent.
+            for (int i = 0; i < charInfo.length; i += FontInfo.CharInfoSize) {
+                io.writeShort(charInfo[i]);    // Left side bearing.
+                io.writeShort(charInfo[i + 1]);    // Right side bearing.
+                io.writeShort(charInfo[i + 2]);    // Character width.
+                io.writeShort(charInfo[i + 3]);    // Ascent.
+                io.writeShort(charInfo[i + 4]);    // Descent.
                 io.writeShort((short) 0);    // Attributes.
             }
         }
@@ -344,8 +299,8 @@ public class Font extends Resource {
         synchronized (io) {
             Util.writeReplyHeader(client, (byte) 0);
             io.writeInt(0);    // Reply length.
-            io.writeShort(_ascent);    // Font ascent.
-            io.writeShort(_descent);    // Font descent.
+            io.writeShort(_info.getAscent());    // Font ascent.
+            io.writeShort(_info.getDescent());    // Font descent.
             io.writeShort((short) -bounds.top);    // Overall ascent.
             io.writeShort((short) bounds.bottom);    // Overall descent.
             io.writeInt(width);    // Overall width.
@@ -444,78 +399,6 @@ public class Font extends Resource {
         else xServer.setFontPath(fontPaths);
     }
 
-    /**
-     * Does the font name match the pattern?
-     *
-     * @param idx     The index of the font being matched.
-     * @param pattern The pattern being matched.
-     * @param pfields The pattern, broken into its components.
-     * @return The name of the matching font, or null if it doesn't match.
-     */
-    private static String fontMatchesPattern(int idx, String pattern, String[] pfields) {
-        String font = _allFonts[idx];
-
-        if (pattern.equals("*")) return font;
-
-        String[] fields;
-
-        if (_allFontFields == null) _allFontFields = new String[_allFonts.length][];
-
-        if (_allFontFields[idx] == null) fields = _allFontFields[idx] = font.split("-");
-        else fields = _allFontFields[idx];
-
-        if (fields.length < pfields.length) return null;
-
-        if (fields.length == 1) return pattern.equalsIgnoreCase(font) ? font : null;
-
-        int offset = 0;
-        boolean rescale = false;
-
-        if (pfields[0].equals("*")) offset = fields.length - pfields.length;
-
-        for (int i = 0; i < pfields.length; i++) {
-            if (pfields[i].equals("*")) continue;
-
-            int foff = offset + i;
-
-            if (foff == 0 || foff == 9 || foff == 10)
-                continue;    // First field not used. And ignore resolution.
-            else if (fields[foff].equalsIgnoreCase(pfields[i])) continue;
-                // else if (fields[foff].matches (pfields[i]))
-                // continue;	// Pattern matching.
-            else if (foff >= 7 && foff <= 8)    // Pixel and point size.
-                rescale = true;
-            else return null;
-        }
-
-        if (rescale) {
-            int pixels = 0;
-            int points = 0;
-
-            if (offset <= 7) {
-                try {
-                    pixels = Integer.parseInt(pfields[7 - offset]);
-                } catch (Exception e) {
-                }
-            }
-
-            if (offset <= 8) {
-                try {
-                    points = Integer.parseInt(pfields[8 - offset]);
-                } catch (Exception e) {
-                }
-            }
-
-            if (pixels == 0 && points == 0) return font;
-            else if (pixels == 0 && points != 0) pixels = (int) Math.round(points * _dpi / 722.7);
-            else if (pixels != 0 && points == 0) points = (int) Math.round(pixels * 722.7 / _dpi);
-
-            return "-" + fields[1] + "-" + fields[2] + "-" + fields[3] + "-" + fields[4] + "-" + fields[5] + "-" + fields[6] + "-" + pixels + "-" + points + "-" + _dpi + "-" + _dpi + "-" + fields[11] + "-" + fields[12] + "-" + fields[13] + "-" + fields[14];
-        }
-
-        return font;
-    }
-
     /**
      * Process a ListFonts or ListFontsWithInfo request.
      *
@@ -549,18 +432,11 @@ public class Font extends Resource {
         io.readBytes(bytes, 0, length);    // Pattern.
         io.readSkip(pad);    // Unused.
 
-        String pattern = new String(bytes);
-        String[] pfields = pattern.split("-");
+        String[] matches = _fontIndex.match(new String(bytes), _dpi);
         Vector<String> fonts = new Vector<String>();
 
-        for (int i = 0; i < _allFonts.length; i++) {
-            String f = fontMatchesPattern(i, pattern, pfields);
-
-            if (f != null) {
-                fonts.add(f);
-                if (fonts.size() >= maxNames) break;
-            }
-        }
+        for (int i = 0; i < matches.length && i < maxNames; i++)
+            fonts.add(matches[i]);
 
         if (opcode == RequestCode.ListFonts) {
             length = 0;
@@ -612,11 +488,10 @@ public class Font extends Resource {
      */
     private static void writeFontWithInfo(Client client, String name, int fontsRemaining) throws IOException {
         InputOutput io = client.getInputOutput();
-        Font font = new Font(0, null, null, name);
+        FontInfo info = FontInfo.get(name);
         int numFontProperties = 0;
         byte nameLength = (byte) name.length();
         int pad = -nameLength & 3;
-        Paint.FontMetricsInt metrics = font._paint.getFontMetricsInt();
 
         synchronized (io) {
             Util.writeReplyHeader(client, nameLength);
@@ -626,7 +501,7 @@ public class Font extends Resource {
             // Min bounds.
             io.writeShort((short) 0);    // Left side bearing.
             io.writeShort((short) 0);    // Right side bearing.
-            io.writeShort((short) font._minWidth);    // Character width.
+            io.writeShort((short) info.getMinWidth());    // Character width.
             io.writeShort((short) 0);    // Ascent.
             io.writeShort((short) 0);    // Descent.
             io.writeShort((short) 0);    // Attributes.
@@ -634,23 +509,23 @@ public class Font extends Resource {
 
             // Max bounds.
             io.writeShort((short) 0);    // Left side bearing.
-            io.writeShort((short) font._maxWidth);    // Right side bearing.
-            io.writeShort((short) font._maxWidth);    // Character width.
-            io.writeShort((short) -metrics.top);    // Ascent.
-            io.writeShort((short) metrics.bottom);    // Descent.
+            io.writeShort((short) info.getMaxWidth());    // Right side bearing.
+            io.writeShort((short) info.getMaxWidth());    // Character width.
+            io.writeShort(info.getMaxAscent());    // Ascent.
+            io.writeShort(info.getMaxDescent());    // Descent.
             io.writeShort((short) 0);    // Attributes.
             io.writePadBytes(4);    // Unused.
 
             io.writeShort((short) 32);    // Min char or byte2.
-            io.writeShort((short) font._maxChar);    // Max char or byte2.
+            io.writeShort((short) info.getMaxChar());    // Max char or byte2.
             io.writeShort((short) 32);    // Default char.
             io.writeShort((short) numFontProperties);
             io.writeByte((byte) 0);    // Draw direction = left-to-right.
             io.writeByte((byte) 0);    // Min byte 1.
             io.writeByte((byte) 0);    // Max byte 1.
             io.writeByte((byte) 0);    // All chars exist = false.
-            io.writeShort((short) -metrics.ascent);    // Font ascent.
-            io.writeShort((short) metrics.descent);    // Font descent.
+            io.writeShort(info.getAscent());    // Font ascent.
+            io.writeShort(info.getDescent());    // Font descent.
             io.writeInt(fontsRemaining);    // Replies hint.
             // No font properties.
             io.writeBytes(name.getBytes(), 0, nameLength);    // Name.
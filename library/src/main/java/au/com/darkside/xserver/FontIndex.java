@@ -0,0 +1,292 @@
+package au.com.darkside.xserver;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class finds the fonts whose names match ListFonts patterns.
+ * The names are split into their XLFD fields once, and the family,
+ * weight, slant and registry fields are indexed, so a pattern that names
+ * any of them only has to be checked against the fonts that share it.
+ * Pattern fields may contain the wildcards '*' and '?'. The results for
+ * recently used patterns are remembered.
+ *
+ * @author Matthew Kwan
+ */
+public class FontIndex {
+    private final String[] _names;
+    private final String[][] _fields;
+    private final BitSet _xlfdFonts = new BitSet();
+    private final BitSet _otherFonts = new BitSet();
+    private final ArrayList<HashMap<String, BitSet>> _fieldIndex = new ArrayList<HashMap<String, BitSet>>();
+    private final Map<String, String[]> _results = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > MaxCachedPatterns;
+        }
+    };
+
+    private static final int XlfdFields = 15;
+    private static final int[] IndexedFields = {2, 3, 4, 13};    // Family, weight, slant, registry.
+    private static final int MaxCachedPatterns = 64;
+
+    /**
+     * Constructor.
+     *
+     * @param names The names of the fonts, in the order they're listed.
+     */
+    public FontIndex(String[] names) {
+        _names = names;
+        _fields = new String[names.length][];
+
+        for (int i = 0; i < IndexedFields.length; i++)
+            _fieldIndex.add(new HashMap<String, BitSet>());
+
+        for (int i = 0; i < names.length; i++) {
+            String[] fields = names[i].split("-");
+
+            _fields[i] = fields;
+            if (fields.length != XlfdFields) {
+                _otherFonts.set(i);
+                continue;
+            }
+
+            _xlfdFonts.set(i);
+            for (int j = 0; j < IndexedFields.length; j++) {
+                HashMap<String, BitSet> index = _fieldIndex.get(j);
+                String key = fields[IndexedFields[j]].toLowerCase();
+                BitSet fonts = index.get(key);
+
+                if (fonts == null) {
+                    fonts = new BitSet();
+                    index.put(key, fonts);
+                }
+
+                fonts.set(i);
+            }
+        }
+    }
+
+    /**
+     * Return the names of the fonts that match a pattern, in the order
+     * the fonts were listed. Scalable fonts that match in all but their
+     * size are returned with the requested size filled in.
+     *
+     * @param pattern The pattern.
+     * @param dpi     The resolution used to convert between pixel and
+     *                point sizes.
+     * @return The matching font names.
+     */
+    public String[] match(String pattern, int dpi) {
+        String key = pattern.toLowerCase() + "/" + dpi;
+        String[] names;
+
+        synchronized (_results) {
+            names = _results.get(key);
+        }
+
+        if (names != null) return names;
+
+        names = findMatches(pattern, dpi);
+
+        synchronized (_results) {
+            _results.put(key, names);
+        }
+
+        return names;
+    }
+
+    /**
+     * Find the names of the fonts that match a pattern.
+     *
+     * @param pattern The pattern.
+     * @param dpi     The resolution used for rescaling.
+     * @return The matching font names.
+     */
+    private String[] findMatches(String pattern, int dpi) {
+        if (pattern.equals("*")) return _names.clone();
+
+        String[] pfields = pattern.split("-");
+
+        if (pfields.length == 0) return new String[0];
+
+        FieldPattern[] matchers = new FieldPattern[pfields.length];
+        FieldPattern whole = new FieldPattern(pattern);
+        BitSet candidates = (BitSet) _xlfdFonts.clone();
+
+        for (int i = 0; i < pfields.length; i++)
+            matchers[i] = new FieldPattern(pfields[i]);
+
+        // Narrow down the XLFD fonts using the indexed fields.
+        if (pfields.length <= XlfdFields) {
+            int offset = matchers[0].isAny() ? XlfdFields - pfields.length : 0;
+
+            for (int j = 0; j < IndexedFields.length; j++) {
+                int i = IndexedFields[j] - offset;
+
+                if (i < 0 || i >= pfields.length || !matchers[i].isLiteral()) continue;
+
+                BitSet fonts = _fieldIndex.get(j).get(pfields[i].toLowerCase());
+
+                if (fonts == null) candidates.clear();
+                else candidates.and(fonts);
+            }
+        }
+
+        candidates.or(_otherFonts);
+
+        ArrayList<String> matches = new ArrayList<String>();
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            String name = matchFont(i, whole, pfields, matchers, dpi);
+
+            if (name != null) matches.add(name);
+        }
+
+        return matches.toArray(new String[matches.size()]);
+    }
+
+    /**
+     * Does the font name match the pattern?
+     *
+     * @param idx      The index of the font being matched.
+     * @param whole    The whole pattern, for fonts that aren't XLFD names.
+     * @param pfields  The pattern, broken into its components.
+     * @param matchers Matchers for the pattern's components.
+     * @param dpi      The resolution used for rescaling.
+     * @return The name of the matching font, or null if it doesn't match.
+     */
+    private String matchFont(int idx, FieldPattern whole, String[] pfields, FieldPattern[] matchers, int dpi) {
+        String font = _names[idx];
+        String[] fields = _fields[idx];
+
+        if (fields.length < pfields.length) return null;
+
+        if (fields.length == 1) return whole.matches(font) ? font : null;
+
+        int offset = 0;
+        boolean rescale = false;
+
+        if (matchers[0].isAny()) offset = fields.length - pfields.length;
+
+        for (int i = 0; i < pfields.length; i++) {
+            if (matchers[i].isAny()) continue;
+
+            int foff = offset + i;
+
+            if (foff == 0 || foff == 9 || foff == 10)
+                continue;    // First field not used. And ignore resolution.
+            else if (matchers[i].matches(fields[foff])) continue;
+            else if (foff >= 7 && foff <= 8)    // Pixel and point size.
+                rescale = true;
+            else return null;
+        }
+
+        if (rescale) {
+            int pixels = 0;
+            int points = 0;
+
+            if (offset <= 7) {
+                try {
+                    pixels = Integer.parseInt(pfields[7 - offset]);
+                } catch (Exception e) {
+                }
+            }
+
+            if (offset <= 8) {
+                try {
+                    points = Integer.parseInt(pfields[8 - offset]);
+                } catch (Exception e) {
+                }
+            }
+
+            if (pixels == 0 && points == 0) return font;
+            else if (pixels == 0 && points != 0) pixels = (int) Math.round(points * dpi / 722.7);
+            else if (pixels != 0 && points == 0) points = (int) Math.round(pixels * 722.7 / dpi);
+
+            return "-" + fields[1] + "-" + fields[2] + "-" + fields[3] + "-" + fields[4] + "-" + fields[5] + "-" + fields[6] + "-" + pixels + "-" + points + "-" + dpi + "-" + dpi + "-" + fields[11] + "-" + fields[12] + "-" + fields[13] + "-" + fields[14];
+        }
+
+        return font;
+    }
+
+    /**
+     * A compiled, case-insensitive pattern for one field of a font name.
+     * '*' matches any sequence of characters and '?' matches any single
+     * character.
+     */
+    private static class FieldPattern {
+        private final String _pattern;
+        private final boolean _any;
+        private final boolean _literal;
+
+        /**
+         * Constructor.
+         *
+         * @param pattern The pattern.
+         */
+        public FieldPattern(String pattern) {
+            _pattern = pattern.toLowerCase();
+            _any = pattern.equals("*");
+            _literal = pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0;
+        }
+
+        /**
+         * Does the pattern match anything?
+         *
+         * @return True if the pattern is a single '*'.
+         */
+        public boolean isAny() {
+            return _any;
+        }
+
+        /**
+         * Does the pattern contain no wildcards?
+         *
+         * @return True if the pattern only matches itself.
+         */
+        public boolean isLiteral() {
+            return _literal;
+        }
+
+        /**
+         * Does a string match the pattern?
+         *
+         * @param s The string.
+         * @return True if it matches.
+         */
+        public boolean matches(String s) {
+            if (_any) return true;
+
+            if (_literal) return _pattern.equalsIgnoreCase(s);
+
+            String t = s.toLowerCase();
+            int p = 0;
+            int i = 0;
+            int star = -1;
+            int mark = 0;
+
+            while (i < t.length()) {
+                if (p < _pattern.length() && (_pattern.charAt(p) == '?' || _pattern.charAt(p) == t.charAt(i))) {
+                    p++;
+                    i++;
+                } else if (p < _pattern.length() && _pattern.charAt(p) == '*') {
+                    star = p++;
+                    mark = i;
+                } else if (star >= 0) {    // Let the last '*' match one more character.
+                    p = star + 1;
+                    i = ++mark;
+                } else {
+                    return false;
+                }
+            }
+
+            while (p < _pattern.length() && _pattern.charAt(p) == '*') p++;
+
+            return p == _pattern.length();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package au.com.darkside.xserver;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This class holds the typeface and metrics of a named font.
+ * Resolving a typeface and measuring its glyphs is slow, so the results
+ * are kept in a process-wide cache, shared by every Font opened with the
+ * same name and by ListFontsWithInfo. The metrics don't depend on the
+ * display resolution, so fonts are cached by name alone. The least
+ * recently used entries are dropped when the cache holds more than
+ * MaxCacheBytes, counting the character metrics of the fonts that have
+ * measured them.
+ *
+ * @author Matthew Kwan
+ */
+public class FontInfo {
+    public static final int CharInfoSize = 5;
+
+    private final Typeface _typeface;
+    private final float _textSize;
+    private final char _maxChar;
+    private final float _minWidth;
+    private final float _maxWidth;
+    private final short _ascent;
+    private final short _descent;
+    private final short _maxAscent;
+    private final short _maxDescent;
+    private volatile short[] _charInfo = null;
+
+    private static final int EntryBytes = 256;    // Rough size without character metrics.
+    private static final long MaxCacheBytes = 2 * 1024 * 1024;
+    private static final LinkedHashMap<String, FontInfo> _cache = new LinkedHashMap<String, FontInfo>(16, 0.75f, true);
+
+    /**
+     * Return the information for a named font, creating it if it isn't
+     * in the cache.
+     *
+     * @param name The name of the font. May be null.
+     * @return The font information.
+     */
+    public static FontInfo get(String name) {
+        String key = (name == null) ? "" : name.toLowerCase();
+        FontInfo info;
+
+        synchronized (_cache) {
+            info = _cache.get(key);
+        }
+
+        if (info != null) return info;
+
+        info = new FontInfo(name);
+
+        synchronized (_cache) {
+            FontInfo cached = _cache.get(key);
+
+            if (cached != null) return cached;    // Another thread beat us.
+
+            _cache.put(key, info);
+            trimCache();
+        }
+
+        return info;
+    }
+
+    /**
+     * Drop the least recently used entries until the cache fits in
+     * MaxCacheBytes. The most recently used entry is always kept.
+     * The caller must hold the cache's monitor.
+     */
+    private static void trimCache() {
+        long total = 0;
+
+        for (FontInfo fi : _cache.values())
+            total += fi.getMemoryBytes();
+
+        Iterator<FontInfo> it = _cache.values().iterator();
+
+        while (total > MaxCacheBytes && _cache.size() > 1) {
+            total -= it.next().getMemoryBytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * Return the approximate number of bytes the entry uses.
+     *
+     * @return The number of bytes.
+     */
+    private long getMemoryBytes() {
+        short[] info = _charInfo;
+
+        return EntryBytes + ((info == null) ? 0 : 2L * info.length);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the font. May be null.
+     */
+    private FontInfo(String name) {
+        Paint paint = new Paint();
+        char maxChar = 255;
+
+        if (name == null || name.equalsIgnoreCase("cursor")) {
+            paint.setTypeface(Typeface.DEFAULT);
+        } else if (name.equalsIgnoreCase("fixed")) {
+            paint.setTypeface(Typeface.MONOSPACE);
+        } else {
+            String[] fields = name.split("-");
+            Typeface base = Typeface.DEFAULT;
+            int style = Typeface.NORMAL;
+
+            if (fields.length == 15) {
+                if (fields[3].equalsIgnoreCase("bold")) style |= Typeface.BOLD;
+                if (fields[4].equalsIgnoreCase("i")) style |= Typeface.ITALIC;
+
+                try {
+                    int n = Integer.valueOf(fields[7]);
+
+                    if (n > 0) paint.setTextSize(n);
+                } catch (java.lang.NumberFormatException e) {
+                }
+
+                if (!fields[11].equalsIgnoreCase("p")) base = Typeface.MONOSPACE;
+                else if (fields[2].equalsIgnoreCase("default")) base = Typeface.DEFAULT;
+                else if (fields[2].equalsIgnoreCase("serif")) base = Typeface.SERIF;
+                else if (fields[2].equalsIgnoreCase("sans serif")) base = Typeface.SANS_SERIF;
+                else base = Typeface.create(fields[2], style);
+
+                if (fields[13].equalsIgnoreCase("iso10646")) maxChar = 65534;
+            }
+
+            paint.setTypeface(Typeface.create(base, style));
+        }
+
+        _typeface = paint.getTypeface();
+        _textSize = paint.getTextSize();
+        _maxChar = maxChar;
+
+        // Calculate the minimum and maximum widths.
+        byte[] bytes = new byte[126 - 32 + 1];
+        float[] widths = new float[bytes.length];
+
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) (i + 32);
+
+        paint.getTextWidths(new String(bytes), widths);
+
+        float minw = widths[0];
+        float maxw = widths[0];
+
+        for (float width : widths) {
+            if (width < minw) minw = width;
+            if (width > maxw) maxw = width;
+        }
+
+        _minWidth = minw;
+        _maxWidth = maxw;
+
+        Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+
+        _ascent = (short) -metrics.ascent;
+        _descent = (short) metrics.descent;
+        _maxAscent = (short) -metrics.top;
+        _maxDescent = (short) metrics.bottom;
+    }
+
+    /**
+     * Create a paint that draws with the font.
+     *
+     * @return A new paint.
+     */
+    public Paint createPaint() {
+        Paint paint = new Paint();
+
+        paint.setTypeface(_typeface);
+        paint.setTextSize(_textSize);
+
+        return paint;
+    }
+
+    /**
+     * Return the font's typeface.
+     *
+     * @return The font's typeface.
+     */
+    public Typeface getTypeface() {
+        return _typeface;
+    }
+
+    /**
+     * Return the font's size.
+     *
+     * @return The font's size.
+     */
+    public float getTextSize() {
+        return _textSize;
+    }
+
+    /**
+     * Return the highest character code in the font.
+     *
+     * @return The highest character code.
+     */
+    public char getMaxChar() {
+        return _maxChar;
+    }
+
+    /**
+     * Return the width of the narrowest printable ASCII character.
+     *
+     * @return The minimum width.
+     */
+    public float getMinWidth() {
+        return _minWidth;
+    }
+
+    /**
+     * Return the width of the widest printable ASCII character.
+     *
+     * @return The maximum width.
+     */
+    public float getMaxWidth() {
+        return _maxWidth;
+    }
+
+    /**
+     * Return the font's ascent.
+     *
+     * @return The ascent.
+     */
+    public short getAscent() {
+        return _ascent;
+    }
+
+    /**
+     * Return the font's descent.
+     *
+     * @return The descent.
+     */
+    public short getDescent() {
+        return _descent;
+    }
+
+    /**
+     * Return the largest ascent of any glyph.
+     *
+     * @return The maximum ascent.
+     */
+    public short getMaxAscent() {
+        return _maxAscent;
+    }
+
+    /**
+     * Return the largest descent of any glyph.
+     *
+     * @return The maximum descent.
+     */
+    public short getMaxDescent() {
+        return _maxDescent;
+    }
+
+    /**
+     * Return the metrics of every character from 32 to the highest
+     * character code. Each character has five values: left side bearing,
+     * right side bearing, width, ascent and descent. They are measured
+     * the first time they're needed.
+     *
+     * @return The character metrics. They must not be modified.
+     */
+    public synchronized short[] getCharInfo() {
+        if (_charInfo != null) return _charInfo;
+
+        int n = _maxChar - 31;
+        char[] chars = new char[n];
+
+        for (char c = 32; c <= _maxChar; c++)
+            chars[c - 32] = c;
+
+        String s = new String(chars);
+        Paint paint = createPaint();
+        Rect bounds = new Rect();
+        float[] widths = new float[n];
+        short[] info = new short[n * CharInfoSize];
+
+        paint.getTextWidths(s, widths);
+        for (int i = 0; i < n; i++) {
+            int j = i * CharInfoSize;
+
+            paint.getTextBounds(s, i, i + 1, bounds);
+            info[j] = (short) bounds.left;
+            info[j + 1] = (short) bounds.right;
+            info[j + 2] = (short) widths[i];
+            info[j + 3] = (short) -bounds.top;
+            info[j + 4] = (short) bounds.bottom;
+        }
+
+        _charInfo = info;
+
+        synchronized (_cache) {    // It has grown.
+            trimCache();
+        }
+
+        return info;
+    }
+}
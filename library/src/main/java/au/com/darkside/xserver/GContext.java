@@ -21,7 +21,9 @@ public class GContext extends Resource {
     private Font _font = null;
     private Path.FillType _fillType;
     private int[] _attributes;
-    private Rect[] _clipRectangles = null;
+    private Region _clipRegion = null;
+    private final Path _clipPath = new Path();
+    private final Rect _clipBounds = new Rect();
     private int _foregroundColor = 0xff000000;
     private int _backgroundColor = 0xffffffff;
 
@@ -48,6 +50,10 @@ public class GContext extends Resource {
     private static final int AttrDashOffset = 20;
     private static final int AttrDashes = 21;
     private static final int AttrArcMode = 22;
+    private static final int[] PixmapAttributes = {AttrTile, AttrStipple, AttrClipMask};
+
+    private static final int UnSorted = 0;
+    private static final int YXBanded = 3;
 
     /**
      * Constructor.
@@ -86,6 +92,24 @@ public class GContext extends Resource {
         };
     }
 
+    /**
+     * Does the GContext refer to a tile, stipple or clip mask pixmap
+     * that belongs to another client?
+     *
+     * @param client The client drawing with the GContext.
+     * @return True if a referenced pixmap isn't owned by the client.
+     */
+    public boolean usesOtherPixmaps(Client client) {
+        for (int attr : PixmapAttributes) {
+            int id = _attributes[attr];
+            Resource r = (id == 0) ? null : _xServer.getResource(id);
+
+            if (r != null && r.getClient() != client) return true;
+        }
+
+        return false;
+    }
+
     /**
      * Return the GContext's Paint handle.
      *
@@ -122,6 +146,44 @@ public class GContext extends Resource {
         return _fillType;
     }
 
+    /**
+     * Return the drawing function.
+     * 3 = Copy, 6 = Xor.
+     *
+     * @return The drawing function.
+     */
+    public int getFunction() {
+        return _attributes[AttrFunction];
+    }
+
+    /**
+     * Return whether drawing is restricted by clip rectangles.
+     *
+     * @return True if drawing is clipped.
+     */
+    public boolean hasClipRectangles() {
+        return (_clipRegion != null);
+    }
+
+    /**
+     * Is a rectangle entirely outside the clip rectangles? Drawing that
+     * would be clipped away completely can then be skipped.
+     *
+     * @param left   Left edge of the rectangle.
+     * @param top    Top edge of the rectangle.
+     * @param right  Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @return True if nothing drawn inside the rectangle can be visible.
+     */
+    public boolean isClippedOut(float left, float top, float right, float bottom) {
+        if (_clipRegion == null) return false;
+
+        int ox = _attributes[AttrClipXOrigin];
+        int oy = _attributes[AttrClipYOrigin];
+
+        return _clipRegion.quickReject((int) Math.floor(left) - ox, (int) Math.floor(top) - oy, (int) Math.ceil(right) - ox, (int) Math.ceil(bottom) - oy);
+    }
+
     /**
      * Return the arc mode.
      * 0 = chord, 1 = pie slice.
@@ -174,14 +236,72 @@ public class GContext extends Resource {
      * @param canvas The canvas to apply the rectangles to.
      */
     public void applyClipRectangles(Canvas canvas) {
-        if (_clipRectangles == null) return;
+        if (_clipRegion == null) return;
 
-        if (_clipRectangles.length == 0) canvas.clipRect(0, 0, 0, 0);
-        else for (Rect r : _clipRectangles){
-            canvas.save();
-            canvas.clipRect(r);
-            canvas.restore();
+        if (_clipRegion.isEmpty()) {
+            canvas.clipRect(0, 0, 0, 0);
+            return;
         }
+
+        int ox = _attributes[AttrClipXOrigin];
+        int oy = _attributes[AttrClipYOrigin];
+
+        canvas.translate(ox, oy);
+        if (_clipRegion.isRect()) canvas.clipRect(_clipBounds);
+        else canvas.clipPath(_clipPath);
+        canvas.translate(-ox, -oy);
+    }
+
+    /**
+     * Set the clip rectangles. They are merged into a region, and its
+     * outline is kept for clipping the canvas.
+     * If the rectangles are YX-banded, rectangles that touch within a band
+     * are joined first.
+     *
+     * @param rects    The rectangles, relative to the clip origin. Each
+     *                 has four values: x, y, width and height.
+     * @param n        Number of rectangles.
+     * @param ordering The ordering of the rectangles.
+     */
+    private void setClipRectangles(int[] rects, int n, int ordering) {
+        Path path = new Path();
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+
+        for (int i = 0; i < n; i++) {
+            int j = i * 4;
+            int x1 = rects[j];
+            int y1 = rects[j + 1];
+            int x2 = x1 + rects[j + 2];
+            int y2 = y1 + rects[j + 3];
+
+            if (x1 == x2 || y1 == y2) continue;
+
+            if (ordering == YXBanded) {    // Join touching rectangles in the band.
+                while (i + 1 < n && rects[j + 5] == y1 && rects[j + 7] == rects[j + 3] && rects[j + 4] == x2) {
+                    i++;
+                    j += 4;
+                    x2 += rects[j + 2];
+                }
+            }
+
+            path.addRect(x1, y1, x2, y2, Path.Direction.CW);
+            if (x1 < left) left = x1;
+            if (y1 < top) top = y1;
+            if (x2 > right) right = x2;
+            if (y2 > bottom) bottom = y2;
+        }
+
+        Region region = new Region();
+
+        if (left < right) region.setPath(path, new Region(left, top, right, bottom));
+
+        _clipRegion = region;
+        _clipRegion.getBounds(_clipBounds);
+        _clipPath.reset();
+        if (!region.isRect()) region.getBoundaryPath(_clipPath);
     }
 
     /**
@@ -222,6 +342,12 @@ public class GContext extends Resource {
                         for (int i = 0; i < 23; i++)
                             if ((mask & (1 << i)) != 0) gc._attributes[i] = _attributes[i];
 
+                        if ((mask & (1 << AttrClipMask)) != 0) {
+                            gc._clipRegion = _clipRegion;    // Never modified, so it can be shared.
+                            gc._clipPath.set(_clipPath);
+                            gc._clipBounds.set(_clipBounds);
+                        }
+
                         gc.applyValues(null, opcode);
                     }
                 }
@@ -255,19 +381,23 @@ public class GContext extends Resource {
                     if ((bytesRemaining & 7) != 0) {
                         io.readSkip(bytesRemaining);
                         ErrorCode.write(client, ErrorCode.Length, opcode, 0);
+                    } else if (arg < UnSorted || arg > YXBanded) {
+                        io.readSkip(bytesRemaining);
+                        ErrorCode.write(client, ErrorCode.Value, opcode, arg);
                     } else {
-                        int i = 0;
-
-                        _clipRectangles = new Rect[bytesRemaining / 8];
-                        while (bytesRemaining > 0) {
-                            int x = (short) io.readShort();
-                            int y = (short) io.readShort();
-                            int width = io.readShort();
-                            int height = io.readShort();
-
-                            bytesRemaining -= 8;
-                            _clipRectangles[i++] = new Rect(x + clipXOrigin, y + clipYOrigin, x + clipXOrigin + width, y + clipYOrigin + height);
+                        int n = bytesRemaining / 8;
+                        int[] rects = new int[n * 4];
+
+                        for (int i = 0; i < rects.length; i += 4) {
+                            rects[i] = (short) io.readShort();
+                            rects[i + 1] = (short) io.readShort();
+                            rects[i + 2] = io.readShort();
+                            rects[i + 3] = io.readShort();
                         }
+
+                        _attributes[AttrClipXOrigin] = clipXOrigin;
+                        _attributes[AttrClipYOrigin] = clipYOrigin;
+                        setClipRectangles(rects, n, arg);
                     }
                 }
                 break;
@@ -367,9 +497,12 @@ public class GContext extends Resource {
             case AttrTile:
             case AttrStipple:
             case AttrFont:
-            case AttrClipMask:
                 _attributes[maskBit] = io.readInt();
                 break;
+            case AttrClipMask:    // Clip pixmaps aren't supported.
+                _attributes[maskBit] = io.readInt();
+                _clipRegion = null;
+                break;
             case AttrLineWidth:
             case AttrDashOffset:
                 _attributes[maskBit] = io.readShort();
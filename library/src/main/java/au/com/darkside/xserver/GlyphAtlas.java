@@ -0,0 +1,319 @@
+package au.com.darkside.xserver;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class draws text from a cache of rasterized glyphs.
+ * Each glyph of a font is drawn once into an alpha-only atlas bitmap, and
+ * text is then drawn by copying the glyphs out of the atlas in the paint's
+ * color, which is much cheaper than laying out and rasterizing the text
+ * on every request.
+ * Glyphs are packed into the atlas in rows. When it fills up it is
+ * cleared and refilled with the glyphs in use. Only the most recently
+ * used fonts have atlases, and glyphs too large for an atlas are drawn
+ * as text. So are all glyphs of an atlas that has been released while
+ * still in use, so it never allocates another bitmap.
+ *
+ * @author Matthew Kwan
+ */
+public class GlyphAtlas {
+    private final FontInfo _info;
+    private final Paint _rasterPaint;
+    private final Glyph[][] _pages = new Glyph[256][];
+    private final Rect _bounds = new Rect();
+    private final Rect _src = new Rect();
+    private final Rect _dst = new Rect();
+    private Bitmap _bitmap = null;
+    private Canvas _canvas = null;
+    private int _rowX = 0;
+    private int _rowY = 0;
+    private int _rowHeight = 0;
+    private boolean _released = false;
+
+    private static final int AtlasSize = 512;
+    private static final int MaxGlyphSize = AtlasSize / 4;
+    private static final int Padding = 1;
+    private static final int MaxAtlases = 8;
+
+    private static final AtomicLong _drawnCount = new AtomicLong();
+    private static final AtomicLong _rasterizedCount = new AtomicLong();
+    private static final AtomicLong _resetCount = new AtomicLong();
+    private static final Map<FontInfo, GlyphAtlas> _atlases = new LinkedHashMap<FontInfo, GlyphAtlas>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FontInfo, GlyphAtlas> eldest) {
+            if (size() <= MaxAtlases) return false;
+
+            eldest.getValue().release();
+
+            return true;
+        }
+    };
+
+    /**
+     * Return the atlas for a font, creating it if necessary.
+     *
+     * @param info The font.
+     * @return The font's glyph atlas.
+     */
+    public static GlyphAtlas get(FontInfo info) {
+        synchronized (_atlases) {
+            GlyphAtlas atlas = _atlases.get(info);
+
+            if (atlas == null) {
+                atlas = new GlyphAtlas(info);
+                _atlases.put(info, atlas);
+            }
+
+            return atlas;
+        }
+    }
+
+    /**
+     * Return the number of glyphs drawn from atlases.
+     *
+     * @return The number of glyphs drawn.
+     */
+    public static long getDrawnCount() {
+        return _drawnCount.get();
+    }
+
+    /**
+     * Return the number of glyphs rasterized into atlases.
+     *
+     * @return The number of glyphs rasterized.
+     */
+    public static long getRasterizedCount() {
+        return _rasterizedCount.get();
+    }
+
+    /**
+     * Return the number of times a full atlas has been cleared.
+     *
+     * @return The number of atlas resets.
+     */
+    public static long getResetCount() {
+        return _resetCount.get();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param info The font whose glyphs are cached.
+     */
+    private GlyphAtlas(FontInfo info) {
+        _info = info;
+        _rasterPaint = info.createPaint();
+        _rasterPaint.setColor(0xffffffff);
+    }
+
+    /**
+     * Free the atlas bitmap. Called when the atlas is dropped from the
+     * cache, though a thread may still be about to draw with it.
+     */
+    public synchronized void release() {
+        _released = true;
+        if (_bitmap != null) {
+            _bitmap.recycle();
+            _bitmap = null;
+            _canvas = null;
+        }
+
+        forgetGlyphs();
+    }
+
+    /**
+     * Forget all the cached glyphs and start filling the atlas again.
+     */
+    private void forgetGlyphs() {
+        for (int i = 0; i < _pages.length; i++)
+            _pages[i] = null;
+
+        _rowX = 0;
+        _rowY = 0;
+        _rowHeight = 0;
+    }
+
+    /**
+     * Return a glyph, rasterizing it into the atlas if it isn't there.
+     *
+     * @param c The character.
+     * @return The glyph.
+     */
+    private Glyph getGlyph(char c) {
+        Glyph[] page = _pages[c >> 8];
+
+        if (page == null) page = _pages[c >> 8] = new Glyph[256];
+
+        Glyph g = page[c & 255];
+
+        if (g != null) return g;
+
+        char[] chars = {c};
+        float[] widths = new float[1];
+
+        _rasterPaint.getTextWidths(chars, 0, 1, widths);
+        _rasterPaint.getTextBounds(chars, 0, 1, _bounds);
+
+        g = new Glyph(widths[0]);
+        if (!_bounds.isEmpty()) {
+            int w = _bounds.width() + 2 * Padding;
+            int h = _bounds.height() + 2 * Padding;
+
+            if (w > MaxGlyphSize || h > MaxGlyphSize || _released) {
+                g.drawAsText = true;
+            } else {
+                if (!allocate(w, h)) {    // The atlas is full.
+                    _resetCount.incrementAndGet();
+                    _bitmap.eraseColor(0);
+                    forgetGlyphs();
+                    allocate(w, h);
+                    page = _pages[c >> 8] = new Glyph[256];
+                }
+
+                g.left = _bounds.left - Padding;
+                g.top = _bounds.top - Padding;
+                g.width = w;
+                g.height = h;
+                g.atlasX = _rowX - w;
+                g.atlasY = _rowY;
+                _canvas.drawText(chars, 0, 1, g.atlasX - g.left, g.atlasY - g.top, _rasterPaint);
+                _rasterizedCount.incrementAndGet();
+            }
+        }
+
+        page[c & 255] = g;
+
+        return g;
+    }
+
+    /**
+     * Reserve space in the atlas. On success, the space ends just before
+     * _rowX, starting at _rowY.
+     *
+     * @param w The width needed.
+     * @param h The height needed.
+     * @return True if there was room.
+     */
+    private boolean allocate(int w, int h) {
+        if (_bitmap == null) {
+            _bitmap = Bitmap.createBitmap(AtlasSize, AtlasSize, Bitmap.Config.ALPHA_8);
+            _canvas = new Canvas(_bitmap);
+        }
+
+        if (_rowX + w > AtlasSize) {    // Start a new row.
+            _rowY += _rowHeight;
+            _rowX = 0;
+            _rowHeight = 0;
+        }
+
+        if (_rowY + h > AtlasSize) return false;
+
+        _rowX += w;
+        if (h > _rowHeight) _rowHeight = h;
+
+        return true;
+    }
+
+    /**
+     * Return the width of some text.
+     *
+     * @param chars  The text.
+     * @param length Number of characters.
+     * @return The width of the text.
+     */
+    public synchronized float measureText(char[] chars, int length) {
+        float width = 0;
+
+        for (int i = 0; i < length; i++)
+            width += getGlyph(chars[i]).advance;
+
+        return width;
+    }
+
+    /**
+     * Draw text in the paint's color and drawing function.
+     *
+     * @param canvas The canvas to draw on.
+     * @param chars  The text.
+     * @param length Number of characters.
+     * @param x      X coordinate of the text's origin.
+     * @param y      Y coordinate of the text's baseline.
+     * @param paint  The paint to draw with. Glyphs too large for the atlas
+     *               are drawn with its typeface.
+     * @param bounds Return value. The text's bounding rectangle.
+     * @return The X coordinate after the text.
+     */
+    public synchronized float drawText(Canvas canvas, char[] chars, int length, float x, float y, Paint paint, Rect bounds) {
+        int iy = Math.round(y);
+        int left = (int) x;
+        int top = iy - _info.getAscent();
+        int right = left;
+        int bottom = iy + _info.getDescent();
+
+        for (int i = 0; i < length; i++) {
+            Glyph g = getGlyph(chars[i]);
+            Rect r = null;
+
+            if (g.drawAsText) {
+                canvas.drawText(chars, i, 1, x, y, paint);
+                paint.getTextBounds(chars, i, 1, _bounds);
+                _bounds.offset((int) x, iy);
+                r = _bounds;
+            } else if (g.width > 0) {
+                int ix = Math.round(x);
+
+                _src.set(g.atlasX, g.atlasY, g.atlasX + g.width, g.atlasY + g.height);
+                _dst.set(ix + g.left, iy + g.top, ix + g.left + g.width, iy + g.top + g.height);
+                canvas.drawBitmap(_bitmap, _src, _dst, paint);
+                _drawnCount.incrementAndGet();
+                r = _dst;
+            }
+
+            if (r != null) {
+                if (r.left < left) left = r.left;
+                if (r.top < top) top = r.top;
+                if (r.right > right) right = r.right;
+                if (r.bottom > bottom) bottom = r.bottom;
+            }
+
+            x += g.advance;
+        }
+
+        if ((int) x > right) right = (int) x;
+
+        bounds.set(left, top, right, bottom);
+
+        return x;
+    }
+
+    /**
+     * A glyph's position in the atlas and its metrics. The left and top
+     * offsets are from the glyph's origin to its corner in the atlas.
+     */
+    private static class Glyph {
+        public final float advance;
+        public boolean drawAsText = false;
+        public int left = 0;
+        public int top = 0;
+        public int width = 0;
+        public int height = 0;
+        public int atlasX = 0;
+        public int atlasY = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param advance The distance to the next glyph's origin.
+         */
+        public Glyph(float advance) {
+            this.advance = advance;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package au.com.darkside.xserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records a distribution of durations.
+ * Buckets are log-linear, with 16 sub-buckets per power of two, so every
+ * value is recorded to within about 6%. Recording doesn't allocate or
+ * lock, so it can be called from any thread on every request.
+ *
+ * @author Matthew Kwan
+ */
+public class Histogram {
+    private final AtomicLongArray _counts;
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    private static final int SubBits = 4;
+    private static final int SubBuckets = 1 << SubBits;
+    private static final int MaxExponent = 36;    // About 68 seconds in nanoseconds.
+    private static final int NumBuckets = (MaxExponent - SubBits + 1) * SubBuckets;
+
+    /**
+     * Constructor.
+     */
+    public Histogram() {
+        _counts = new AtomicLongArray(NumBuckets);
+    }
+
+    /**
+     * Return the bucket a value falls in.
+     *
+     * @param value The value.
+     * @return The bucket index.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SubBuckets) return (int) Math.max(value, 0);
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+
+        if (exp >= MaxExponent) return NumBuckets - 1;
+
+        int sub = (int) (value >>> (exp - SubBits)) & (SubBuckets - 1);
+
+        return (exp - SubBits + 1) * SubBuckets + sub;
+    }
+
+    /**
+     * Return the highest value that falls in a bucket.
+     *
+     * @param index The bucket index.
+     * @return The highest value in the bucket.
+     */
+    private static long bucketLimit(int index) {
+        if (index < SubBuckets) return index;
+
+        int exp = index / SubBuckets + SubBits - 1;
+        long sub = index & (SubBuckets - 1);
+
+        return ((SubBuckets + sub + 1) << (exp - SubBits)) - 1;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value The value, usually in nanoseconds.
+     */
+    public void record(long value) {
+        _counts.incrementAndGet(bucketIndex(value));
+        _total.incrementAndGet();
+        _sum.addAndGet(value);
+
+        long max;
+
+        while (value > (max = _max.get()))
+            if (_max.compareAndSet(max, value)) break;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return The number of values.
+     */
+    public long getCount() {
+        return _total.get();
+    }
+
+    /**
+     * Return the sum of the values recorded.
+     *
+     * @return The sum of the values.
+     */
+    public long getSum() {
+        return _sum.get();
+    }
+
+    /**
+     * Return the largest value recorded.
+     *
+     * @return The largest value.
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * Return the mean of the values recorded.
+     *
+     * @return The mean value, or zero if nothing has been recorded.
+     */
+    public long getMean() {
+        long n = _total.get();
+
+        if (n == 0) return 0;
+
+        return _sum.get() / n;
+    }
+
+    /**
+     * Return the value below which a percentage of the values fall.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The upper bound of the bucket containing the percentile.
+     */
+    public long getPercentile(double percentile) {
+        long n = _total.get();
+
+        if (n == 0) return 0;
+
+        long target = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+
+        if (target < 1) target = 1;
+
+        for (int i = 0; i < NumBuckets; i++) {
+            seen += _counts.get(i);
+            if (seen >= target) {
+                if (i == NumBuckets - 1) return _max.get();    // Overflow bucket.
+
+                return Math.min(bucketLimit(i), _max.get());
+            }
+        }
+
+        return _max.get();
+    }
+
+    /**
+     * Clear all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < NumBuckets; i++)
+            _counts.set(i, 0);
+
+        _total.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+}
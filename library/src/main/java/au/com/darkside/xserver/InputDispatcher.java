@@ -0,0 +1,264 @@
+package au.com.darkside.xserver;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * This thread delivers input from the UI thread to the X clients.
+ * The UI thread adds pointer motion, button and key events to a ring
+ * buffer without waiting for the server lock or for any client, and this
+ * thread looks up the windows, sends the events and flushes the clients'
+ * output. Motion that hasn't been delivered yet is replaced by newer
+ * motion, so a busy server only sees the latest pointer position.
+ * The time from the Android input event to the flushed X event is
+ * recorded in the request statistics.
+ *
+ * @author Matthew Kwan
+ */
+public class InputDispatcher extends Thread {
+    public static final int Motion = 0;
+    public static final int Button = 1;
+    public static final int Key = 2;
+
+    private final XServer _xServer;
+    private final ScreenView _screen;
+    private final int[] _types = new int[RingSize];
+    private final int[] _args1 = new int[RingSize];
+    private final int[] _args2 = new int[RingSize];
+    private final long[] _times = new long[RingSize];
+    private int _head = 0;
+    private int _tail = 0;
+    private final Vector<Client> _flushClients = new Vector<Client>();
+    private boolean _flushDeferred = false;
+    private volatile boolean _cancelled = false;
+
+    private static final int RingSize = 256;    // Must be a power of two.
+    private static final int EventFlushRetry = 5;    // Milliseconds.
+
+    /**
+     * Constructor.
+     *
+     * @param xServer The X server.
+     * @param screen  The screen receiving the input.
+     */
+    public InputDispatcher(XServer xServer, ScreenView screen) {
+        super("X11 input");
+        _xServer = xServer;
+        _screen = screen;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue a pointer motion event.
+     *
+     * @param x         New X coordinate.
+     * @param y         New Y coordinate.
+     * @param eventTime Uptime of the Android event, in milliseconds.
+     *                  Zero if unknown.
+     */
+    public void postMotion(int x, int y, long eventTime) {
+        post(Motion, x, y, eventTime);
+    }
+
+    /**
+     * Queue a pointer button event.
+     *
+     * @param button    The button that was pressed/released.
+     * @param pressed   True if the button was pressed.
+     * @param eventTime Uptime of the Android event, in milliseconds.
+     *                  Zero if unknown.
+     */
+    public void postButton(int button, boolean pressed, long eventTime) {
+        post(Button, button, pressed ? 1 : 0, eventTime);
+    }
+
+    /**
+     * Queue a key event.
+     *
+     * @param keycode   The Android keycode of the key.
+     * @param pressed   True if the key was pressed.
+     * @param eventTime Uptime of the Android event, in milliseconds.
+     *                  Zero if unknown.
+     */
+    public void postKey(int keycode, boolean pressed, long eventTime) {
+        post(Key, keycode, pressed ? 1 : 0, eventTime);
+    }
+
+    /**
+     * Add an event to the ring buffer. If the buffer is full the event
+     * is dropped.
+     *
+     * @param type      The type of event.
+     * @param arg1      First argument.
+     * @param arg2      Second argument.
+     * @param eventTime Uptime of the Android event, in milliseconds.
+     */
+    private void post(int type, int arg1, int arg2, long eventTime) {
+        long delay = SystemClock.uptimeMillis() - eventTime;
+
+        if (eventTime <= 0 || delay < 0) delay = 0;
+
+        long time = System.nanoTime() - delay * 1000000L;
+
+        synchronized (this) {
+            if (type == Motion && _tail != _head) {
+                int last = (_tail - 1) & (RingSize - 1);
+
+                if (_types[last] == Motion) {    // Replace undelivered motion.
+                    _args1[last] = arg1;
+                    _args2[last] = arg2;
+                    return;
+                }
+            }
+
+            if (_tail - _head == RingSize) {
+                _xServer.getRequestStats().recordDroppedInput();
+                return;
+            }
+
+            int i = _tail & (RingSize - 1);
+
+            _types[i] = type;
+            _args1[i] = arg1;
+            _args2[i] = arg2;
+            _times[i] = time;
+            _tail++;
+            notify();
+        }
+    }
+
+    /**
+     * Arrange for a client's queued events to be flushed.
+     *
+     * @param client The client with queued events.
+     */
+    public synchronized void scheduleEventFlush(Client client) {
+        if (!_flushClients.contains(client)) _flushClients.add(client);
+
+        notify();
+    }
+
+    /**
+     * Cancel the thread. Input that hasn't been delivered is dropped.
+     */
+    public void cancel() {
+        _cancelled = true;
+        interrupt();
+    }
+
+    /**
+     * Has the thread been cancelled?
+     *
+     * @return True if the thread has been cancelled.
+     */
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    /**
+     * Deliver events until the thread is cancelled.
+     */
+    @Override
+    public void run() {
+        long[] times = new long[RingSize];
+
+        while (!_cancelled) {
+            boolean haveInput;
+            int n = 0;
+
+            synchronized (this) {
+                try {
+                    if (_head == _tail) {
+                        if (_flushClients.isEmpty()) wait();
+                        else if (_flushDeferred) wait(EventFlushRetry);
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                haveInput = (_head != _tail);
+            }
+
+            if (haveInput) {
+                InputOutput.deferFlushes(null);    // Never wait for a client while holding the lock.
+                _xServer.getLock().writeLock().lock();
+                try {
+                    while (n < RingSize) {
+                        int type, arg1, arg2;
+
+                        synchronized (this) {
+                            if (_head == _tail) break;
+
+                            int i = _head & (RingSize - 1);
+
+                            type = _types[i];
+                            arg1 = _args1[i];
+                            arg2 = _args2[i];
+                            times[n++] = _times[i];
+                            _head++;
+                        }
+
+                        _screen.dispatchInput(type, arg1, arg2);
+                    }
+                } finally {
+                    _xServer.getLock().writeLock().unlock();
+                    InputOutput.flushDeferred();
+                }
+            }
+
+            boolean flushed = flushEvents();
+
+            synchronized (this) {
+                _flushDeferred = !flushed;
+            }
+
+            RequestStats stats = _xServer.getRequestStats();
+
+            if (n > 0 && stats.isEnabled()) {
+                long now = System.nanoTime();
+
+                for (int i = 0; i < n; i++)
+                    stats.recordInputLatency(now - times[i]);
+            }
+        }
+    }
+
+    /**
+     * Flush the queued events of all the clients waiting for it.
+     * Clients whose output is backed up are kept for another try.
+     *
+     * @return False if some events are still being held back.
+     */
+    private boolean flushEvents() {
+        Client[] clients;
+
+        synchronized (this) {
+            if (_flushClients.isEmpty()) return true;
+
+            clients = _flushClients.toArray(new Client[0]);
+            _flushClients.clear();
+        }
+
+        int latency = _xServer.getMotionLatency();
+        boolean flushed = true;
+
+        for (Client c : clients) {
+            if (!c.isConnected()) continue;
+
+            try {
+                if (!c.getEventQueue().flush(latency)) {
+                    synchronized (this) {
+                        if (!_flushClients.contains(c)) _flushClients.add(c);
+                    }
+                    flushed = false;
+                }
+            } catch (IOException e) {
+                // The client's thread will notice the broken connection.
+            }
+        }
+
+        return flushed;
+    }
+}
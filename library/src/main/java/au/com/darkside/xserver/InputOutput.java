@@ -1,11 +1,14 @@
 package au.com.darkside.xserver;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * This class handles buffered bi-directional communications.
@@ -13,9 +16,33 @@ import android.util.Log;
  * @author Matthew Kwan
  */
 public class InputOutput {
-    private final BufferedInputStream _inStream;
-    private final BufferedOutputStream _outStream;
+    private final InputStream _inStream;
+    private final byte[] _inBuffer;
+    private final ByteBuffer _inView;
+    private int _inPosition = 0;
+    private int _inLimit = 0;
+    private final OutputStream _outStream;
+    private final WritableByteChannel _outChannel;
+    private final OutputListener _outputListener;
+    private final ArrayBlockingQueue<OutputChunk> _pendingChunks;
+    private final ArrayBlockingQueue<OutputChunk> _freeChunks;
+    private final WriterThread _writerThread;
+    private volatile IOException _writeException = null;
+    private volatile boolean _closed = false;
+    private volatile RequestStats _requestStats = null;
+    private byte[] _chunk = new byte[ChunkSize];
+    private int _chunkLength = 0;
     private boolean _msb = true;
+
+    private static final int ChunkSize = 16384;
+    private static final int InputBufferSize = 16384;
+    private static final int ChannelInputBufferSize = 4096;
+    private static final int MaxPendingChunks = 16;
+    private static final int MaxFreeChunks = 2;
+    private static final int MaxCopiedChunk = ChunkSize / 4;
+    private static final OutputChunk CloseChunk = new OutputChunk(new byte[0]);
+    private static final int MaxDeferredChunk = 64 * ChunkSize;
+    private static final ThreadLocal<DeferredFlushes> _deferredFlushes = new ThreadLocal<DeferredFlushes>();
     private static final byte[] PadBytes = new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
 
     /**
@@ -25,8 +52,38 @@ public class InputOutput {
      * @throws IOException
      */
     public InputOutput(Socket socket) throws IOException {
-        _inStream = new BufferedInputStream(socket.getInputStream(), 16384);
-        _outStream = new BufferedOutputStream(socket.getOutputStream(), 16384);
+        _inStream = socket.getInputStream();
+        _inBuffer = new byte[InputBufferSize];
+        _inView = ByteBuffer.wrap(_inBuffer);
+        _outStream = socket.getOutputStream();
+        _outChannel = null;
+        _outputListener = null;
+        _pendingChunks = new ArrayBlockingQueue<OutputChunk>(MaxPendingChunks);
+        _freeChunks = new ArrayBlockingQueue<OutputChunk>(MaxFreeChunks);
+        _writerThread = new WriterThread();
+        _writerThread.start();
+    }
+
+    /**
+     * Constructor for a non-blocking channel.
+     * No writer thread is started. Instead the listener is told whenever
+     * output is queued, and is expected to call writeTo() when the
+     * channel can accept more bytes.
+     *
+     * @param in       Stream of bytes received from the channel.
+     * @param out      The channel to write to.
+     * @param listener Notified when output is queued.
+     */
+    public InputOutput(InputStream in, WritableByteChannel out, OutputListener listener) {
+        _inStream = in;
+        _inBuffer = new byte[ChannelInputBufferSize];
+        _inView = ByteBuffer.wrap(_inBuffer);
+        _outStream = null;
+        _outChannel = out;
+        _outputListener = listener;
+        _pendingChunks = new ArrayBlockingQueue<OutputChunk>(MaxPendingChunks);
+        _freeChunks = new ArrayBlockingQueue<OutputChunk>(MaxFreeChunks);
+        _writerThread = null;
     }
 
     /**
@@ -36,6 +93,33 @@ public class InputOutput {
      */
     public void setMSB(boolean msb) {
         _msb = msb;
+        _inView.order(msb ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Make sure at least n bytes are in the input buffer, blocking until
+     * they arrive.
+     *
+     * @param n The number of bytes required. At most the buffer size.
+     * @throws IOException
+     */
+    private void fillInput(int n) throws IOException {
+        if (_inLimit - _inPosition >= n) return;
+
+        if (_inPosition > 0) {    // Move the unread bytes to the start.
+            int length = _inLimit - _inPosition;
+
+            System.arraycopy(_inBuffer, _inPosition, _inBuffer, 0, length);
+            _inPosition = 0;
+            _inLimit = length;
+        }
+
+        while (_inLimit < n) {
+            int count = _inStream.read(_inBuffer, _inLimit, _inBuffer.length - _inLimit);
+
+            if (count < 0) throw new IOException();
+            _inLimit += count;
+        }
     }
 
     /**
@@ -45,10 +129,9 @@ public class InputOutput {
      * @throws IOException
      */
     public int readByte() throws IOException {
-        int n = _inStream.read();
+        if (_inPosition == _inLimit) fillInput(1);
 
-        if (n < 0) throw new IOException();
-        else return n;
+        return _inBuffer[_inPosition++] & 0xff;
     }
 
     /**
@@ -60,8 +143,18 @@ public class InputOutput {
      * @throws IOException
      */
     public void readBytes(byte[] ba, int offset, int length) throws IOException {
+        int n = _inLimit - _inPosition;
+
+        if (n > length) n = length;
+
+        System.arraycopy(_inBuffer, _inPosition, ba, offset, n);
+        _inPosition += n;
+        offset += n;
+        length -= n;
+
+        // Large reads bypass the buffer.
         while (length > 0) {
-            int n = _inStream.read(ba, offset, length);
+            n = _inStream.read(ba, offset, length);
 
             if (n < 0) {
                 throw new IOException();
@@ -127,21 +220,19 @@ public class InputOutput {
     }
 
     /**
-     * Read a 16-bit integer from the output stream.
+     * Read a 16-bit integer from the input stream.
      *
      * @return A 16-bit integer in the range 0 to 65535.
      * @throws IOException
      */
     public int readShort() throws IOException {
-        if (_msb) {
-            int n = readByte();
+        fillInput(2);
 
-            return (n << 8) | readByte();
-        } else {
-            int n = readByte();
+        int n = _inView.getShort(_inPosition) & 0xffff;
 
-            return n | (readByte() << 8);
-        }
+        _inPosition += 2;
+
+        return n;
     }
 
     /**
@@ -151,17 +242,11 @@ public class InputOutput {
      * @throws IOException
      */
     public int readInt() throws IOException {
-        int n = readByte();
+        fillInput(4);
 
-        if (_msb) {
-            n = (n << 8) | readByte();
-            n = (n << 8) | readByte();
-            n = (n << 8) | readByte();
-        } else {
-            n |= readByte() << 8;
-            n |= readByte() << 16;
-            n |= readByte() << 24;
-        }
+        int n = _inView.getInt(_inPosition);
+
+        _inPosition += 4;
 
         return n;
     }
@@ -173,29 +258,29 @@ public class InputOutput {
      * @throws IOException
      */
     public long readLong() throws IOException {
-        long n = readByte();
+        fillInput(8);
 
-        if (_msb) {
-            n = (n << 8) | (long)readByte();
-            n = (n << 8) | (long)readByte();
-            n = (n << 8) | (long)readByte();
-            n = (n << 8) | (long)readByte();
-            n = (n << 8) | (long)readByte();
-            n = (n << 8) | (long)readByte();
-            n = (n << 8) | (long)readByte();
-        } else {
-            n |= (long)readByte() << 8;
-            n |= (long)readByte() << 16;
-            n |= (long)readByte() << 24;
-            n |= (long)readByte() << 32;
-            n |= (long)readByte() << 40;
-            n |= (long)readByte() << 48;
-            n |= (long)readByte() << 56;
-        }
+        long n = _inView.getLong(_inPosition);
+
+        _inPosition += 8;
 
         return n;
     }
 
+    /**
+     * Read 32-bit integers from the input stream without consuming them.
+     * The next read will return the same values again.
+     *
+     * @param values The array to store the integers to.
+     * @param count  The number of integers to read.
+     * @throws IOException
+     */
+    public void peekInts(int[] values, int count) throws IOException {
+        fillInput(count * 4);
+        for (int i = 0; i < count; i++)
+            values[i] = _inView.getInt(_inPosition + i * 4);
+    }
+
     /**
      * Skip bytes from the input stream.
      *
@@ -203,6 +288,16 @@ public class InputOutput {
      * @throws IOException
      */
     public void readSkip(int n) throws IOException {
+        int buffered = _inLimit - _inPosition;
+
+        if (n <= buffered) {
+            if (n > 0) _inPosition += n;
+            return;
+        }
+
+        _inPosition = _inLimit;
+        n -= buffered;
+
         int avaiable = _inStream.available();
         if(n > avaiable) // to avoid blocking
             n = avaiable;
@@ -216,8 +311,10 @@ public class InputOutput {
      * @param n The byte to write.
      * @throws IOException
      */
-    public void writeByte(byte n) throws IOException {
-        _outStream.write(n);
+    public synchronized void writeByte(byte n) throws IOException {
+        if (_chunkLength == _chunk.length) queueChunk();
+
+        _chunk[_chunkLength++] = n;
     }
 
     /**
@@ -228,8 +325,19 @@ public class InputOutput {
      * @param length The number of bytes to write.
      * @throws IOException
      */
-    public void writeBytes(byte[] ba, int offset, int length) throws IOException {
-        _outStream.write(ba, offset, length);
+    public synchronized void writeBytes(byte[] ba, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (_chunkLength == _chunk.length) queueChunk();
+
+            int n = _chunk.length - _chunkLength;
+
+            if (n > length) n = length;
+
+            System.arraycopy(ba, offset, _chunk, _chunkLength, n);
+            _chunkLength += n;
+            offset += n;
+            length -= n;
+        }
     }
 
     /**
@@ -238,14 +346,21 @@ public class InputOutput {
      * @param n The short to write.
      * @throws IOException
      */
-    public void writeShort(short n) throws IOException {
+    public synchronized void writeShort(short n) throws IOException {
+        if (_chunkLength + 2 > _chunk.length) queueChunk();
+
+        final byte[] chunk = _chunk;
+        final int i = _chunkLength;
+
         if (_msb) {
-            _outStream.write((byte) ((n >> 8) & 0xff));
-            _outStream.write((byte) (n & 0xff));
+            chunk[i] = (byte) (n >> 8);
+            chunk[i + 1] = (byte) n;
         } else {
-            _outStream.write((byte) (n & 0xff));
-            _outStream.write((byte) ((n >> 8) & 0xff));
+            chunk[i] = (byte) n;
+            chunk[i + 1] = (byte) (n >> 8);
         }
+
+        _chunkLength = i + 2;
     }
 
     /**
@@ -254,18 +369,25 @@ public class InputOutput {
      * @param n The integer to write.
      * @throws IOException
      */
-    public void writeInt(int n) throws IOException {
+    public synchronized void writeInt(int n) throws IOException {
+        if (_chunkLength + 4 > _chunk.length) queueChunk();
+
+        final byte[] chunk = _chunk;
+        final int i = _chunkLength;
+
         if (_msb) {
-            _outStream.write((byte) ((n >> 24) & 0xff));
-            _outStream.write((byte) ((n >> 16) & 0xff));
-            _outStream.write((byte) ((n >> 8) & 0xff));
-            _outStream.write((byte) (n & 0xff));
+            chunk[i] = (byte) (n >> 24);
+            chunk[i + 1] = (byte) (n >> 16);
+            chunk[i + 2] = (byte) (n >> 8);
+            chunk[i + 3] = (byte) n;
         } else {
-            _outStream.write((byte) ((n) & 0xff));
-            _outStream.write((byte) ((n >> 8) & 0xff));
-            _outStream.write((byte) ((n >> 16) & 0xff));
-            _outStream.write((byte) ((n >> 24) & 0xff));
+            chunk[i] = (byte) n;
+            chunk[i + 1] = (byte) (n >> 8);
+            chunk[i + 2] = (byte) (n >> 16);
+            chunk[i + 3] = (byte) (n >> 24);
         }
+
+        _chunkLength = i + 4;
     }
 
     /**
@@ -274,25 +396,13 @@ public class InputOutput {
      * @param n The integer to write.
      * @throws IOException
      */
-    public void writeLong(long n) throws IOException {
+    public synchronized void writeLong(long n) throws IOException {
         if (_msb) {
-            _outStream.write((byte) ((n >> 56) & 0xff));
-            _outStream.write((byte) ((n >> 48) & 0xff));
-            _outStream.write((byte) ((n >> 40) & 0xff));
-            _outStream.write((byte) ((n >> 32) & 0xff));
-            _outStream.write((byte) ((n >> 24) & 0xff));
-            _outStream.write((byte) ((n >> 16) & 0xff));
-            _outStream.write((byte) ((n >> 8) & 0xff));
-            _outStream.write((byte) (n & 0xff));
+            writeInt((int) (n >> 32));
+            writeInt((int) n);
         } else {
-            _outStream.write((byte) ((n) & 0xff));
-            _outStream.write((byte) ((n >> 8) & 0xff));
-            _outStream.write((byte) ((n >> 16) & 0xff));
-            _outStream.write((byte) ((n >> 24) & 0xff));
-            _outStream.write((byte) ((n >> 32) & 0xff));
-            _outStream.write((byte) ((n >> 40) & 0xff));
-            _outStream.write((byte) ((n >> 48) & 0xff));
-            _outStream.write((byte) ((n >> 56) & 0xff));
+            writeInt((int) n);
+            writeInt((int) (n >> 32));
         }
     }
 
@@ -302,49 +412,390 @@ public class InputOutput {
      * @param n The number of bytes to write.
      * @throws IOException
      */
-    public void writePadBytes(int n) throws IOException {
+    public synchronized void writePadBytes(int n) throws IOException {
         final int max = PadBytes.length;
 
         while (n > max) {
-            _outStream.write(PadBytes, 0, max);
+            writeBytes(PadBytes, 0, max);
             n -= max;
         }
 
-        if (n > 0) _outStream.write(PadBytes, 0, n);
+        if (n > 0) writeBytes(PadBytes, 0, n);
     }
 
     /**
-     * Flush all unwritten output bytes in own background thread.
+     * Hand all unwritten output bytes to the writer thread.
+     * This doesn't wait for the bytes to reach the socket. The writer
+     * sends everything that has been queued and then flushes the socket
+     * once, so bursts of events end up in a single write.
      *
      * @throws IOException
      */
     public synchronized void flush() throws IOException {
-        Thread t = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    synchronized(this){
-                        _outStream.flush();
-                    }
-                } catch (IOException e) {
-                    Log.e("FATAL", e.toString());
-                }
+        if (_chunkLength == 0) return;
+
+        DeferredFlushes deferred = _deferredFlushes.get();
+
+        if (deferred != null && deferred.owner != this) {
+            deferred.add(this);
+            return;
+        }
+
+        RequestStats stats = _requestStats;
+
+        if (stats == null || !stats.isEnabled()) {
+            queueChunk();
+        } else {
+            long start = System.nanoTime();
+
+            queueChunk();
+            stats.recordFlush(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stop the calling thread from waiting for other clients to read
+     * their output, so it can't stall while it holds the server lock.
+     * Until flushDeferred() is called its flushes are postponed, and if a
+     * client's queue is full its output buffer grows instead, up to
+     * MaxDeferredChunk. A client that falls further behind than that is
+     * disconnected.
+     *
+     * @param owner The output of the client whose request is being
+     *              processed. It is waiting for the reply, so its output
+     *              is written as usual. May be null.
+     */
+    public static void deferFlushes(InputOutput owner) {
+        if (_deferredFlushes.get() == null) _deferredFlushes.set(new DeferredFlushes(owner));
+    }
+
+    /**
+     * Flush the output the calling thread has written since
+     * deferFlushes(), waiting for room if necessary. Write errors are
+     * left for the clients' own threads to notice.
+     */
+    public static void flushDeferred() {
+        DeferredFlushes deferred = _deferredFlushes.get();
+
+        if (deferred == null) return;
+
+        _deferredFlushes.remove();
+        for (InputOutput io : deferred.handles) {
+            try {
+                io.flush();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Set where to record output timing statistics.
+     *
+     * @param stats The statistics to record to. Can be null.
+     */
+    public void setRequestStats(RequestStats stats) {
+        _requestStats = stats;
+    }
+
+    /**
+     * Is output waiting to be written to the client?
+     *
+     * @return True if queued output hasn't been written yet.
+     */
+    public boolean isBacklogged() {
+        return !_pendingChunks.isEmpty();
+    }
+
+    /**
+     * Queue the current output chunk for the writer thread, and start
+     * a new one. Blocks if too many chunks are waiting to be written,
+     * unless the thread is deferring its flushes, in which case the
+     * chunk is enlarged to hold more, up to a limit.
+     * A small partial chunk is copied into an array of its own size, so
+     * a burst of small flushes doesn't tie up a full buffer each.
+     *
+     * @throws IOException
+     */
+    private void queueChunk() throws IOException {
+        if (_writeException != null) throw _writeException;
+
+        if (_closed) throw new IOException("Output closed");
+
+        DeferredFlushes deferred = _deferredFlushes.get();
+
+        if (deferred != null && deferred.owner != this && _pendingChunks.remainingCapacity() == 0) {
+            if (_chunk.length >= MaxDeferredChunk) abandonOutput();
+
+            byte[] data = new byte[Math.min(_chunk.length * 2, MaxDeferredChunk)];
+
+            System.arraycopy(_chunk, 0, data, 0, _chunkLength);
+            _chunk = data;
+            deferred.add(this);
+            return;
+        }
+
+        OutputChunk chunk;
+
+        if (_chunkLength <= MaxCopiedChunk) {
+            chunk = new OutputChunk(new byte[_chunkLength]);
+            System.arraycopy(_chunk, 0, chunk.data, 0, _chunkLength);
+            chunk.length = _chunkLength;
+        } else {
+            chunk = _freeChunks.poll();
+            if (chunk == null) chunk = new OutputChunk(new byte[ChunkSize]);
+
+            byte[] data = chunk.data;
+
+            chunk.data = _chunk;
+            chunk.length = _chunkLength;
+            _chunk = data;
+        }
+
+        _chunkLength = 0;
+
+        try {
+            _pendingChunks.put(chunk);
+        } catch (InterruptedException e) {
+            // The chunk has been taken out of the stream, so the output
+            // can't continue without desynchronizing the client.
+            _writeException = new IOException("Interrupted while queueing output");
+            Thread.currentThread().interrupt();
+            throw _writeException;
+        }
+
+        if (_outputListener != null) _outputListener.outputQueued(this);
+    }
+
+    /**
+     * Give up on a client that has stopped reading its output. The output
+     * is discarded and the connection is made to fail, so the client is
+     * disconnected.
+     *
+     * @throws IOException
+     */
+    private void abandonOutput() throws IOException {
+        _writeException = new IOException("Client isn't reading its output");
+        _chunk = new byte[ChunkSize];
+        _chunkLength = 0;
+        _pendingChunks.clear();
+
+        if (_outputListener != null) {    // The listener's next write will fail.
+            _outputListener.outputQueued(this);
+        } else {
+            try {
+                _inStream.close();    // Wakes the client's thread.
+            } catch (IOException e) {
             }
-        });
-        t.start();
-        try{
-            t.join();
-        }catch (InterruptedException e) {
-            Log.e("FATAL", e.toString());
         }
+
+        throw _writeException;
+    }
+
+    /**
+     * Keep a written chunk for reuse if it holds a full-sized buffer and
+     * there aren't already enough spare ones.
+     *
+     * @param chunk The written chunk.
+     */
+    private void recycleChunk(OutputChunk chunk) {
+        if (chunk.data.length != ChunkSize) return;
+
+        chunk.offset = 0;
+        chunk.length = 0;
+        _freeChunks.offer(chunk);
+    }
+
+    /**
+     * Write as many queued chunks as the non-blocking channel will accept.
+     * Only one thread may call this.
+     *
+     * @return True if all queued output has been written.
+     * @throws IOException
+     */
+    public boolean writeTo() throws IOException {
+        OutputChunk chunk;
+
+        if (_writeException != null) throw _writeException;
+
+        try {
+            while ((chunk = _pendingChunks.peek()) != null) {
+                ByteBuffer bb = ByteBuffer.wrap(chunk.data, chunk.offset, chunk.length - chunk.offset);
+
+                chunk.offset += _outChannel.write(bb);
+                if (chunk.offset < chunk.length) return false;
+
+                _pendingChunks.poll();
+                recycleChunk(chunk);
+            }
+        } catch (IOException e) {
+            _writeException = e;
+            _pendingChunks.clear();
+            throw e;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return whether the handle has been closed.
+     *
+     * @return True if the handle has been closed.
+     */
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Return whether output is written by a non-blocking channel's
+     * listener rather than a writer thread.
+     *
+     * @return True if the channel is non-blocking.
+     */
+    public boolean isNonBlocking() {
+        return _writerThread == null;
     }
 
     /**
      * Close the input and output streams.
+     * A non-blocking channel is left for its listener to close once the
+     * remaining output has been written. Otherwise the writer thread
+     * closes the streams after writing the queued output. It isn't
+     * waited for, since callers may hold the server lock. If the queue is
+     * full the client isn't reading, so the output is abandoned and the
+     * streams closed straight away.
      *
      * @throws IOException
      */
     public void close() throws IOException {
-        _inStream.close();
-        _outStream.close();
+        try {
+            flush();
+        } catch (IOException e) {
+        }
+
+        if (_writerThread == null) {    // Non-blocking channel.
+            _closed = true;
+            _inStream.close();
+            _outputListener.outputQueued(this);    // Drain and close it.
+            return;
+        }
+
+        _closed = true;
+        if (!_pendingChunks.offer(CloseChunk)) {
+            _inStream.close();
+            _outStream.close();    // Fails the writer's blocked write.
+        }
+    }
+
+    /**
+     * A block of encoded bytes waiting to be written to the socket.
+     */
+    private static class OutputChunk {
+        public byte[] data;
+        public int offset = 0;
+        public int length = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param data The array holding the bytes.
+         */
+        public OutputChunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * The handles whose flushes a thread has deferred.
+     */
+    private static class DeferredFlushes {
+        public final InputOutput owner;
+        public final ArrayList<InputOutput> handles = new ArrayList<InputOutput>();
+
+        /**
+         * Constructor.
+         *
+         * @param owner The handle that isn't deferred. May be null.
+         */
+        public DeferredFlushes(InputOutput owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Add a handle to be flushed later.
+         *
+         * @param io The handle.
+         */
+        public void add(InputOutput io) {
+            if (!handles.contains(io)) handles.add(io);
+        }
+    }
+
+    /**
+     * Interface for being told when output is waiting to be written.
+     */
+    public interface OutputListener {
+        /**
+         * Called when output has been queued.
+         *
+         * @param io The handle with queued output.
+         */
+        void outputQueued(InputOutput io);
+    }
+
+    /**
+     * This thread writes queued output chunks to the socket.
+     * There is one writer per connection, and it lives as long as the
+     * connection does. It closes the streams when it finishes.
+     */
+    private class WriterThread extends Thread {
+        /**
+         * Constructor.
+         */
+        public WriterThread() {
+            super("X11 writer");
+            setDaemon(true);
+        }
+
+        /**
+         * Write chunks until the connection is closed or fails.
+         */
+        public void run() {
+            try {
+                for (; ; ) {
+                    OutputChunk chunk = _pendingChunks.take();
+                    long start = System.nanoTime();
+
+                    // Write everything that's queued, then flush once.
+                    while (chunk != null) {
+                        if (chunk == CloseChunk) {
+                            _outStream.flush();
+                            return;
+                        }
+
+                        _outStream.write(chunk.data, 0, chunk.length);
+                        recycleChunk(chunk);
+                        chunk = _pendingChunks.poll();
+                    }
+
+                    _outStream.flush();
+
+                    RequestStats stats = _requestStats;
+
+                    if (stats != null && stats.isEnabled()) stats.recordWrite(System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                _writeException = e;
+            } catch (InterruptedException e) {
+                _writeException = new IOException("Writer interrupted");
+            }
+
+            _pendingChunks.clear();
+
+            try {
+                _inStream.close();
+                _outStream.close();
+            } catch (IOException e) {
+            }
+        }
     }
 }
\ No newline at end of file
@@ -78,7 +78,7 @@ public class Pixmap extends Resource {
                 } else {
                     _xServer.freeResource(_id);
                     if (_client != null) _client.freeResource(this);
-                    _drawable.getBitmap().recycle();
+                    _drawable.recycle();
                 }
                 break;
             case RequestCode.GetGeometry:
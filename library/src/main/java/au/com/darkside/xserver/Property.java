@@ -1,8 +1,8 @@
 package au.com.darkside.xserver;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Vector;
 
 /**
  * This class implements a property.
@@ -16,16 +16,19 @@ public class Property {
      */
     static public abstract class OnPropertyChangedListener {
         /**
-         * @param data New data after the ChangeProperty request
+         * The data isn't passed in, because flattening it after every
+         * append would be quadratic. Call getData() if it's needed.
+         *
+         * @param p    The property changed by the ChangeProperty request
          * @param type Atom describing the property data (i.e. "UTF8_STRING")
          */
-        public abstract void onPropertyChanged(byte[] data, Atom type);
+        public abstract void onPropertyChanged(Property p, Atom type);
     }
 
     private final int _id;
     private int _type;
     private byte _format;
-    private byte[] _data = null;
+    private PropertyValue _value = null;
     private OnPropertyChangedListener _onPropertyChange = null;
 
     /**
@@ -49,18 +52,6 @@ public class Property {
         _format = format;
     }
 
-    /**
-     * Constructor.
-     *
-     * @param p The property to copy.
-     */
-    private Property(final Property p) {
-        _id = p._id;
-        _type = p._type;
-        _format = p._format;
-        _data = p._data;
-    }
-
     /**
      * Return the property's atom ID.
      *
@@ -75,14 +66,14 @@ public class Property {
      * @param d Data to set.
      */
     public void setData(byte[] d) {
-        _data = d;
+        _value = (d == null) ? null : new PropertyValue(d);
     }
 
     /**
      * @return Data held by this property
      */
     public byte[] getData() {
-        return _data;
+        return (_value == null) ? null : _value.toByteArray();
     }
 
     /**
@@ -98,7 +89,7 @@ public class Property {
      * @param d Data to set as string, will be converted to bytes.
      */
     public void setData(String d) {
-        _data = d.getBytes();
+        _value = new PropertyValue(d.getBytes());
     }
 
     /**
@@ -193,11 +184,22 @@ public class Property {
             return;
         }
 
-        Property p;
+        Property p = properties.get(pid);
+        long size = n;
 
-        if (properties.containsKey(pid)) {
-            p = properties.get(pid);
-        } else {
+        if (mode != 0 && p != null && (tid != p._type || format != p._format)) {
+            ErrorCode.write(client, ErrorCode.Match, RequestCode.ChangeProperty, 0);
+            return;
+        }
+
+        if (mode != 0 && p != null && p._value != null) size += p._value.length();
+
+        if (size > xServer.getMaxPropertySize()) {
+            ErrorCode.write(client, ErrorCode.Alloc, RequestCode.ChangeProperty, 0);
+            return;
+        }
+
+        if (p == null) {
             p = new Property(pid, tid, format);
             properties.put(pid, p);
         }
@@ -205,33 +207,16 @@ public class Property {
         if (mode == 0) {    // Replace.
             p._type = tid;
             p._format = format;
-            p._data = data;
+            p._value = new PropertyValue(data);
         } else {
-            if (tid != p._type || format != p._format) {
-                ErrorCode.write(client, ErrorCode.Match, RequestCode.ChangeProperty, 0);
-                return;
-            }
-
-            if (p._data == null) {
-                p._data = data;
-            } else {
-                byte[] d1, d2;
-
-                if (mode == 1) {    // Prepend.
-                    d1 = data;
-                    d2 = p._data;
-                } else {    // Append.
-                    d1 = p._data;
-                    d2 = data;
-                }
-
-                p._data = new byte[d1.length + d2.length];
-                System.arraycopy(d1, 0, p._data, 0, d1.length);
-                System.arraycopy(d2, 0, p._data, d1.length, d2.length);
-            }
+            if (p._value == null) p._value = new PropertyValue(data);
+            else if (mode == 1)    // Prepend.
+                p._value.prepend(data);
+            else    // Append.
+                p._value.append(data);
         }
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = w.getSelectingClients(EventCode.MaskPropertyChange)) != null) {
             for (Client c : sc) {
@@ -241,7 +226,7 @@ public class Property {
         }
 
         // trigger callback for event change if existent
-        if(p._onPropertyChange != null) p._onPropertyChange.onPropertyChanged(p._data, xServer.getAtom(tid));
+        if(p._onPropertyChange != null) p._onPropertyChange.onPropertyChanged(p, xServer.getAtom(tid));
     }
 
     /**
@@ -280,7 +265,9 @@ public class Property {
 
         byte format = 0;
         int bytesAfter = 0;
-        byte[] value = null;
+        PropertyValue value = null;
+        int offset = 0;
+        int length = 0;
         boolean generateNotify = false;
 
         if (properties.containsKey(pid)) {
@@ -290,11 +277,11 @@ public class Property {
             format = p._format;
 
             if (tid != 0 && tid != p._type) {
-                bytesAfter = (p._data == null) ? 0 : p._data.length;
+                bytesAfter = (p._value == null) ? 0 : p._value.length();
             } else {
                 int n, i, t, l;
 
-                n = (p._data == null) ? 0 : p._data.length;
+                n = (p._value == null) ? 0 : p._value.length();
                 i = 4 * longOffset;
                 t = n - i;
 
@@ -312,8 +299,9 @@ public class Property {
                 }
 
                 if (l > 0) {
-                    value = new byte[l];
-                    System.arraycopy(p._data, i, value, 0, l);
+                    value = p._value;
+                    offset = i;
+                    length = l;
                 }
 
                 if (delete && bytesAfter == 0) {
@@ -325,7 +313,6 @@ public class Property {
             tid = 0;
         }
 
-        int length = (value == null) ? 0 : value.length;
         int pad = -length & 3;
         int valueLength;
 
@@ -343,14 +330,14 @@ public class Property {
             io.writePadBytes(12);    // Unused.
 
             if (value != null) {
-                io.writeBytes(value, 0, value.length);    // Value.
+                value.write(io, offset, length);    // Value.
                 io.writePadBytes(pad);    // Unused.
             }
         }
         io.flush();
 
         if (generateNotify) {
-            Vector<Client> sc;
+            Client[] sc;
 
             if ((sc = w.getSelectingClients(EventCode.MaskPropertyChange)) != null) {
                 for (Client c : sc) {
@@ -394,7 +381,10 @@ public class Property {
 
         int[] aids = new int[n];
         Property[] props = new Property[n];
-        Property[] pcopy = new Property[n];
+        int[] types = new int[n];
+        byte[] formats = new byte[n];
+        PropertyValue[] values = new PropertyValue[n];
+        HashSet<Integer> seen = new HashSet<Integer>();
 
         for (int i = 0; i < n; i++)
             aids[i] = io.readInt();
@@ -403,25 +393,32 @@ public class Property {
             if (!xServer.atomExists(aids[i])) {
                 ErrorCode.write(client, ErrorCode.Atom, RequestCode.RotateProperties, aids[i]);
                 return;
+            } else if (!seen.add(aids[i])) {    // Listed more than once.
+                ErrorCode.write(client, ErrorCode.Match, RequestCode.RotateProperties, aids[i]);
+                return;
             } else if (!properties.containsKey(aids[i])) {
                 ErrorCode.write(client, ErrorCode.Match, RequestCode.RotateProperties, aids[i]);
                 return;
             } else {
                 props[i] = properties.get(aids[i]);
-                pcopy[i] = new Property(props[i]);
+                types[i] = props[i]._type;
+                formats[i] = props[i]._format;
+                values[i] = props[i]._value;
             }
         }
 
+        // The values are only moved between properties, so they're
+        // rotated by reference rather than copied.
         for (int i = 0; i < n; i++) {
             Property p = props[i];
-            Property pc = pcopy[(i + delta) % n];
+            int j = (i + delta) % n;
 
-            p._type = pc._type;
-            p._format = pc._format;
-            p._data = pc._data;
+            p._type = types[j];
+            p._format = formats[j];
+            p._value = values[j];
         }
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = w.getSelectingClients(EventCode.MaskPropertyChange)) != null) {
             for (int i = 0; i < n; i++) {
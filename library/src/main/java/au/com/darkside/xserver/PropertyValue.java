@@ -0,0 +1,200 @@
+package au.com.darkside.xserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * This class holds the value of a property as a list of byte segments,
+ * so data can be appended or prepended without copying what's already
+ * there. Small additions are copied into spare space at the ends of the
+ * first and last segments, which grow geometrically, so building a value
+ * a piece at a time takes amortized constant time per byte.
+ *
+ * @author Matthew Kwan
+ */
+public class PropertyValue {
+    private final ArrayDeque<Segment> _segments = new ArrayDeque<Segment>();
+    private int _length = 0;
+
+    private static final int MinSegmentSize = 256;
+    private static final int MaxSegmentSize = 65536;
+
+    /**
+     * Constructor.
+     *
+     * @param data The initial value. The array is used, not copied.
+     */
+    public PropertyValue(byte[] data) {
+        if (data.length > 0) _segments.add(new Segment(data, 0, data.length));
+
+        _length = data.length;
+    }
+
+    /**
+     * Return the length of the value.
+     *
+     * @return The length in bytes.
+     */
+    public int length() {
+        return _length;
+    }
+
+    /**
+     * Return the capacity of a new segment that will hold the data.
+     * Segments grow with the value, up to a limit.
+     *
+     * @param n Number of bytes to be stored.
+     * @return The capacity of the segment.
+     */
+    private int newSegmentSize(int n) {
+        int size = Math.max(MinSegmentSize, Math.min(_length, MaxSegmentSize));
+
+        return Math.max(size, n);
+    }
+
+    /**
+     * Add data to the end of the value.
+     *
+     * @param data The data to add. Large arrays are used, not copied.
+     */
+    public void append(byte[] data) {
+        int n = data.length;
+        int offset = 0;
+        Segment last = _segments.peekLast();
+
+        if (n == 0) return;
+
+        if (last != null && last.end < last.buf.length) {
+            int m = Math.min(n, last.buf.length - last.end);
+
+            System.arraycopy(data, 0, last.buf, last.end, m);
+            last.end += m;
+            offset = m;
+        }
+
+        if (offset == 0 && n >= MaxSegmentSize / 4) {
+            _segments.addLast(new Segment(data, 0, n));
+        } else if (offset < n) {
+            int m = n - offset;
+            Segment s = new Segment(new byte[newSegmentSize(m)], 0, m);
+
+            System.arraycopy(data, offset, s.buf, 0, m);
+            _segments.addLast(s);
+        }
+
+        _length += n;
+    }
+
+    /**
+     * Add data to the start of the value.
+     *
+     * @param data The data to add. Large arrays are used, not copied.
+     */
+    public void prepend(byte[] data) {
+        int n = data.length;
+        int remaining = n;
+        Segment first = _segments.peekFirst();
+
+        if (n == 0) return;
+
+        if (first != null && first.start > 0) {
+            int m = Math.min(n, first.start);
+
+            first.start -= m;
+            System.arraycopy(data, n - m, first.buf, first.start, m);
+            remaining = n - m;
+        }
+
+        if (remaining == n && n >= MaxSegmentSize / 4) {
+            _segments.addFirst(new Segment(data, 0, n));
+        } else if (remaining > 0) {
+            byte[] buf = new byte[newSegmentSize(remaining)];
+            Segment s = new Segment(buf, buf.length - remaining, buf.length);
+
+            System.arraycopy(data, 0, buf, s.start, remaining);
+            _segments.addFirst(s);
+        }
+
+        _length += n;
+    }
+
+    /**
+     * Write part of the value to an output stream, without flattening it.
+     *
+     * @param io     The output stream.
+     * @param offset Offset of the first byte to write.
+     * @param length Number of bytes to write.
+     * @throws IOException
+     */
+    public void write(InputOutput io, int offset, int length) throws IOException {
+        Iterator<Segment> it = _segments.iterator();
+
+        while (length > 0 && it.hasNext()) {
+            Segment s = it.next();
+            int n = s.end - s.start;
+
+            if (offset >= n) {
+                offset -= n;
+                continue;
+            }
+
+            int m = Math.min(n - offset, length);
+
+            io.writeBytes(s.buf, s.start + offset, m);
+            offset = 0;
+            length -= m;
+        }
+    }
+
+    /**
+     * Return the value as a single array. The segments are merged, so
+     * later calls don't copy the data again.
+     *
+     * @return The value.
+     */
+    public byte[] toByteArray() {
+        Segment first = _segments.peekFirst();
+
+        if (first == null) return new byte[0];
+
+        if (_segments.size() == 1 && first.start == 0 && first.end == first.buf.length)
+            return first.buf;
+
+        byte[] data = new byte[_length];
+        int offset = 0;
+
+        for (Segment s : _segments) {
+            System.arraycopy(s.buf, s.start, data, offset, s.end - s.start);
+            offset += s.end - s.start;
+        }
+
+        _segments.clear();
+        _segments.add(new Segment(data, 0, _length));
+
+        return data;
+    }
+
+    /**
+     * A run of bytes in the value. The parts of the buffer before the
+     * start and after the end are spare space.
+     */
+    private static class Segment {
+        public final byte[] buf;
+        public int start;
+        public int end;
+
+        /**
+         * Constructor.
+         *
+         * @param buf   The buffer holding the bytes.
+         * @param start Offset of the first byte.
+         * @param end   Offset after the last byte.
+         */
+        public Segment(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
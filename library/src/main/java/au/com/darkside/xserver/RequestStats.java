@@ -0,0 +1,339 @@
+package au.com.darkside.xserver;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class collects request processing statistics.
+ * It counts the requests and bytes for each opcode, and records how long
+ * they take to process, how long they wait for the server lock, and how
+ * long the output takes to flush. It also records how long input events
+ * take to reach the clients.
+ *
+ * @author Matthew Kwan
+ */
+public class RequestStats {
+    private final AtomicLongArray _counts = new AtomicLongArray(256);
+    private final AtomicLongArray _bytes = new AtomicLongArray(256);
+    private final Histogram[] _latency = new Histogram[256];
+    private final Histogram _lockWait = new Histogram();
+    private final Histogram _flushTime = new Histogram();
+    private final Histogram _writeTime = new Histogram();
+    private final Histogram _inputLatency = new Histogram();
+    private final AtomicLong _droppedInput = new AtomicLong();
+    private final String[] _names = new String[256];
+    private volatile boolean _enabled = true;
+    private long _startTime = System.currentTimeMillis();
+
+    /**
+     * Constructor.
+     */
+    public RequestStats() {
+        for (Field f : RequestCode.class.getFields()) {
+            if (f.getType() != byte.class || !Modifier.isStatic(f.getModifiers())) continue;
+
+            try {
+                int opcode = f.getByte(null) & 0xff;
+
+                if (opcode != 0 && opcode < 128) _names[opcode] = f.getName();
+            } catch (IllegalAccessException e) {
+                // Leave it unnamed.
+            }
+        }
+    }
+
+    /**
+     * Enable/disable statistics collection.
+     *
+     * @param enabled If true, collect statistics.
+     */
+    public void setEnabled(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    /**
+     * Are statistics being collected?
+     *
+     * @return True if statistics are being collected.
+     */
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Set the name reported for an opcode, such as an extension's
+     * major opcode.
+     *
+     * @param opcode The opcode.
+     * @param name   The name to report.
+     */
+    public void setOpcodeName(byte opcode, String name) {
+        _names[opcode & 0xff] = name;
+    }
+
+    /**
+     * Return the name of an opcode.
+     *
+     * @param opcode The opcode.
+     * @return The opcode's name.
+     */
+    public String getOpcodeName(int opcode) {
+        String name = _names[opcode & 0xff];
+
+        return (name != null) ? name : "Opcode" + (opcode & 0xff);
+    }
+
+    /**
+     * Record a processed request.
+     *
+     * @param opcode The request's opcode.
+     * @param length The request's length in bytes.
+     * @param time   Time taken to process it, in nanoseconds.
+     */
+    public void recordRequest(byte opcode, int length, long time) {
+        int i = opcode & 0xff;
+
+        _counts.incrementAndGet(i);
+        _bytes.addAndGet(i, length);
+        getLatency(i).record(time);
+    }
+
+    /**
+     * Record the time a request waited for the server lock.
+     *
+     * @param time The wait time, in nanoseconds.
+     */
+    public void recordLockWait(long time) {
+        _lockWait.record(time);
+    }
+
+    /**
+     * Record the time taken to hand output to the writer.
+     * This includes time spent blocked on a client that isn't reading.
+     *
+     * @param time The flush time, in nanoseconds.
+     */
+    public void recordFlush(long time) {
+        _flushTime.record(time);
+    }
+
+    /**
+     * Record the time taken to write a batch of output to a socket.
+     *
+     * @param time The write time, in nanoseconds.
+     */
+    public void recordWrite(long time) {
+        _writeTime.record(time);
+    }
+
+    /**
+     * Record the time from an Android input event to the flush of the
+     * X events it caused.
+     *
+     * @param time The latency, in nanoseconds.
+     */
+    public void recordInputLatency(long time) {
+        _inputLatency.record(time);
+    }
+
+    /**
+     * Record an input event dropped because the input queue was full.
+     */
+    public void recordDroppedInput() {
+        _droppedInput.incrementAndGet();
+    }
+
+    /**
+     * Return the number of requests processed with an opcode.
+     *
+     * @param opcode The opcode.
+     * @return The number of requests.
+     */
+    public long getCount(int opcode) {
+        return _counts.get(opcode & 0xff);
+    }
+
+    /**
+     * Return the number of request bytes received with an opcode.
+     *
+     * @param opcode The opcode.
+     * @return The number of bytes.
+     */
+    public long getBytes(int opcode) {
+        return _bytes.get(opcode & 0xff);
+    }
+
+    /**
+     * Return the processing time histogram for an opcode.
+     *
+     * @param opcode The opcode.
+     * @return The latency histogram, in nanoseconds.
+     */
+    public Histogram getLatency(int opcode) {
+        Histogram h = _latency[opcode & 0xff];
+
+        if (h != null) return h;
+
+        synchronized (_latency) {    // Only allocated for opcodes that are used.
+            h = _latency[opcode & 0xff];
+            if (h == null) {
+                h = new Histogram();
+                _latency[opcode & 0xff] = h;
+            }
+        }
+
+        return h;
+    }
+
+    /**
+     * Return the lock wait histogram.
+     *
+     * @return The lock wait histogram, in nanoseconds.
+     */
+    public Histogram getLockWait() {
+        return _lockWait;
+    }
+
+    /**
+     * Return the flush time histogram.
+     *
+     * @return The flush time histogram, in nanoseconds.
+     */
+    public Histogram getFlushTime() {
+        return _flushTime;
+    }
+
+    /**
+     * Return the socket write time histogram.
+     *
+     * @return The write time histogram, in nanoseconds.
+     */
+    public Histogram getWriteTime() {
+        return _writeTime;
+    }
+
+    /**
+     * Return the input latency histogram.
+     *
+     * @return The input latency histogram, in nanoseconds.
+     */
+    public Histogram getInputLatency() {
+        return _inputLatency;
+    }
+
+    /**
+     * Clear all the statistics.
+     */
+    public void reset() {
+        for (int i = 0; i < 256; i++) {
+            _counts.set(i, 0);
+            _bytes.set(i, 0);
+            if (_latency[i] != null) _latency[i].reset();
+        }
+
+        _lockWait.reset();
+        _flushTime.reset();
+        _writeTime.reset();
+        _inputLatency.reset();
+        _droppedInput.set(0);
+        _startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Format a histogram summary. Times are in microseconds.
+     *
+     * @param sb The buffer to append to.
+     * @param h  The histogram.
+     */
+    private static void appendTimes(StringBuilder sb, Histogram h) {
+        sb.append(" mean=").append(h.getMean() / 1000);
+        sb.append(" p50=").append(h.getPercentile(50) / 1000);
+        sb.append(" p99=").append(h.getPercentile(99) / 1000);
+        sb.append(" max=").append(h.getMax() / 1000);
+    }
+
+    /**
+     * Describe the statistics, with the opcodes that took the most time
+     * first. Times are in microseconds.
+     *
+     * @param clients The clients to report totals for. Can be null.
+     * @return A readable report.
+     */
+    public String dump(Vector<Client> clients) {
+        StringBuilder sb = new StringBuilder();
+        Integer[] opcodes = new Integer[256];
+        final long[] sums = new long[256];
+
+        // Take a copy of the totals, so they can't change while sorting.
+        for (int i = 0; i < 256; i++) {
+            opcodes[i] = i;
+            sums[i] = (_latency[i] == null) ? 0 : _latency[i].getSum();
+        }
+
+        Arrays.sort(opcodes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = sums[a];
+                long tb = sums[b];
+
+                return (ta < tb) ? 1 : (ta > tb) ? -1 : 0;
+            }
+        });
+
+        sb.append("Requests over ").append((System.currentTimeMillis() - _startTime) / 1000).append("s\n");
+
+        for (int opcode : opcodes) {
+            long n = _counts.get(opcode);
+
+            if (n == 0) continue;
+
+            sb.append(getOpcodeName(opcode)).append(": n=").append(n);
+            sb.append(" bytes=").append(_bytes.get(opcode));
+            Histogram h = getLatency(opcode);
+
+            sb.append(" total=").append(h.getSum() / 1000);
+            appendTimes(sb, h);
+            sb.append('\n');
+        }
+
+        sb.append("Lock wait: n=").append(_lockWait.getCount());
+        appendTimes(sb, _lockWait);
+        sb.append("\nFlush: n=").append(_flushTime.getCount());
+        appendTimes(sb, _flushTime);
+        sb.append("\nSocket write: n=").append(_writeTime.getCount());
+        appendTimes(sb, _writeTime);
+        sb.append("\nInput latency: n=").append(_inputLatency.getCount());
+        appendTimes(sb, _inputLatency);
+        sb.append(" dropped=").append(_droppedInput.get());
+        sb.append("\nScratch buffers: allocated=").append(BufferPool.getAllocatedBytes() / 1024);
+        sb.append("KB reused=").append(BufferPool.getReusedCount());
+        sb.append("\nGlyph atlas: drawn=").append(GlyphAtlas.getDrawnCount());
+        sb.append(" rasterized=").append(GlyphAtlas.getRasterizedCount());
+        sb.append(" resets=").append(GlyphAtlas.getResetCount());
+        sb.append('\n');
+
+        if (clients != null) {
+            Client[] ca;
+
+            synchronized (clients) {
+                ca = clients.toArray(new Client[0]);
+            }
+
+            for (Client c : ca) {
+                sb.append("Client ").append(Integer.toHexString(c.getResourceIdBase()));
+                sb.append(": requests=").append(c.getRequestCount());
+                sb.append(" bytes=").append(c.getRequestBytes());
+                sb.append(" time=").append(c.getRequestTime() / 1000);
+                sb.append(" merged-motion=").append(c.getEventQueue().getMergedCount());
+                sb.append('\n');
+            }
+        }
+
+        return sb.toString();
+    }
+}
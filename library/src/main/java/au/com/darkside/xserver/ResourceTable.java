@@ -0,0 +1,344 @@
+package au.com.darkside.xserver;
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class maps resource IDs to resources.
+ * The IDs are split into segments by client ID base, and each segment is
+ * an open-addressing hash table keyed on the primitive ID. Lookups take
+ * no locks. Changes are serialized on the table.
+ *
+ * @author Matthew Kwan
+ */
+public class ResourceTable {
+    private final int _segmentBits;
+    private final AtomicReferenceArray<Segment> _segments;
+    private int _size = 0;
+
+    private static final Object Deleted = new Object();
+    private static final int MinCapacity = 16;
+
+    /**
+     * Constructor.
+     *
+     * @param clientIdBits Number of low bits in a client's range of IDs.
+     */
+    public ResourceTable(int clientIdBits) {
+        _segmentBits = clientIdBits;
+        _segments = new AtomicReferenceArray<Segment>(1 << (32 - clientIdBits));
+    }
+
+    /**
+     * Return the resource with the specified ID.
+     *
+     * @param id The resource ID.
+     * @return The resource, or null if there is none.
+     */
+    public Resource get(int id) {
+        Segment s = _segments.get(id >>> _segmentBits);
+
+        if (s == null) return null;
+
+        return s.get(id);
+    }
+
+    /**
+     * Add a resource, replacing any resource with the same ID.
+     *
+     * @param r The resource to add.
+     */
+    public synchronized void put(Resource r) {
+        int index = r.getId() >>> _segmentBits;
+        Segment s = _segments.get(index);
+
+        if (s == null) {
+            s = new Segment();
+            _segments.set(index, s);
+        }
+
+        if (s.put(r)) _size++;
+    }
+
+    /**
+     * Remove the resource with the specified ID.
+     * Segments that become empty are released.
+     *
+     * @param id The resource ID.
+     */
+    public synchronized void remove(int id) {
+        int index = id >>> _segmentBits;
+        Segment s = _segments.get(index);
+
+        if (s == null || !s.remove(id)) return;
+
+        _size--;
+        if (s.isEmpty()) _segments.set(index, null);
+    }
+
+    /**
+     * Return the number of resources in the table.
+     *
+     * @return The number of resources.
+     */
+    public synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * Return the resources whose IDs are in the same client range as the
+     * specified ID. This only looks at the one segment.
+     *
+     * @param id Any ID in the client's range.
+     * @return The resources in the range.
+     */
+    public synchronized Vector<Resource> getSegment(int id) {
+        Vector<Resource> v = new Vector<Resource>();
+        Segment s = _segments.get(id >>> _segmentBits);
+
+        if (s != null) s.collect(v);
+
+        return v;
+    }
+
+    /**
+     * Return all the resources in the table.
+     *
+     * @return The resources.
+     */
+    public synchronized Vector<Resource> getAll() {
+        Vector<Resource> v = new Vector<Resource>(_size);
+
+        for (int i = 0; i < _segments.length(); i++) {
+            Segment s = _segments.get(i);
+
+            if (s != null) s.collect(v);
+        }
+
+        return v;
+    }
+
+    /**
+     * Remove all the resources in client ranges at or above the one
+     * containing the specified ID.
+     *
+     * @param id Any ID in the first range to remove.
+     */
+    public synchronized void removeSegmentsFrom(int id) {
+        for (int i = id >>> _segmentBits; i < _segments.length(); i++) {
+            Segment s = _segments.get(i);
+
+            if (s != null) {
+                _size -= s.size();
+                _segments.set(i, null);
+            }
+        }
+    }
+
+    /**
+     * Return the highest resource ID in use.
+     *
+     * @return The highest ID, or zero if the table is empty.
+     */
+    public synchronized int getMaxId() {
+        for (int i = _segments.length() - 1; i >= 0; i--) {
+            Segment s = _segments.get(i);
+
+            if (s != null) return s.getMaxId();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Spread the bits of an ID, since a client's IDs are mostly sequential.
+     *
+     * @param id The resource ID.
+     * @return A hash of the ID.
+     */
+    private static int hash(int id) {
+        int h = id * 0x9e3779b9;
+
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A hash table holding the resources of one client range.
+     * Slots hold either null, a resource, or the Deleted marker. Keys are
+     * taken from the resources themselves, so a reader never sees a key
+     * without its value.
+     */
+    private static class Segment {
+        private volatile AtomicReferenceArray<Object> _slots;
+        private int _count = 0;
+        private int _used = 0;
+
+        /**
+         * Constructor.
+         */
+        public Segment() {
+            _slots = new AtomicReferenceArray<Object>(MinCapacity);
+        }
+
+        /**
+         * Look up a resource. Safe to call without holding the table's lock.
+         *
+         * @param id The resource ID.
+         * @return The resource, or null if there is none.
+         */
+        public Resource get(int id) {
+            AtomicReferenceArray<Object> slots = _slots;
+            int mask = slots.length() - 1;
+
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+                Object o = slots.get(i);
+
+                if (o == null) return null;
+
+                if (o != Deleted && ((Resource) o).getId() == id) return (Resource) o;
+            }
+        }
+
+        /**
+         * Add or replace a resource.
+         *
+         * @param r The resource.
+         * @return True if the ID wasn't already present.
+         */
+        public boolean put(Resource r) {
+            AtomicReferenceArray<Object> slots = _slots;
+            int id = r.getId();
+            int mask = slots.length() - 1;
+            int free = -1;
+            int i;
+
+            for (i = hash(id) & mask; ; i = (i + 1) & mask) {
+                Object o = slots.get(i);
+
+                if (o == null) break;
+
+                if (o == Deleted) {
+                    if (free < 0) free = i;
+                } else if (((Resource) o).getId() == id) {
+                    slots.set(i, r);
+                    return false;
+                }
+            }
+
+            if (free >= 0) {
+                slots.set(free, r);
+            } else {
+                slots.set(i, r);
+                _used++;
+            }
+
+            _count++;
+            if (_used * 4 > slots.length() * 3) rehash();
+
+            return true;
+        }
+
+        /**
+         * Remove a resource.
+         *
+         * @param id The resource ID.
+         * @return True if the resource was present.
+         */
+        public boolean remove(int id) {
+            AtomicReferenceArray<Object> slots = _slots;
+            int mask = slots.length() - 1;
+
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+                Object o = slots.get(i);
+
+                if (o == null) return false;
+
+                if (o != Deleted && ((Resource) o).getId() == id) {
+                    slots.set(i, Deleted);
+                    _count--;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Copy the live resources into a new table, sized to leave room
+         * for growth, and publish it. Deleted markers are dropped.
+         */
+        private void rehash() {
+            AtomicReferenceArray<Object> old = _slots;
+            int capacity = MinCapacity;
+
+            while (capacity < _count * 4) capacity <<= 1;
+
+            AtomicReferenceArray<Object> slots = new AtomicReferenceArray<Object>(capacity);
+            int mask = capacity - 1;
+
+            for (int j = 0; j < old.length(); j++) {
+                Object o = old.get(j);
+
+                if (o == null || o == Deleted) continue;
+
+                int i = hash(((Resource) o).getId()) & mask;
+
+                while (slots.get(i) != null) i = (i + 1) & mask;
+
+                slots.set(i, o);
+            }
+
+            _used = _count;
+            _slots = slots;
+        }
+
+        /**
+         * Is the segment empty?
+         *
+         * @return True if there are no resources.
+         */
+        public boolean isEmpty() {
+            return _count == 0;
+        }
+
+        /**
+         * Return the number of resources.
+         *
+         * @return The number of resources.
+         */
+        public int size() {
+            return _count;
+        }
+
+        /**
+         * Add the segment's resources to a vector.
+         *
+         * @param v The vector to add to.
+         */
+        public void collect(Vector<Resource> v) {
+            AtomicReferenceArray<Object> slots = _slots;
+
+            for (int i = 0; i < slots.length(); i++) {
+                Object o = slots.get(i);
+
+                if (o != null && o != Deleted) v.add((Resource) o);
+            }
+        }
+
+        /**
+         * Return the highest ID in the segment.
+         *
+         * @return The highest ID.
+         */
+        public int getMaxId() {
+            AtomicReferenceArray<Object> slots = _slots;
+            int max = 0;
+
+            for (int i = 0; i < slots.length(); i++) {
+                Object o = slots.get(i);
+
+                if (o != null && o != Deleted && ((Resource) o).getId() > max) max = ((Resource) o).getId();
+            }
+
+            return max;
+        }
+    }
+}
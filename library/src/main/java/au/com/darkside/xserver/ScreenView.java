@@ -168,6 +168,19 @@ public class ScreenView extends View {
     private boolean	_enableTouchClicks = true;
     private boolean _sharedClipboard = true;
     private Paint _paint;
+    private Bitmap _frameBitmap = null;
+    private BitmapSurface _frameSurface = null;
+    private Canvas _frameCanvas = null;
+    private boolean _sharedBackingStore = false;
+    private volatile InputDispatcher _inputDispatcher;
+    private final Rect _damage = new Rect();
+    private final Rect _drawDamage = new Rect();
+    private int _frameCount = 0;
+    private long _frameTotalTime = 0;
+    private long _frameMaxTime = 0;
+    private long _framePixels = 0;
+    private long _damagedPixels = 0;
+    private long _statisticsTime = System.currentTimeMillis();
 
     private Client _grabPointerClient = null;
     private Window _grabPointerWindow = null;
@@ -235,6 +248,9 @@ public class ScreenView extends View {
         mPendingPointerEvents = new PendingEventQueue<PendingPointerEvent>();
         mPendingKeyboardEvents = new PendingEventQueue<PendingKeyboardEvent>();
 
+        _inputDispatcher = new InputDispatcher(xServer, this);
+        _inputDispatcher.start();
+
         // ---- Listeners for touch input ----
         setOnClickListener(new View.OnClickListener() {
             @Override
@@ -246,22 +262,21 @@ public class ScreenView extends View {
         setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
-                synchronized (_xServer) {
-                    if (_rootWindow == null) return false;
-        
-                    blank(false);    // Reset the screen saver.
-                    updatePointerPosition((int) event.getX(), (int) event.getY(), 0);
-        
-                    if(_enableTouchClicks){
-                        if(event.getActionMasked() == MotionEvent.ACTION_DOWN && event.getActionIndex() == 0)
-                            updatePointerButtons (1, true);
-                        if(event.getActionMasked() == MotionEvent.ACTION_UP && event.getActionIndex() == 0)
-                            updatePointerButtons (1, false);
-                        if(event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN && event.getActionIndex() == 1)
-                            updatePointerButtons (3, true);
-                        if((event.getActionMasked() == MotionEvent.ACTION_POINTER_UP || event.getActionMasked() == MotionEvent.ACTION_CANCEL)  && event.getActionIndex() == 1)
-                            updatePointerButtons (3, false);
-                    }
+                if (_rootWindow == null) return false;
+
+                long time = event.getEventTime();
+
+                _inputDispatcher.postMotion((int) event.getX(), (int) event.getY(), time);
+
+                if(_enableTouchClicks){
+                    if(event.getActionMasked() == MotionEvent.ACTION_DOWN && event.getActionIndex() == 0)
+                        _inputDispatcher.postButton(1, true, time);
+                    if(event.getActionMasked() == MotionEvent.ACTION_UP && event.getActionIndex() == 0)
+                        _inputDispatcher.postButton(1, false, time);
+                    if(event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN && event.getActionIndex() == 1)
+                        _inputDispatcher.postButton(3, true, time);
+                    if((event.getActionMasked() == MotionEvent.ACTION_POINTER_UP || event.getActionMasked() == MotionEvent.ACTION_CANCEL)  && event.getActionIndex() == 1)
+                        _inputDispatcher.postButton(3, false, time);
                 }
 
                 if(event.getActionMasked() == MotionEvent.ACTION_DOWN){
@@ -366,8 +381,8 @@ public class ScreenView extends View {
                                     _sharedClipboardProperty.setData(clipitem.getText().toString());
                                     _sharedClipboardPrimaryProperty.setData(clipitem.getText().toString());
                                 }
-                                updatePointerButtons(3, true);
-                                updatePointerButtons(3, false);
+                                _inputDispatcher.postButton(3, true, 0);
+                                _inputDispatcher.postButton(3, false, 0);
                                 mode.finish();
                                 return true;
                             case ACTION_M_CLICK:
@@ -380,8 +395,8 @@ public class ScreenView extends View {
                                     _sharedClipboardProperty.setData(clipitem.getText().toString());
                                     _sharedClipboardPrimaryProperty.setData(clipitem.getText().toString());
                                 }
-                                updatePointerButtons(2, true);
-                                updatePointerButtons(2, false);
+                                _inputDispatcher.postButton(2, true, 0);
+                                _inputDispatcher.postButton(2, false, 0);
                                 mode.finish();
                                 return true;
                             case ACTION_ESC:
@@ -435,7 +450,25 @@ public class ScreenView extends View {
         outAttrs.imeOptions = EditorInfo.IME_ACTION_NONE | EditorInfo.IME_FLAG_NO_FULLSCREEN;
         return null;
     }
-    
+
+    /**
+     * Called when the view is attached to a window.
+     * Restart input delivery if it was stopped when the view was detached.
+     */
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        startInputDispatcher();
+    }
+
+    /**
+     * Called when the view is detached from its window.
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        stopInputDispatcher();
+        super.onDetachedFromWindow();
+    }
 
     /**
      * Placeholder constructor to prevent a compiler warning.
@@ -449,6 +482,7 @@ public class ScreenView extends View {
         _rootId = 0;
         _installedColormaps = null;
         _pixelsPerMillimeter = 0;
+        _inputDispatcher = null;
     }
 
     /**
@@ -524,7 +558,7 @@ public class ScreenView extends View {
         if (_isBlanked == flag) return;
 
         _isBlanked = flag;
-        postInvalidate();
+        damage(0, 0, getWidth(), getHeight());
 
         if (!_isBlanked) _xServer.resetScreenSaver();
     }
@@ -626,19 +660,230 @@ public class ScreenView extends View {
             return;
         }
 
-        synchronized (_xServer) {
+        _xServer.getLock().readLock().lock();
+        try {
             if (_isBlanked) {
                 canvas.drawColor(0xff000000);
                 return;
             }
 
-            _paint.reset();
-            _rootWindow.draw(canvas, _paint);
+            long start = System.nanoTime();
+            int width = getWidth();
+            int height = getHeight();
+
+            if (!_sharedBackingStore && (_frameBitmap == null || _frameBitmap.getWidth() != width || _frameBitmap.getHeight() != height)) {
+                _frameBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                _frameCanvas = new Canvas(_frameBitmap);
+                damage(0, 0, width, height);
+            }
+
+            synchronized (_damage) {
+                _drawDamage.set(_damage);
+                _damage.setEmpty();
+            }
+
+            // Only recompose the windows in the damaged area. The cursor
+            // is drawn on top of the composed frame, so moving it costs
+            // nothing here.
+            if (_drawDamage.intersect(0, 0, width, height)) {
+                _frameCanvas.save();
+                _frameCanvas.clipRect(_drawDamage);
+                _paint.reset();
+                if (_sharedBackingStore) _rootWindow.drawShared(_frameCanvas, _paint);
+                else _rootWindow.draw(_frameCanvas, _paint);
+                _frameCanvas.restore();
+                _framePixels += (long) _drawDamage.width() * _drawDamage.height();
+            }
+
+            canvas.drawBitmap(_frameBitmap, 0, 0, null);
             canvas.drawBitmap(_currentCursor.getBitmap(), _currentCursorX - _currentCursor.getHotspotX(), _currentCursorY - _currentCursor.getHotspotY(), null);
 
             _drawnCursor = _currentCursor;
             _drawnCursorX = _currentCursorX;
             _drawnCursorY = _currentCursorY;
+
+            long elapsed = System.nanoTime() - start;
+
+            _frameCount++;
+            _frameTotalTime += elapsed;
+            if (elapsed > _frameMaxTime) _frameMaxTime = elapsed;
+        } finally {
+            _xServer.getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Mark an area of the screen as changed, so it gets recomposed the
+     * next time the view is drawn.
+     *
+     * @param left   Left edge of the area.
+     * @param top    Top edge of the area.
+     * @param right  Right edge of the area.
+     * @param bottom Bottom edge of the area.
+     */
+    public void damage(int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) return;
+
+        synchronized (_damage) {
+            _damage.union(left, top, right, bottom);
+            _damagedPixels += (long) (right - left) * (bottom - top);
+        }
+
+        postInvalidate(left, top, right, bottom);
+    }
+
+    /**
+     * Arrange for a client's queued events to be flushed. The flush runs
+     * on the input dispatcher thread after the current input event has
+     * been handled, so all the motion from one input frame goes out in a
+     * single write.
+     *
+     * @param client The client with queued events.
+     */
+    public void scheduleEventFlush(Client client) {
+        _inputDispatcher.scheduleEventFlush(client);
+    }
+
+    /**
+     * Start delivering input to the clients, if it has been stopped.
+     */
+    public synchronized void startInputDispatcher() {
+        if (_inputDispatcher == null || !_inputDispatcher.isCancelled()) return;
+
+        _inputDispatcher = new InputDispatcher(_xServer, this);
+        _inputDispatcher.start();
+    }
+
+    /**
+     * Stop delivering input to the clients.
+     * Called when the server stops or the view is detached.
+     */
+    public synchronized void stopInputDispatcher() {
+        if (_inputDispatcher != null) _inputDispatcher.cancel();
+    }
+
+    /**
+     * Enable/disable the shared backing store. If enabled, windows that
+     * don't ask for backing store or save-under draw directly into the
+     * screen's framebuffer instead of each owning a full bitmap. Obscured
+     * parts of their contents are lost and exposed when uncovered.
+     * Takes effect the next time the root window is created.
+     *
+     * @param enabled If true, windows share the framebuffer.
+     */
+    public void setSharedBackingStore(boolean enabled) {
+        _sharedBackingStore = enabled;
+    }
+
+    /**
+     * Return the framebuffer shared by window contents.
+     *
+     * @return The shared framebuffer, or null if windows don't share it.
+     */
+    public BitmapSurface getSharedFramebuffer() {
+        if (!_sharedBackingStore) return null;
+
+        return _frameSurface;
+    }
+
+    /**
+     * Recalculate the visible regions of all the windows.
+     * Changes to individual windows are handled by the windows themselves,
+     * which only recalculate the windows they affect.
+     */
+    public void updateClipRegions() {
+        if (_rootWindow == null) return;
+
+        _rootWindow.updateClipRegions();
+    }
+
+    /**
+     * Return the memory used to hold window contents. This is the window
+     * bitmaps plus the framebuffer they are composed into.
+     *
+     * @return The number of bytes of window storage.
+     */
+    public long getWindowMemory() {
+        _xServer.getLock().readLock().lock();
+        try {
+            long n = 0;
+
+            if (_frameBitmap != null) n += (long) _frameBitmap.getRowBytes() * _frameBitmap.getHeight();
+
+            if (_rootWindow != null) n += _rootWindow.getMemoryBytes();
+
+            return n;
+        } finally {
+            _xServer.getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of frames drawn since the statistics were reset.
+     *
+     * @return The number of frames drawn.
+     */
+    public int getFrameCount() {
+        return _frameCount;
+    }
+
+    /**
+     * Return the average time taken to draw a frame.
+     *
+     * @return The average frame time, in microseconds.
+     */
+    public long getAverageFrameTime() {
+        if (_frameCount == 0) return 0;
+
+        return _frameTotalTime / _frameCount / 1000;
+    }
+
+    /**
+     * Return the longest time taken to draw a frame.
+     *
+     * @return The maximum frame time, in microseconds.
+     */
+    public long getMaxFrameTime() {
+        return _frameMaxTime / 1000;
+    }
+
+    /**
+     * Return the number of pixels that have been recomposed.
+     *
+     * @return The number of recomposed pixels.
+     */
+    public long getComposedPixels() {
+        return _framePixels;
+    }
+
+    /**
+     * Return the number of pixels invalidated per second since the
+     * statistics were reset. Overlapping damage is counted each time.
+     *
+     * @return The number of invalidated pixels per second.
+     */
+    public long getDamagedPixelsPerSecond() {
+        long elapsed = System.currentTimeMillis() - _statisticsTime;
+
+        if (elapsed <= 0) return 0;
+
+        synchronized (_damage) {
+            return _damagedPixels * 1000 / elapsed;
+        }
+    }
+
+    /**
+     * Reset the frame statistics.
+     */
+    public void resetFrameStatistics() {
+        _frameCount = 0;
+        _frameTotalTime = 0;
+        _frameMaxTime = 0;
+        _framePixels = 0;
+
+        synchronized (_damage) {
+            _damagedPixels = 0;
+            _statisticsTime = System.currentTimeMillis();
         }
     }
 
@@ -655,6 +900,12 @@ public class ScreenView extends View {
     protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
         super.onSizeChanged(width, height, oldWidth, oldHeight);
 
+        if (_sharedBackingStore) {
+            _frameSurface = new BitmapSurface(width, height);
+            _frameBitmap = _frameSurface.getBitmap();
+            _frameCanvas = new Canvas(_frameBitmap);
+        }
+
         _rootWindow = new Window(_rootId, _xServer, null, this, null, 0, 0, width, height, 0, false, true);
         _sharedClipboardWindow = new Window(_xServer.nextFreeResourceId()+1, _xServer, null, this, _rootWindow, -1, -1, 1, 1, 0, true, false); // hidden window managing android <-> xServer clipboard
         _sharedClipboardWindow.setIsServerWindow(true); // flag as functional server only window (there is a urgent need to introduce interfaces..)
@@ -663,9 +914,11 @@ public class ScreenView extends View {
 
         Property.OnPropertyChangedListener cb = new Property.OnPropertyChangedListener(){ // -- executed on a per client thread basis
             @Override
-            public void onPropertyChanged(byte[] data, Atom type){
+            public void onPropertyChanged(Property p, Atom type){
                 switch(type.getName()){
                     case "UTF8_STRING":
+                        byte[] data = p.getData();
+                        if (data == null) break;
                         String s = new String(data, StandardCharsets.UTF_8); // convert to UTF8 string
 
                         // create task for UI thread
@@ -706,6 +959,7 @@ public class ScreenView extends View {
         _motionY = _currentCursorY;
         _motionWindow = _rootWindow;
         _focusWindow = _rootWindow;
+        updateClipRegions();
 
         // Everything set up, so start listening for clients.
         _xServer.start();
@@ -852,10 +1106,10 @@ public class ScreenView extends View {
                 Client c = null;
 
                 if (pressed && ew != null) {
-                    Vector<Client> sc;
+                    Client[] sc;
 
                     sc = ew.getSelectingClients(EventCode.MaskButtonPress);
-                    if (sc != null) c = sc.firstElement();
+                    if (sc != null) c = sc[0];
                 }
 
                 // Start an automatic key grab.
@@ -968,6 +1222,33 @@ public class ScreenView extends View {
         }
     }
 
+    /**
+     * Deliver an input event queued by the UI thread. Called by the input
+     * dispatcher with the server's write lock held.
+     *
+     * @param type The type of event.
+     * @param arg1 X coordinate, button or keycode.
+     * @param arg2 Y coordinate, or 1 if a button or key was pressed.
+     */
+    public void dispatchInput(int type, int arg1, int arg2) {
+        if (_rootWindow == null) return;
+
+        blank(false);    // Reset the screen saver.
+
+        switch (type) {
+            case InputDispatcher.Motion:
+                updatePointerPosition(arg1, arg2, 0);
+                break;
+            case InputDispatcher.Button:
+                updatePointerButtons(arg1, arg2 != 0);
+                break;
+            case InputDispatcher.Key:
+                updateModifiers();
+                notifyKeyPressedReleased(arg1, arg2 != 0);
+                break;
+        }
+    }
+
     /**
      * Called when there is a key down event.
      *
@@ -977,52 +1258,45 @@ public class ScreenView extends View {
      */
     @Override
     public boolean onKeyDown(int keycode, KeyEvent event) {
-        synchronized (_xServer) {
-            if (_rootWindow == null) return false;
-
-            blank(false);    // Reset the screen saver.
-
-            boolean sendEvent = false;
-
-			if (_arrowsAsButtons) {
-				switch (keycode) {
-				case KeyEvent.KEYCODE_DPAD_LEFT:
-				case KeyEvent.KEYCODE_DPAD_CENTER:
-					updatePointerButtons (1, true);
-					return true;
-				case KeyEvent.KEYCODE_DPAD_UP:
-				case KeyEvent.KEYCODE_DPAD_DOWN:
-					updatePointerButtons (2, true);
-					return true;
-				case KeyEvent.KEYCODE_DPAD_RIGHT:
-					updatePointerButtons (3, true);
-					return true;
-				}
-			}
+        if (_rootWindow == null) return false;
+
+        long time = event.getEventTime();
 
+		if (_arrowsAsButtons) {
 			switch (keycode) {
-				case KeyEvent.KEYCODE_BACK:
-					if (! _inhibitBackButton)
-						return false;
-					keycode = 128 - _xServer.getKeyboard().getMinimumKeycodeDiff(); // Special keycode since keycode value 5 is out of range
-					sendEvent = true;
-					break;
-				case KeyEvent.KEYCODE_MENU:
-					return false;
-				case KeyEvent.KEYCODE_VOLUME_UP:
-					updatePointerButtons (1, true);
-					break;
-				case KeyEvent.KEYCODE_VOLUME_DOWN:
-					updatePointerButtons (3, true);
-					break;
-				default:
-					sendEvent = true;
-					break;
+			case KeyEvent.KEYCODE_DPAD_LEFT:
+			case KeyEvent.KEYCODE_DPAD_CENTER:
+				_inputDispatcher.postButton(1, true, time);
+				return true;
+			case KeyEvent.KEYCODE_DPAD_UP:
+			case KeyEvent.KEYCODE_DPAD_DOWN:
+				_inputDispatcher.postButton(2, true, time);
+				return true;
+			case KeyEvent.KEYCODE_DPAD_RIGHT:
+				_inputDispatcher.postButton(3, true, time);
+				return true;
 			}
-	
-			updateModifiers();
-            if (sendEvent) notifyKeyPressedReleased(keycode, true);
-        }
+		}
+
+		switch (keycode) {
+			case KeyEvent.KEYCODE_BACK:
+				if (! _inhibitBackButton)
+					return false;
+				keycode = 128 - _xServer.getKeyboard().getMinimumKeycodeDiff(); // Special keycode since keycode value 5 is out of range
+				_inputDispatcher.postKey(keycode, true, time);
+				break;
+			case KeyEvent.KEYCODE_MENU:
+				return false;
+			case KeyEvent.KEYCODE_VOLUME_UP:
+				_inputDispatcher.postButton(1, true, time);
+				break;
+			case KeyEvent.KEYCODE_VOLUME_DOWN:
+				_inputDispatcher.postButton(3, true, time);
+				break;
+			default:
+				_inputDispatcher.postKey(keycode, true, time);
+				break;
+		}
 
         return true;
     }
@@ -1036,52 +1310,45 @@ public class ScreenView extends View {
      */
     @Override
     public boolean onKeyUp(int keycode, KeyEvent event) {
-        synchronized (_xServer) {
-            if (_rootWindow == null) return false;
-
-            blank(false);    // Reset the screen saver.
-
-            boolean sendEvent = false;
-
-			if (_arrowsAsButtons) {
-				switch (keycode) {
-				case KeyEvent.KEYCODE_DPAD_LEFT:
-				case KeyEvent.KEYCODE_DPAD_CENTER:
-					updatePointerButtons (1, false);
-					return true;
-				case KeyEvent.KEYCODE_DPAD_UP:
-				case KeyEvent.KEYCODE_DPAD_DOWN:
-					updatePointerButtons (2, false);
-					return true;
-				case KeyEvent.KEYCODE_DPAD_RIGHT:
-					updatePointerButtons (3, false);
-					return true;
-				}
-			}
+        if (_rootWindow == null) return false;
+
+        long time = event.getEventTime();
 
+		if (_arrowsAsButtons) {
 			switch (keycode) {
-				case KeyEvent.KEYCODE_BACK:
-					if (! _inhibitBackButton)
-						return false;
-					keycode = 128 - _xServer.getKeyboard().getMinimumKeycodeDiff(); // Special keycode since keycode value 5 is out of range
-					sendEvent = true;
-					break;
-				case KeyEvent.KEYCODE_MENU:
-					return false;
-				case KeyEvent.KEYCODE_VOLUME_UP:
-					updatePointerButtons (1, false);
-					break;
-				case KeyEvent.KEYCODE_VOLUME_DOWN:
-					updatePointerButtons (3, false);
-					break;
-				default:
-					sendEvent = true;
-					break;
+			case KeyEvent.KEYCODE_DPAD_LEFT:
+			case KeyEvent.KEYCODE_DPAD_CENTER:
+				_inputDispatcher.postButton(1, false, time);
+				return true;
+			case KeyEvent.KEYCODE_DPAD_UP:
+			case KeyEvent.KEYCODE_DPAD_DOWN:
+				_inputDispatcher.postButton(2, false, time);
+				return true;
+			case KeyEvent.KEYCODE_DPAD_RIGHT:
+				_inputDispatcher.postButton(3, false, time);
+				return true;
 			}
-	
-			updateModifiers();
-            if (sendEvent) notifyKeyPressedReleased(keycode, false);
-        }
+		}
+
+		switch (keycode) {
+			case KeyEvent.KEYCODE_BACK:
+				if (! _inhibitBackButton)
+					return false;
+				keycode = 128 - _xServer.getKeyboard().getMinimumKeycodeDiff(); // Special keycode since keycode value 5 is out of range
+				_inputDispatcher.postKey(keycode, false, time);
+				break;
+			case KeyEvent.KEYCODE_MENU:
+				return false;
+			case KeyEvent.KEYCODE_VOLUME_UP:
+				_inputDispatcher.postButton(1, false, time);
+				break;
+			case KeyEvent.KEYCODE_VOLUME_DOWN:
+				_inputDispatcher.postButton(3, false, time);
+				break;
+			default:
+				_inputDispatcher.postKey(keycode, false, time);
+				break;
+		}
 
         return true;
     }
@@ -1476,11 +1743,10 @@ public class ScreenView extends View {
             } else w = (Window) r;
         }
 
-        Vector<Client> dc = null;
+        Client[] dc = null;
 
         if (mask == 0) {
-            dc = new Vector<Client>();
-            dc.add(w.getClient());
+            dc = new Client[] {w.getClient()};
         } else if (!propagate) {
             dc = w.getSelectingClients(mask);
         } else {
@@ -1503,6 +1769,7 @@ public class ScreenView extends View {
             InputOutput dio = c.getInputOutput();
 
             synchronized (dio) {
+                c.getEventQueue().writePending();
                 dio.writeByte((byte) (event[0] | 128));
 
                 if (event[0] == EventCode.KeymapNotify) {
@@ -0,0 +1,759 @@
+package au.com.darkside.xserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This thread accepts connections and reads requests for all clients
+ * using a single non-blocking selector, as an alternative to running a
+ * thread per client.
+ * Complete requests are handed to a small pool of dispatch threads.
+ * Each connection is processed by at most one dispatch thread at a time,
+ * so requests from a client are still processed in order.
+ *
+ * @author Matthew Kwan
+ */
+public class SelectorThread extends Thread {
+    private final XServer _xServer;
+    private final Selector _selector;
+    private final ServerSocketChannel _serverChannel;
+    private final ByteBuffer _readBuffer;
+    private final LinkedBlockingQueue<Connection> _readyConnections;
+    private final ConcurrentLinkedQueue<Connection> _pendingWrites;
+    private final ConcurrentLinkedQueue<Connection> _pendingReads;
+    private final DispatchThread[] _dispatchThreads;
+    private final ArrayList<Connection> _closingConnections;
+    private volatile boolean _cancelled = false;
+
+    private static final int ReadBufferSize = 16384;
+    private static final int MaxReadsPerSelect = 4;
+    private static final int MaxBufferedInput = 1 << 20;
+    private static final int MaxDispatchThreads = 4;
+    private static final int GrabPollInterval = 10;
+    private static final int CloseTimeout = 1000;
+
+    /**
+     * Constructor.
+     *
+     * @param xServer The X server.
+     * @param port    The port to listen on.
+     * @throws IOException
+     */
+    public SelectorThread(XServer xServer, int port) throws IOException {
+        super("X11 selector");
+        _xServer = xServer;
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.socket().bind(new InetSocketAddress(port));
+        _serverChannel.configureBlocking(false);
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        _readBuffer = ByteBuffer.allocateDirect(ReadBufferSize);
+        _readyConnections = new LinkedBlockingQueue<Connection>();
+        _pendingWrites = new ConcurrentLinkedQueue<Connection>();
+        _pendingReads = new ConcurrentLinkedQueue<Connection>();
+        _closingConnections = new ArrayList<Connection>();
+
+        int n = Runtime.getRuntime().availableProcessors();
+
+        if (n > MaxDispatchThreads) n = MaxDispatchThreads;
+        else if (n < 1) n = 1;
+
+        _dispatchThreads = new DispatchThread[n];
+        for (int i = 0; i < n; i++)
+            _dispatchThreads[i] = new DispatchThread(i);
+    }
+
+    /**
+     * Return the internet address that is accepting connections.
+     * May be null.
+     *
+     * @return The internet address that is accepting connections.
+     */
+    public InetAddress getInetAddress() {
+        return _serverChannel.socket().getInetAddress();
+    }
+
+    /**
+     * Run the thread.
+     */
+    public void run() {
+        for (DispatchThread dt : _dispatchThreads)
+            dt.start();
+
+        while (!_cancelled) {
+            try {
+                _selector.select(_closingConnections.isEmpty() ? 0 : CloseTimeout);
+            } catch (IOException e) {
+                break;
+            }
+
+            Connection c;
+
+            while ((c = _pendingReads.poll()) != null) {
+                try {
+                    setInterest(c, SelectionKey.OP_READ, true);
+                } catch (RuntimeException e) {
+                    failConnection(c, e);
+                }
+            }
+
+            while ((c = _pendingWrites.poll()) != null) {
+                try {
+                    writeConnection(c);
+                } catch (RuntimeException e) {
+                    failConnection(c, e);
+                }
+            }
+
+            Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+
+                it.remove();
+                if (!key.isValid()) continue;
+
+                if (key.isAcceptable()) {
+                    acceptConnection();
+                    continue;
+                }
+
+                c = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) readConnection(c);
+                    if (key.isValid() && key.isWritable()) writeConnection(c);
+                } catch (RuntimeException e) {    // Don't let one connection stop the rest.
+                    failConnection(c, e);
+                }
+            }
+
+            expireClosingConnections();
+        }
+
+        for (DispatchThread dt : _dispatchThreads)
+            dt.interrupt();
+
+        try {
+            _serverChannel.close();
+            _selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Cancel the thread.
+     */
+    public void cancel() {
+        _cancelled = true;
+        _selector.wakeup();
+    }
+
+    /**
+     * Accept a pending connection and create a client for it.
+     */
+    private void acceptConnection() {
+        SocketChannel channel;
+
+        try {
+            channel = _serverChannel.accept();
+        } catch (IOException e) {
+            return;
+        }
+
+        if (channel == null) return;
+
+        try {
+            Connection c = new Connection(channel);
+            InputOutput io = new InputOutput(c._input, channel, c);
+
+            channel.configureBlocking(false);
+            c._client = _xServer.addSelectorClient(channel.socket(), io);
+            if (c._client == null) {
+                channel.close();
+                return;
+            }
+
+            c._key = channel.register(_selector, SelectionKey.OP_READ, c);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException e2) {
+            }
+        }
+    }
+
+    /**
+     * Read whatever has arrived on a connection, and schedule any
+     * complete requests for dispatch.
+     *
+     * @param c The connection.
+     */
+    private void readConnection(Connection c) {
+        boolean eof = false;
+
+        try {
+            for (int i = 0; i < MaxReadsPerSelect; i++) {
+                int n = c._channel.read(_readBuffer);
+
+                if (n < 0) {
+                    eof = true;
+                    break;
+                } else if (n == 0) {
+                    break;
+                }
+
+                _readBuffer.flip();
+                c._input.append(_readBuffer);
+                _readBuffer.clear();
+            }
+        } catch (IOException e) {
+            eof = true;
+        }
+
+        _readBuffer.clear();
+        if (eof) c._key.cancel();
+
+        int count = c._input.scanRequests();
+
+        synchronized (c) {
+            c._ready += count;
+            if (eof) c._eof = true;
+
+            // Stop reading from clients that send faster than we process.
+            if (!eof && c._ready > 0 && c._input.available() > MaxBufferedInput) {
+                c._readPaused = true;
+                setInterest(c, SelectionKey.OP_READ, false);
+            }
+
+            schedule(c);
+        }
+    }
+
+    /**
+     * Write as much queued output to a connection as it will take.
+     *
+     * @param c The connection.
+     */
+    private void writeConnection(Connection c) {
+        InputOutput io = c._client.getInputOutput();
+
+        if (c._key == null || !c._key.isValid()) {
+            if (io.isClosed()) closeConnection(c);
+            return;
+        }
+
+        try {
+            boolean done = io.writeTo();
+
+            if (io.isClosed()) {
+                if (done) {
+                    closeConnection(c);
+                    return;
+                }
+
+                if (c._closeDeadline == 0) {    // Give the client a while to read the rest.
+                    c._closeDeadline = System.currentTimeMillis() + CloseTimeout;
+                    _closingConnections.add(c);
+                }
+            }
+
+            setInterest(c, SelectionKey.OP_WRITE, !done);
+        } catch (IOException e) {
+            if (io.isClosed()) {
+                closeConnection(c);
+                return;
+            }
+
+            c._key.cancel();
+            synchronized (c) {
+                c._eof = true;
+                schedule(c);
+            }
+        }
+    }
+
+    /**
+     * Close a connection whose client has been closed.
+     * Must be called from the selector thread.
+     *
+     * @param c The connection.
+     */
+    private void closeConnection(Connection c) {
+        if (c._key != null) c._key.cancel();
+        if (c._closeDeadline != 0) _closingConnections.remove(c);
+
+        try {
+            c._channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Drop a connection after an unexpected error, and get a dispatch
+     * thread to disconnect its client.
+     *
+     * @param c The connection.
+     * @param e The error.
+     */
+    private void failConnection(Connection c, RuntimeException e) {
+        Log.e("XServer", "Dropping connection after error", e);
+
+        closeConnection(c);
+        c._input.close();
+        synchronized (c) {
+            c._eof = true;
+            schedule(c);
+        }
+    }
+
+    /**
+     * Close connections that haven't read their remaining output in time.
+     */
+    private void expireClosingConnections() {
+        if (_closingConnections.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+
+        for (int i = _closingConnections.size() - 1; i >= 0; i--) {
+            Connection c = _closingConnections.get(i);
+
+            if (now >= c._closeDeadline) closeConnection(c);
+        }
+    }
+
+    /**
+     * Add or remove an operation from a connection's interest set.
+     * Must be called from the selector thread.
+     *
+     * @param c  The connection.
+     * @param op The operation.
+     * @param on Whether the operation is of interest.
+     */
+    private void setInterest(Connection c, int op, boolean on) {
+        SelectionKey key = c._key;
+
+        if (key == null || !key.isValid()) return;
+
+        int ops = key.interestOps();
+
+        if (on) key.interestOps(ops | op);
+        else key.interestOps(ops & ~op);
+    }
+
+    /**
+     * Queue a connection for dispatch, if it has work to do and isn't
+     * already queued. The caller must hold the connection's monitor.
+     *
+     * @param c The connection.
+     */
+    private void schedule(Connection c) {
+        if (c._scheduled || (c._ready == 0 && !c._eof)) return;
+
+        c._scheduled = true;
+        _readyConnections.add(c);
+    }
+
+    /**
+     * Process the next request on a connection.
+     * Called from a dispatch thread.
+     *
+     * @param c The connection.
+     */
+    private void dispatch(Connection c) {
+        Client client = c._client;
+        boolean hasRequest;
+
+        synchronized (c) {
+            hasRequest = (c._ready > 0);
+        }
+
+        if (hasRequest) {
+            if (c._setupDone && !_xServer.processingAllowed(client)) {
+                try {    // Another client has grabbed the server.
+                    sleep(GrabPollInterval);
+                } catch (InterruptedException e) {
+                }
+
+                _readyConnections.add(c);
+                return;
+            }
+
+            boolean ok;
+
+            try {
+                if (c._setupDone) {
+                    client.processNextRequest();
+                    ok = true;
+                } else {
+                    c._setupDone = true;
+                    ok = client.processConnectionSetup();
+                }
+            } catch (IOException e) {
+                ok = false;
+            }
+
+            if (!ok || !client.isConnected()) {
+                client.disconnect();
+                return;
+            }
+        }
+
+        boolean resume = false;
+        boolean finished = false;
+
+        synchronized (c) {
+            if (hasRequest) c._ready--;
+
+            if (c._ready == 0 && c._eof) {
+                c._scheduled = false;
+                finished = true;
+            } else if (c._ready > 0) {
+                _readyConnections.add(c);
+            } else {
+                c._scheduled = false;
+            }
+
+            if (c._readPaused && (c._ready <= 0 || c._input.available() < MaxBufferedInput / 2)) {
+                c._readPaused = false;
+                resume = true;
+            }
+        }
+
+        if (finished) {
+            client.disconnect();
+        } else if (resume) {
+            _pendingReads.add(c);
+            _selector.wakeup();
+        }
+    }
+
+    /**
+     * A connection handled by the selector.
+     */
+    private class Connection implements InputOutput.OutputListener {
+        private final SocketChannel _channel;
+        private final RequestBuffer _input;
+        private SelectionKey _key = null;
+        private Client _client = null;
+        private int _ready = 0;
+        private boolean _scheduled = false;
+        private boolean _setupDone = false;
+        private boolean _eof = false;
+        private boolean _readPaused = false;
+        private long _closeDeadline = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param channel The connection's channel.
+         */
+        public Connection(SocketChannel channel) {
+            _channel = channel;
+            _input = new RequestBuffer();
+        }
+
+        /**
+         * Called when output has been queued. Get the selector thread
+         * to write it.
+         *
+         * @param io The handle with queued output.
+         */
+        @Override
+        public void outputQueued(InputOutput io) {
+            _pendingWrites.add(this);
+            _selector.wakeup();
+        }
+    }
+
+    /**
+     * This thread processes requests that the selector has received.
+     */
+    private class DispatchThread extends Thread {
+        /**
+         * Constructor.
+         *
+         * @param n The thread's index.
+         */
+        public DispatchThread(int n) {
+            super("X11 dispatch " + n);
+            setDaemon(true);
+        }
+
+        /**
+         * Run the thread.
+         */
+        public void run() {
+            while (!_cancelled) {
+                Connection c;
+
+                try {
+                    c = _readyConnections.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                dispatch(c);
+            }
+        }
+    }
+
+    /**
+     * The bytes received from a connection that haven't been processed.
+     * The selector thread appends to it and finds where the requests
+     * end, and a dispatch thread reads it like a normal input stream.
+     */
+    private static class RequestBuffer extends InputStream {
+        private byte[] _data = new byte[InitialSize];
+        private int _start = 0;
+        private int _end = 0;
+        private int _mark = -1;
+        private int _scan = 0;
+        private boolean _setupScanned = false;
+        private boolean _badByteOrder = false;
+        private boolean _badLength = false;
+        private boolean _msb = true;
+        private boolean _closed = false;
+
+        private static final int InitialSize = 1024;
+
+        /**
+         * Append received bytes.
+         *
+         * @param bb The bytes to append.
+         */
+        public synchronized void append(ByteBuffer bb) {
+            int n = bb.remaining();
+
+            makeSpace(n);
+            bb.get(_data, _end, n);
+            _end += n;
+            notifyAll();
+        }
+
+        /**
+         * Make sure there is space to append bytes, discarding bytes that
+         * have already been read and scanned. The reader can be ahead of
+         * the scan, inside a request that hasn't all arrived yet.
+         *
+         * @param n The number of bytes to append.
+         */
+        private void makeSpace(int n) {
+            if (_end + n <= _data.length) return;
+
+            int keep = Math.min((_mark >= 0) ? _mark : _start, _scan);
+            int used = _end - keep;
+            byte[] data = _data;
+
+            if (used + n > data.length) {
+                int size = data.length * 2;
+
+                if (size < used + n) size = used + n;
+                data = new byte[size];
+            }
+
+            System.arraycopy(_data, keep, data, 0, used);
+            _data = data;
+            _start -= keep;
+            _end -= keep;
+            _scan -= keep;
+            if (_mark >= 0) _mark -= keep;
+        }
+
+        /**
+         * Find the requests that have been completely received since the
+         * last call. The first one is the connection setup.
+         *
+         * @return The number of newly completed requests.
+         */
+        public synchronized int scanRequests() {
+            int count = 0;
+
+            while (!_badByteOrder && !_badLength) {
+                int available = _end - _scan;
+                int length;
+
+                if (!_setupScanned) {
+                    if (available < 1) break;
+
+                    int byteOrder = _data[_scan] & 0xff;
+
+                    if (byteOrder == 0x42) {
+                        _msb = true;
+                    } else if (byteOrder == 0x6c) {
+                        _msb = false;
+                    } else {    // The client will reject this.
+                        _badByteOrder = true;
+                        count++;
+                        break;
+                    }
+
+                    if (available < 12) break;
+
+                    int nameLength = getShort(_scan + 6);
+                    int dataLength = getShort(_scan + 8);
+
+                    length = 12 + nameLength + (-nameLength & 3) + dataLength + (-dataLength & 3);
+                } else {
+                    if (available < 4) break;
+
+                    length = getShort(_scan + 2) * 4;
+                    if (length == 0) {    // Big request.
+                        if (available < 8) break;
+
+                        long n = getInt(_scan + 4) & 0xffffffffL;
+
+                        if (n < 2 || n > XServer.MaxBigRequestLength) {    // The client will reject this.
+                            _badLength = true;
+                            count++;
+                            break;
+                        }
+
+                        length = (int) n * 4;
+                    }
+                }
+
+                if (available < length) break;
+
+                _scan += length;
+                _setupScanned = true;
+                count++;
+            }
+
+            return count;
+        }
+
+        /**
+         * Return a 16-bit integer at a position in the buffer.
+         *
+         * @param pos The position.
+         * @return The integer.
+         */
+        private int getShort(int pos) {
+            int b1 = _data[pos] & 0xff;
+            int b2 = _data[pos + 1] & 0xff;
+
+            return _msb ? (b1 << 8) | b2 : (b2 << 8) | b1;
+        }
+
+        /**
+         * Return a 32-bit integer at a position in the buffer.
+         *
+         * @param pos The position.
+         * @return The integer.
+         */
+        private int getInt(int pos) {
+            if (_msb) return (getShort(pos) << 16) | getShort(pos + 2);
+            else return (getShort(pos + 2) << 16) | getShort(pos);
+        }
+
+        /**
+         * Wait until there is something to read.
+         *
+         * @return False if the stream has been closed.
+         */
+        private boolean waitForData() {
+            while (_start == _end && !_closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            return !_closed;
+        }
+
+        /**
+         * Release a large buffer once everything in it has been read and
+         * scanned, so no partial request is outstanding.
+         */
+        private void shrink() {
+            if (_start == _end && _scan == _end && _mark < 0 && _data.length > InitialSize) {
+                _data = new byte[InitialSize];
+                _start = _end = _scan = 0;
+            }
+        }
+
+        @Override
+        public synchronized int read() {
+            if (!waitForData()) return -1;
+
+            int n = _data[_start++] & 0xff;
+
+            shrink();
+
+            return n;
+        }
+
+        @Override
+        public synchronized int read(byte[] ba, int offset, int length) {
+            if (length == 0) return 0;
+            if (!waitForData()) return -1;
+
+            int n = _end - _start;
+
+            if (n > length) n = length;
+
+            System.arraycopy(_data, _start, ba, offset, n);
+            _start += n;
+            shrink();
+
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            int available = _end - _start;
+
+            if (n > available) n = available;
+            if (n <= 0) return 0;
+
+            _start += (int) n;
+            shrink();
+
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return _end - _start;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            _mark = _start;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (_mark < 0) throw new IOException("Mark not set");
+
+            _start = _mark;
+            _mark = -1;
+        }
+
+        @Override
+        public synchronized void close() {
+            _closed = true;
+            notifyAll();
+        }
+    }
+}
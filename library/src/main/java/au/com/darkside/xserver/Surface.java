@@ -0,0 +1,97 @@
+package au.com.darkside.xserver;
+
+/**
+ * This interface is the pixel storage behind a drawable.
+ * Pixels are 32-bit ARGB values. Rectangles passed to these methods must
+ * lie within the surface.
+ * Drawables normally keep their pixels in a BitmapSurface, because most
+ * requests draw on it with a canvas. Code that only reads, writes or
+ * moves pixels, such as image transfers, shapes and cursors, uses this
+ * interface, so those operations also work on an ArraySurface.
+ *
+ * @author Matthew Kwan
+ */
+public interface Surface {
+    /**
+     * Return the surface's width.
+     *
+     * @return The width in pixels.
+     */
+    int getWidth();
+
+    /**
+     * Return the surface's height.
+     *
+     * @return The height in pixels.
+     */
+    int getHeight();
+
+    /**
+     * Copy pixels out of a rectangle of the surface.
+     *
+     * @param pixels Array to receive the pixels.
+     * @param offset Index of the first pixel in the array.
+     * @param stride Number of array entries between rows.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+    /**
+     * Replace the pixels in a rectangle of the surface.
+     *
+     * @param pixels The new pixels.
+     * @param offset Index of the first pixel in the array.
+     * @param stride Number of array entries between rows.
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     */
+    void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+    /**
+     * Set every pixel to a color.
+     *
+     * @param color The color.
+     */
+    void fill(int color);
+
+    /**
+     * Set every pixel in a rectangle of the surface to a color.
+     *
+     * @param x      X coordinate of the rectangle.
+     * @param y      Y coordinate of the rectangle.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param color  The color.
+     */
+    void fillRect(int x, int y, int width, int height, int color);
+
+    /**
+     * Move a rectangle of pixels within the surface. The source and
+     * destination may overlap.
+     *
+     * @param sx     X coordinate of the source.
+     * @param sy     Y coordinate of the source.
+     * @param width  Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @param dx     X coordinate of the destination.
+     * @param dy     Y coordinate of the destination.
+     */
+    void copyRect(int sx, int sy, int width, int height, int dx, int dy);
+
+    /**
+     * Return the number of bytes of pixel storage.
+     *
+     * @return The number of bytes.
+     */
+    int getMemoryBytes();
+
+    /**
+     * Free the pixel storage. The surface can't be used afterwards.
+     */
+    void recycle();
+}
@@ -36,6 +36,7 @@ public class Util {
         InputOutput io = client.getInputOutput();
         short sn = (short) (client.getSequenceNumber() & 0xffff);
 
+        client.getEventQueue().writePending();    // Keep any held back motion in order.
         io.writeByte((byte) 1);    // Reply.
         io.writeByte(arg);
         io.writeShort(sn);
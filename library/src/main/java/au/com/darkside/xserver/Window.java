@@ -3,8 +3,10 @@ package au.com.darkside.xserver;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.Region;
+import android.graphics.RegionIterator;
 
 import java.io.IOException;
 import java.util.HashSet;
@@ -32,6 +34,15 @@ public class Window extends Resource {
     private Region _inputShapeRegion = null;
     private Vector<Client> _shapeSelectInput;
     private Drawable _drawable;
+    private Region _borderRegion = null;
+    private Region _contentRegion = null;
+    private Region _outerRegion = null;
+    private Region _innerRegion = null;
+    private Rect _childLimit = null;
+    private final Path _borderPath = new Path();
+    private final Path _contentPath = new Path();
+    private int _contentX;
+    private int _contentY;
     private Colormap _colormap;
     private Cursor _cursor = null;
     private int[] _attributes;
@@ -41,6 +52,7 @@ public class Window extends Resource {
     private boolean _isServerWindow = false;
     private boolean _hardwareAccelerated = false;
     private final Vector<Window> _children;
+    private final WindowIndex _childIndex;
     private final Hashtable<Integer, Property> _properties;
     private final Set<PassiveButtonGrab> _passiveButtonGrabs;
     private final Set<PassiveKeyGrab> _passiveKeyGrabs;
@@ -48,8 +60,7 @@ public class Window extends Resource {
     private boolean _exposed = false;
     private int _visibility = NotViewable;
     private Bitmap _backgroundBitmap = null;
-    private int _eventMask = 0;
-    private final Hashtable<Client, Integer> _clientMasks;
+    private volatile EventSelection _selection = EventSelection.Empty;
 
     private static final int Unobscured = 0;
     private static final int PartiallyObscured = 1;
@@ -144,18 +155,18 @@ public class Window extends Resource {
             _attributes[AttrBackgroundPixel] = 0xffc0c0c0;
             _isMapped = true;
             _cursor = (Cursor) _xServer.getResource(2);    // X cursor.
-            _drawable = new Drawable(width, height, 32, null, _attributes[AttrBackgroundPixel]);
+            _drawable = createDrawable(width, height);
             _drawable.clear();
         } else {
             _attributes[AttrBackgroundPixel] = 0xff000000;
-            _drawable = new Drawable(width, height, 32, null, _attributes[AttrBackgroundPixel]);
+            _drawable = createDrawable(width, height);
         }
 
         _children = new Vector<Window>();
+        _childIndex = new WindowIndex(_children);
         _properties = new Hashtable<Integer, Property>();
         _passiveButtonGrabs = new HashSet<PassiveButtonGrab>();
         _passiveKeyGrabs = new HashSet<PassiveKeyGrab>();
-        _clientMasks = new Hashtable<Client, Integer>();
         _shapeSelectInput = new Vector<Client>();
     }
 
@@ -296,8 +307,11 @@ public class Window extends Resource {
                 break;
             case XShape.KindInput:
                 _inputShapeRegion = r;
+                updateIndex();
                 break;
         }
+
+        if (shapeKind != XShape.KindInput) updateClipRegions();
     }
 
     /**
@@ -327,6 +341,48 @@ public class Window extends Resource {
         return _drawable;
     }
 
+    /**
+     * Can the window's contents live in the screen's shared framebuffer?
+     * Windows that ask for backing store or save-under keep their own
+     * bitmap, so their contents survive being obscured.
+     *
+     * @return True if the window should use shared storage.
+     */
+    private boolean usesSharedStorage() {
+        return _screen.getSharedFramebuffer() != null && _attributes[AttrBackingStore] == 0 && _attributes[AttrSaveUnder] == 0;
+    }
+
+    /**
+     * Create a drawable to hold the window's contents.
+     *
+     * @param width  Width of the window.
+     * @param height Height of the window.
+     * @return A new drawable.
+     */
+    private Drawable createDrawable(int width, int height) {
+        int bgcolor = _attributes[AttrBackgroundPixel] | 0xff000000;
+
+        if (usesSharedStorage())
+            return new Drawable(_screen.getSharedFramebuffer(), width, height, 32, _backgroundBitmap, bgcolor);
+
+        return new Drawable(width, height, 32, _backgroundBitmap, bgcolor);
+    }
+
+    /**
+     * Return the number of bytes of pixel storage owned by the window
+     * and its children.
+     *
+     * @return The number of bytes of pixel storage.
+     */
+    public long getMemoryBytes() {
+        long n = _drawable.getMemoryBytes();
+
+        for (Window w : _children)
+            n += w.getMemoryBytes();
+
+        return n;
+    }
+
     /**
      * Return the window's cursor.
      *
@@ -361,27 +417,18 @@ public class Window extends Resource {
      * @return The window's event mask.
      */
     public int getEventMask() {
-        return _eventMask;
+        return _selection.getEventMask();
     }
 
     /**
      * Return the list of clients selecting on the events.
+     * The list is shared and must not be modified.
      *
      * @param mask The event mask.
      * @return List of clients, or null if none selecting.
      */
-    public Vector<Client> getSelectingClients(int mask) {
-        if ((mask & _eventMask) == 0) return null;
-
-        Vector<Client> rc = new Vector<Client>();
-        Set<Client> sc = _clientMasks.keySet();
-
-        for (Client c : sc) {
-            if (c == null) continue;
-            if ((_clientMasks.get(c) & mask) != 0) rc.add(c);
-        }
-
-        return rc;
+    public Client[] getSelectingClients(int mask) {
+        return _selection.getClients(mask);
     }
 
     /**
@@ -391,15 +438,7 @@ public class Window extends Resource {
      * @param client The client to remove.
      */
     private void removeSelectingClient(Client client) {
-        _clientMasks.remove(client);
-
-        Set<Client> sc = _clientMasks.keySet();
-
-        _eventMask = 0;
-        for (Client c : sc) {
-            if (c == null) continue;
-            _eventMask |= _clientMasks.get(c);
-        }
+        _selection = _selection.without(client);
     }
 
     /**
@@ -409,8 +448,7 @@ public class Window extends Resource {
      * @return The event mask, or zero if the client is selecting.
      */
     public int getClientEventMask(Client client) {
-        if (_clientMasks.containsKey(client)) return _clientMasks.get(client);
-        else return 0;
+        return _selection.getClientMask(client);
     }
 
     /**
@@ -467,6 +505,10 @@ public class Window extends Resource {
     public void draw(Canvas canvas, Paint paint) {
         if (!_isMapped) return;
 
+        // Skip windows that are entirely outside the area being redrawn.
+        if (_boundingShapeRegion == null && canvas.quickReject(_orect.left, _orect.top, _orect.right, _orect.bottom, Canvas.EdgeType.BW))
+            return;
+
         if (_boundingShapeRegion != null) {
             canvas.save();
 
@@ -519,6 +561,270 @@ public class Window extends Resource {
         if (_boundingShapeRegion != null) canvas.restore();
     }
 
+    /**
+     * Draw the window and its mapped children into the shared framebuffer.
+     * Shared windows draw their contents directly into the framebuffer,
+     * so only borders and windows with private storage need drawing.
+     *
+     * @param canvas The framebuffer canvas.
+     * @param paint  A paint to draw with.
+     */
+    public void drawShared(Canvas canvas, Paint paint) {
+        if (_contentRegion == null) return;
+
+        if (canvas.quickReject(_orect.left, _orect.top, _orect.right, _orect.bottom, Canvas.EdgeType.BW))
+            return;
+
+        if (!_borderRegion.isEmpty()) {
+            canvas.save();
+            canvas.clipPath(_borderPath);
+            paint.setColor(_attributes[AttrBorderPixel] | 0xff000000);
+            paint.setStyle(Paint.Style.FILL);
+            canvas.drawRect(_orect, paint);
+            canvas.restore();
+        }
+
+        if (!_drawable.isShared() && !_contentRegion.isEmpty()) {
+            canvas.save();
+            canvas.clipPath(_contentPath);
+            canvas.drawBitmap(_drawable.getBitmap(), _irect.left, _irect.top, paint);
+            canvas.restore();
+        }
+
+        for (Window w : _children)
+            w.drawShared(canvas, paint);
+    }
+
+    /**
+     * Recalculate the visible regions after this window has been mapped,
+     * unmapped, moved, resized, restacked or reshaped.
+     * Only the siblings that overlap the area the window covers now or
+     * covered before, and their descendants, are recalculated. Windows
+     * whose visibility changes are sent VisibilityNotify events, and
+     * newly visible parts of shared windows are exposed.
+     */
+    public void updateClipRegions() {
+        if (_parent == null) {
+            updateClipRegion(new Region(_orect), _orect);
+            return;
+        }
+
+        Window p = _parent;
+        Rect area = (_outerRegion != null) ? _outerRegion.getBounds() : new Rect();
+
+        area.union(_orect);
+        if (!_isMapped) clearClipRegion();
+
+        if (p._innerRegion == null) {    // The parent isn't viewable.
+            clearClipRegion();
+            return;
+        }
+
+        if (p._contentRegion == null) {    // The parent's own region is being rebuilt.
+            p.updateClipRegions();
+            return;
+        }
+
+        int px = p._irect.left;
+        int py = p._irect.top;
+        Rect rel = new Rect(area);
+        Rect bounds = new Rect(area);
+
+        rel.offset(-px, -py);
+        for (Window w : p._childIndex.windowsIn(rel))
+            bounds.union(w._orect);
+
+        // The windows overlapping the area are recalculated. Others that
+        // overlap them keep their regions, which are subtracted.
+        Region avail = new Region(p._innerRegion);
+
+        avail.op(bounds, Region.Op.INTERSECT);
+        rel.set(bounds);
+        rel.offset(-px, -py);
+        for (Window w : p._childIndex.windowsIn(rel)) {
+            if (Rect.intersects(w._orect, area)) w.updateClipRegion(avail, p._childLimit);
+            else if (w._outerRegion != null) avail.op(w._outerRegion, Region.Op.DIFFERENCE);
+        }
+
+        Region content = new Region(p._contentRegion);
+
+        content.op(bounds, Region.Op.DIFFERENCE);
+        content.op(avail, Region.Op.UNION);
+        p.setContentRegion(content);
+    }
+
+    /**
+     * Work out which parts of the screen the window and its children can
+     * draw to, and how visible they are.
+     *
+     * @param avail The part of the screen not covered by windows above.
+     *              The window's area is removed from it on return.
+     * @param limit The part of the screen inside all the window's
+     *              ancestors.
+     */
+    private void updateClipRegion(Region avail, Rect limit) {
+        if (!_isMapped || _inputOnly) {
+            clearClipRegion();
+            return;
+        }
+
+        Region outer = new Region(avail);
+
+        outer.op(_orect, Region.Op.INTERSECT);
+        if (_boundingShapeRegion != null) outer.op(_boundingShapeRegion, Region.Op.INTERSECT);
+
+        Region content = new Region(outer);
+
+        content.op(_irect, Region.Op.INTERSECT);
+        if (_clipShapeRegion != null) content.op(_clipShapeRegion, Region.Op.INTERSECT);
+
+        Rect childLimit = new Rect(_irect);
+
+        if (!childLimit.intersect(limit)) childLimit.setEmpty();
+
+        updateVisibility(content, childLimit);
+        _innerRegion = new Region(content);
+        _childLimit = childLimit;
+
+        for (int i = _children.size() - 1; i >= 0; i--)
+            _children.elementAt(i).updateClipRegion(content, childLimit);
+
+        _outerRegion = outer;
+        _borderRegion = new Region(outer);
+        _borderRegion.op(_irect, Region.Op.DIFFERENCE);
+        _borderPath.reset();
+        if (_screen.getSharedFramebuffer() != null) _borderRegion.getBoundaryPath(_borderPath);
+
+        setContentRegion(content);
+        avail.op(outer, Region.Op.DIFFERENCE);
+    }
+
+    /**
+     * Set the part of the window's contents not covered by other windows
+     * or its children.
+     *
+     * @param content The visible part of the window's contents.
+     */
+    private void setContentRegion(Region content) {
+        _contentPath.reset();
+        if (_screen.getSharedFramebuffer() != null) content.getBoundaryPath(_contentPath);
+
+        if (_drawable.isShared()) exposeSharedContent(content);
+
+        _contentRegion = content;
+        _contentX = _irect.left;
+        _contentY = _irect.top;
+    }
+
+    /**
+     * Work out the window's visibility from the visible part of its
+     * contents, ignoring its children, and notify any clients that have
+     * selected visibility changes.
+     *
+     * @param visible The visible part of the window's contents.
+     * @param limit   The part of the window inside all its ancestors.
+     */
+    private void updateVisibility(Region visible, Rect limit) {
+        int visibility;
+
+        if (visible.isEmpty()) {
+            visibility = FullyObscured;
+        } else if (_boundingShapeRegion == null && _clipShapeRegion == null && visible.isRect()) {
+            visibility = visible.getBounds().equals(limit) ? Unobscured : PartiallyObscured;
+        } else {
+            Region hidden = new Region(limit);
+
+            if (_boundingShapeRegion != null) hidden.op(_boundingShapeRegion, Region.Op.INTERSECT);
+            if (_clipShapeRegion != null) hidden.op(_clipShapeRegion, Region.Op.INTERSECT);
+
+            hidden.op(visible, Region.Op.DIFFERENCE);
+            visibility = hidden.isEmpty() ? Unobscured : PartiallyObscured;
+        }
+
+        if (visibility == _visibility) return;
+
+        _visibility = visibility;
+
+        Client[] sc = getSelectingClients(EventCode.MaskVisibilityChange);
+
+        if (sc == null) return;
+
+        for (Client c : sc) {
+            if (c == null) continue;
+            try {
+                EventCode.sendVisibilityNotify(c, this, visibility);
+            } catch (IOException e) {
+                removeSelectingClient(c);
+            }
+        }
+    }
+
+    /**
+     * Mark the window and its children as not viewable.
+     */
+    private void clearClipRegion() {
+        _contentRegion = null;
+        _borderRegion = null;
+        _outerRegion = null;
+        _innerRegion = null;
+        _childLimit = null;
+        _visibility = NotViewable;
+        if (_drawable.isShared()) _drawable.setClipRegion(new Region());
+
+        for (Window w : _children)
+            w.clearClipRegion();
+    }
+
+    /**
+     * Give a shared window its new visible region. Anything that was not
+     * already visible at the same position has no valid contents, so it
+     * is cleared to the background and exposed.
+     *
+     * @param content The visible part of the window's contents.
+     */
+    private void exposeSharedContent(Region content) {
+        Region exposed = new Region(content);
+
+        if (_contentRegion != null && _contentX == _irect.left && _contentY == _irect.top)
+            exposed.op(_contentRegion, Region.Op.DIFFERENCE);
+
+        _drawable.setPosition(_irect.left, _irect.top);
+        _drawable.setClipRegion(content);
+
+        if (exposed.isEmpty()) return;
+
+        Rect bounds = exposed.getBounds();
+
+        _drawable.clearRegion(exposed);
+        _screen.damage(bounds.left, bounds.top, bounds.right, bounds.bottom);
+
+        Client[] sc = getSelectingClients(EventCode.MaskExposure);
+
+        if (sc != null) {
+            Vector<Rect> rects = new Vector<Rect>();
+            RegionIterator ri = new RegionIterator(exposed);
+            Rect r = new Rect();
+
+            while (ri.next(r))
+                rects.add(new Rect(r));
+
+            for (Client c : sc) {
+                if (c == null) continue;
+
+                int count = rects.size();
+
+                try {
+                    for (Rect er : rects)
+                        EventCode.sendExpose(c, this, er.left - _irect.left, er.top - _irect.top, er.width(), er.height(), --count);
+                } catch (IOException e) {
+                    removeSelectingClient(c);
+                }
+            }
+        }
+
+        _exposed = true;
+    }
+
     /**
      * Return the mapped window whose input area contains the specified point.
      *
@@ -527,19 +833,23 @@ public class Window extends Resource {
      * @return The mapped window containing the point.
      */
     public Window windowAtPoint(int x, int y) {
-        for (int i = _children.size() - 1; i >= 0; i--) {
-            Window w = _children.elementAt(i);
+        Window w = _childIndex.windowAt(x - _irect.left, y - _irect.top, x, y);
 
-            if (!w._isMapped) continue;
+        return (w == null) ? this : w.windowAtPoint(x, y);
+    }
 
-            if (w._inputShapeRegion != null) {
-                if (w._inputShapeRegion.contains(x, y)) return w.windowAtPoint(x, y);
-            } else if (w._orect.contains(x, y)) {
-                return w.windowAtPoint(x, y);
-            }
-        }
+    /**
+     * Update this window's entry in its parent's index of children.
+     * Called whenever the window is mapped, unmapped, moved, resized or
+     * given a new input shape.
+     */
+    private void updateIndex() {
+        if (_parent == null) return;
+
+        int px = _parent._irect.left;
+        int py = _parent._irect.top;
 
-        return this;
+        _parent._childIndex.update(this, _isMapped, _orect.left - px, _orect.top - py, _orect.right - px, _orect.bottom - py, _inputShapeRegion);
     }
 
     /**
@@ -683,8 +993,9 @@ public class Window extends Resource {
         _xServer.addResource(w);
         client.addResource(w);
         _children.add(w);
+        _childIndex.restacked();
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = getSelectingClients(EventCode.MaskSubstructureNotify)) != null) {
             for (Client c : sc) {
@@ -700,7 +1011,7 @@ public class Window extends Resource {
      * Request a redraw of the window.
      */
     public void invalidate() {
-        _screen.postInvalidate(_orect.left, _orect.top, _orect.right, _orect.bottom);
+        _screen.damage(_orect.left, _orect.top, _orect.right, _orect.bottom);
     }
 
     /**
@@ -712,7 +1023,7 @@ public class Window extends Resource {
      * @param height Height of the region.
      */
     public void invalidate(int x, int y, int width, int height) {
-        _screen.postInvalidate(_irect.left + x, _irect.top + y, _irect.left + x + width, _irect.top + y + height);
+        _screen.damage(_irect.left + x, _irect.top + y, _irect.left + x + width, _irect.top + y + height);
     }
 
     /**
@@ -721,7 +1032,7 @@ public class Window extends Resource {
      */
     @Override
     public void delete() {
-        Vector<Client> psc, sc;
+        Client[] psc, sc;
 
         // Send unmap and destroy notification to any other clients that
         // are listening.
@@ -734,6 +1045,7 @@ public class Window extends Resource {
         if (_isMapped) {
             _screen.revertFocus(this);
             _isMapped = false;
+            updateIndex();
 
             if (sc != null) {
                 for (Client c : sc) {
@@ -757,7 +1069,7 @@ public class Window extends Resource {
                 }
             }
 
-            updateAffectedVisibility();
+            updateClipRegions();
             invalidate();
         }
 
@@ -785,7 +1097,10 @@ public class Window extends Resource {
 
         _screen.deleteWindow(this);
 
-        if (_parent != null) _parent._children.remove(this);
+        if (_parent != null) {
+            _parent._children.remove(this);
+            _parent._childIndex.remove(this);
+        }
 
         super.delete();
     }
@@ -918,17 +1233,8 @@ public class Window extends Resource {
             }
         }
 
-        if ((mask & (1 << AttrEventMask)) != 0) {
-            _clientMasks.put(client, _attributes[AttrEventMask]);
-
-            Set<Client> sc = _clientMasks.keySet();
-
-            _eventMask = 0;
-            for (Client c : sc){
-                if (c == null) continue;
-                _eventMask |= _clientMasks.get(c);
-            }
-        }
+        if ((mask & (1 << AttrEventMask)) != 0)
+            _selection = _selection.with(client, _attributes[AttrEventMask]);
 
         if ((mask & (1 << AttrOverrideRedirect)) != 0)
             _overrideRedirect = (_attributes[AttrOverrideRedirect] == 1);
@@ -950,6 +1256,28 @@ public class Window extends Resource {
             }
         }
 
+        if ((mask & ((1 << AttrBackingStore) | (1 << AttrSaveUnder))) != 0 && _screen.getSharedFramebuffer() != null && usesSharedStorage() != _drawable.isShared()) {
+            Drawable d;
+
+            try {
+                d = createDrawable(_drawable.getWidth(), _drawable.getHeight());
+            } catch (OutOfMemoryError e) {
+                ErrorCode.write(client, ErrorCode.Alloc, opcode, 0);
+                return false;
+            }
+
+            if (d.isShared()) {    // The visible parts will be exposed.
+                _drawable.recycle();
+                _drawable = d;
+                _contentRegion = null;
+                updateClipRegions();
+            } else {
+                d.clear();
+                d.copyFrom(_drawable);
+                _drawable = d;
+            }
+        }
+
         return ok;
     }
 
@@ -966,7 +1294,7 @@ public class Window extends Resource {
     private void enterNotify(int x, int y, int detail, Window toWindow, int mode) {
         if (!_isMapped) return;
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = getSelectingClients(EventCode.MaskEnterWindow)) == null) return;
 
@@ -1012,7 +1340,7 @@ public class Window extends Resource {
     private void leaveNotify(int x, int y, int detail, Window fromWindow, int mode) {
         if (!_isMapped) return;
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = getSelectingClients(EventCode.MaskLeaveWindow)) == null) return;
 
@@ -1101,7 +1429,7 @@ public class Window extends Resource {
     private void focusInNotify(int detail, int mode) {
         if (!_isMapped) return;
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = getSelectingClients(EventCode.MaskFocusChange)) == null) return;
 
@@ -1139,7 +1467,7 @@ public class Window extends Resource {
     private void focusOutNotify(int detail, int mode) {
         if (!_isMapped) return;
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if ((sc = getSelectingClients(EventCode.MaskFocusChange)) == null) return;
 
@@ -1363,7 +1691,7 @@ public class Window extends Resource {
         Window evw = this;
         Window child = null;
         int mask = pressed ? EventCode.MaskButtonPress : EventCode.MaskButtonRelease;
-        Vector<Client> sc;
+        Client[] sc;
 
         for (; ; ) {
             if (evw._isMapped) {
@@ -1447,7 +1775,7 @@ public class Window extends Resource {
         Window evw = this;
         Window child = null;
         int mask = pressed ? EventCode.MaskKeyPress : EventCode.MaskKeyRelease;
-        Vector<Client> sc;
+        Client[] sc;
 
         for (; ; ) {
             if (evw._isMapped) {
@@ -1542,7 +1870,7 @@ public class Window extends Resource {
         Window evw = this;
         Window child = null;
         int mask = buttonEventMask(buttonMask);
-        Vector<Client> sc;
+        Client[] sc;
 
         for (; ; ) {
             if (evw._isMapped) {
@@ -1623,7 +1951,7 @@ public class Window extends Resource {
     private void map(Client client) throws IOException {
         if (_isMapped) return;
 
-        Vector<Client> sc;
+        Client[] sc;
 
         if (!_overrideRedirect) {
             sc = _parent.getSelectingClients(EventCode.MaskSubstructureRedirect);
@@ -1639,6 +1967,7 @@ public class Window extends Resource {
         }
 
         _isMapped = true;
+        updateIndex();
 
         sc = getSelectingClients(EventCode.MaskStructureNotify);
         if (sc != null) {
@@ -1664,7 +1993,7 @@ public class Window extends Resource {
             }
         }
 
-        updateAffectedVisibility();
+        updateClipRegions();
 
         if (!_exposed) {
             sc = getSelectingClients(EventCode.MaskExposure);
@@ -1704,8 +2033,9 @@ public class Window extends Resource {
         if (!_isMapped) return;
 
         _isMapped = false;
+        updateIndex();
 
-        Vector<Client> sc;
+        Client[] sc;
 
         sc = getSelectingClients(EventCode.MaskStructureNotify);
         if (sc != null) {
@@ -1731,7 +2061,7 @@ public class Window extends Resource {
             }
         }
 
-        updateAffectedVisibility();
+        updateClipRegions();
         _screen.revertFocus(this);
     }
 
@@ -1764,10 +2094,14 @@ public class Window extends Resource {
             w.destroy(false);
 
         _children.clear();
+        _childIndex.clear();
 
-        if (removeFromParent) _parent._children.remove(this);
+        if (removeFromParent) {
+            _parent._children.remove(this);
+            _parent._childIndex.remove(this);
+        }
 
-        Vector<Client> sc;
+        Client[] sc;
 
         sc = getSelectingClients(EventCode.MaskStructureNotify);
         if (sc != null) {
@@ -1793,7 +2127,7 @@ public class Window extends Resource {
             }
         }
 
-        _drawable.getBitmap().recycle();
+        _drawable.recycle();
     }
 
     /**
@@ -1824,12 +2158,14 @@ public class Window extends Resource {
         _irect.bottom += dy;
 
         _parent._children.remove(this);
+        _parent._childIndex.remove(this);
         parent._children.add(this);
+        parent._childIndex.restacked();
 
         if (dx != 0 || dy != 0) for (Window w : _children)
             w.move(dx, dy, 0, 0);
 
-        Vector<Client> sc;
+        Client[] sc;
 
         sc = getSelectingClients(EventCode.MaskStructureNotify);
         if (sc != null) {
@@ -1870,7 +2206,7 @@ public class Window extends Resource {
         _parent = parent;
         if (mapped) {
             map(client);
-            if (!_inputOnly) _screen.postInvalidate(orig.left, orig.top, orig.right, orig.bottom);
+            if (!_inputOnly) _screen.damage(orig.left, orig.top, orig.right, orig.bottom);
         }
     }
 
@@ -1905,7 +2241,7 @@ public class Window extends Resource {
 
         if (sw == null) return false;
 
-        Vector<Client> sc;
+        Client[] sc;
 
         sc = getSelectingClients(EventCode.MaskSubstructureRedirect);
         if (sc != null) {
@@ -1929,6 +2265,7 @@ public class Window extends Resource {
             _children.remove(sw);
             _children.add(0, sw);
         }
+        _childIndex.restacked();
 
         sc = getSelectingClients(EventCode.MaskStructureNotify);
         if (sc != null) {
@@ -1954,7 +2291,7 @@ public class Window extends Resource {
             }
         }
 
-        updateAffectedVisibility();
+        sw.updateClipRegions();
 
         return true;
     }
@@ -2055,7 +2392,7 @@ public class Window extends Resource {
                     break;
             }
 
-            Vector<Client> sc;
+            Client[] sc;
 
             sc = getSelectingClients(EventCode.MaskStructureNotify);
             if (sc != null) {
@@ -2082,7 +2419,10 @@ public class Window extends Resource {
             }
         }
 
-        if (dx == 0 && dy == 0) return;
+        if (dx == 0 && dy == 0) {
+            updateIndex();    // The parent may have moved.
+            return;
+        }
 
         _irect.left += dx;
         _irect.right += dx;
@@ -2092,6 +2432,7 @@ public class Window extends Resource {
         _orect.right += dx;
         _orect.top += dy;
         _orect.bottom += dy;
+        updateIndex();
 
         for (Window w : _children)
             w.move(dx, dy, 0, 0);
@@ -2182,7 +2523,7 @@ public class Window extends Resource {
         }
 
         if (!_overrideRedirect) {
-            Vector<Client> sc;
+            Client[] sc;
 
             sc = _parent.getSelectingClients(EventCode.MaskSubstructureRedirect);
             if (sc != null) {
@@ -2202,7 +2543,7 @@ public class Window extends Resource {
                 return false;
             }
 
-            Vector<Client> sc;
+            Client[] sc;
 
             sc = getSelectingClients(EventCode.MaskResizeRedirect);
             if (sc != null) {
@@ -2220,14 +2561,19 @@ public class Window extends Resource {
 
         if (x != oldX || y != oldY || width != oldWidth || height != oldHeight || borderWidth != _borderWidth) {
             if (width != oldWidth || height != oldHeight) {
-                try {
-                    _drawable = new Drawable(width, height, 32, _backgroundBitmap, _attributes[AttrBackgroundPixel] | 0xff000000);
-                } catch (OutOfMemoryError e) {
-                    ErrorCode.write(client, ErrorCode.Alloc, RequestCode.ConfigureWindow, 0);
-                    return false;
-                }
+                if (_drawable.isShared()) {    // Contents are lost, as if bit-gravity were Forget.
+                    _drawable.setSize(width, height);
+                    _contentRegion = null;
+                } else {
+                    try {
+                        _drawable = new Drawable(width, height, 32, _backgroundBitmap, _attributes[AttrBackgroundPixel] | 0xff000000);
+                    } catch (OutOfMemoryError e) {
+                        ErrorCode.write(client, ErrorCode.Alloc, RequestCode.ConfigureWindow, 0);
+                        return false;
+                    }
 
-                _drawable.clear();
+                    _drawable.clear();
+                }
                 _exposed = false;
             }
 
@@ -2334,7 +2680,10 @@ public class Window extends Resource {
         }
 
         if (changed) {
-            Vector<Client> sc;
+            Client[] sc;
+
+            updateIndex();
+            _parent._childIndex.restacked();
 
             sc = getSelectingClients(EventCode.MaskStructureNotify);
             if (sc != null) {
@@ -2356,11 +2705,11 @@ public class Window extends Resource {
                 for (Window w : _children)
                     w.move(_irect.left - oldLeft, _irect.top - oldTop, width - oldWidth, height - oldHeight);
 
-            updateAffectedVisibility();
+            updateClipRegions();
         }
 
         if (!_exposed) {
-            Vector<Client> sc;
+            Client[] sc;
 
             if ((sc = getSelectingClients(EventCode.MaskExposure)) != null) {
                 for (Client c : sc) {
@@ -2372,7 +2721,7 @@ public class Window extends Resource {
         }
 
         if (dirty != null && _isMapped && !_inputOnly)
-            _screen.postInvalidate(dirty.left, dirty.top, dirty.right, dirty.bottom);
+            _screen.damage(dirty.left, dirty.top, dirty.right, dirty.bottom);
 
         return changed;
     }
@@ -2445,6 +2794,7 @@ public class Window extends Resource {
                     for (Window w : _children)
                         w.destroy(false);
                     _children.clear();
+                    _childIndex.clear();
                     redraw = true;
                     updatePointer = true;
                 }
@@ -2601,7 +2951,7 @@ public class Window extends Resource {
                     if (a == null) {
                         ErrorCode.write(client, ErrorCode.Atom, opcode, id);
                     } else if (_properties.containsKey(id)) {
-                        Vector<Client> sc = getSelectingClients(EventCode.MaskPropertyChange);
+                        Client[] sc = getSelectingClients(EventCode.MaskPropertyChange);
 
                         _properties.remove(id);
                         if (sc != null) {
@@ -2652,6 +3002,8 @@ public class Window extends Resource {
 
                     if (w._parent == this) cid = w.getId();
 
+                    client.getEventQueue().resetMotionHint();
+
                     synchronized (io) {
                         Util.writeReplyHeader(client, (byte) 1);
                         io.writeInt(0);    // Reply length.
@@ -2676,6 +3028,7 @@ public class Window extends Resource {
 
                     io.readInt();    // Start time.
                     io.readInt();    // Stop time.
+                    client.getEventQueue().resetMotionHint();
 
                     synchronized (io) {
                         Util.writeReplyHeader(client, (byte) 0);
@@ -2735,7 +3088,7 @@ public class Window extends Resource {
                     invalidate(x, y, width, height);
 
                     if (arg == 1) {
-                        Vector<Client> sc;
+                        Client[] sc;
 
                         sc = getSelectingClients(EventCode.MaskExposure);
                         if (sc != null) for (Client c : sc){
@@ -2762,7 +3115,11 @@ public class Window extends Resource {
             case RequestCode.ImageText8:
             case RequestCode.ImageText16:
             case RequestCode.QueryBestSize:
-                redraw = _drawable.processRequest(_xServer, client, _id, opcode, arg, bytesRemaining);
+                if (_drawable.processRequest(_xServer, client, _id, opcode, arg, bytesRemaining)) {
+                    Rect r = _drawable.getDamage();
+
+                    if (!r.isEmpty()) invalidate(r.left, r.top, r.width(), r.height());
+                }
                 break;
             case RequestCode.ListInstalledColormaps:
                 if (bytesRemaining != 0) {
@@ -2790,88 +3147,6 @@ public class Window extends Resource {
         }
     }
 
-    /**
-     * Calculate a window's visibility.
-     *
-     * @return The window's visibility.
-     */
-    private int calculateVisibility() {
-        if (_inputOnly) return NotViewable;
-
-        int result = Unobscured;
-
-        for (Window aw = this; aw._parent != null; aw = aw._parent) {
-            if (!_isMapped) return NotViewable;    // All ancestors must be mapped.
-
-            if (result == FullyObscured) continue;    // Keep checking in case ancestor is unmapped.
-
-            boolean above = false;
-
-            for (Window w : aw._parent._children) {
-                if (!w._isMapped) continue;
-
-                if (above) {
-                    if (Rect.intersects(w._orect, _orect)) {
-                        if (w._orect.contains(_orect)) {
-                            result = FullyObscured;
-                            break;
-                        }
-
-                        result = PartiallyObscured;
-                    }
-                } else if (w == aw) {
-                    above = true;
-                }
-            }
-        }
-
-        return result;
-    }
-
-    /**
-     * Update the visibility of this window and its children.
-     */
-    private void updateVisibility() {
-        Vector<Client> sc = getSelectingClients(EventCode.MaskVisibilityChange);
-
-        if (sc != null) {
-            int visibility = calculateVisibility();
-
-            if (visibility != _visibility) {
-                _visibility = visibility;
-                if (visibility != NotViewable) {
-                    for (Client c : sc) {
-                        if (c == null) continue;
-                        try {
-                            EventCode.sendVisibilityNotify(c, this, visibility);
-                        } catch (IOException e) {
-                            removeSelectingClient(c);
-                        }
-                    }
-                }
-            }
-        }
-
-        for (Window w : _children)
-            w.updateVisibility();
-    }
-
-    /**
-     * Update the visibility of all the windows that might have been
-     * affected by changes to this window.
-     */
-    private void updateAffectedVisibility() {
-        if (_parent == null) {
-            updateVisibility();
-            return;
-        }
-
-        for (Window w : _parent._children) {
-            w.updateVisibility();
-            if (w == this) break;
-        }
-    }
-
     /**
      * Allows adding a new property to this window.
      * @param p property to add.
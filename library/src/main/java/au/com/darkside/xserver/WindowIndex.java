@@ -0,0 +1,298 @@
+package au.com.darkside.xserver;
+
+import android.graphics.Rect;
+import android.graphics.Region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class is a spatial index of the mapped children of a window, used
+ * to find the child under the pointer and the siblings whose visible
+ * regions a change can affect without looking at every child.
+ * Each child's outer rectangle, relative to the parent's inside corner,
+ * is entered in the cells of a uniform grid that it overlaps. Children
+ * that cover too many cells, or have an input shape, are kept in a
+ * separate list that is always checked. Entries are updated one child at
+ * a time as windows are mapped, unmapped and configured, and stacking
+ * positions are renumbered the next time the index is used after a
+ * restack.
+ *
+ * @author Matthew Kwan
+ */
+public class WindowIndex {
+    private final List<Window> _children;
+    private final HashMap<Window, Entry> _entries = new HashMap<Window, Entry>();
+    private final HashMap<Long, ArrayList<Entry>> _cells = new HashMap<Long, ArrayList<Entry>>();
+    private final ArrayList<Entry> _unbounded = new ArrayList<Entry>();
+    private boolean _stackingChanged = true;
+    private int _queryStamp = 0;
+
+    private static final int CellShift = 6;    // 64 pixel cells.
+    private static final int MaxCellsPerEntry = 64;
+    private static final Comparator<Entry> TopFirst = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return b.position - a.position;
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param children The parent's children, in stacking order from the
+     *                 bottom up.
+     */
+    public WindowIndex(List<Window> children) {
+        _children = children;
+    }
+
+    /**
+     * Return the key of a grid cell.
+     *
+     * @param cx Column of the cell.
+     * @param cy Row of the cell.
+     * @return The cell's key.
+     */
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * Add, move or remove a child's entry.
+     *
+     * @param w      The child window.
+     * @param mapped True if the window is mapped. Unmapped windows are
+     *               removed from the index.
+     * @param left   Left edge of the window's outer rectangle, relative
+     *               to the parent's inside corner.
+     * @param top    Top edge of the outer rectangle.
+     * @param right  Right edge of the outer rectangle.
+     * @param bottom Bottom edge of the outer rectangle.
+     * @param shape  The window's input shape, in screen coordinates. May
+     *               be null.
+     */
+    public void update(Window w, boolean mapped, int left, int top, int right, int bottom, Region shape) {
+        Entry e = _entries.get(w);
+
+        if (e != null) {
+            if (mapped && e.shape == shape && e.rect.left == left && e.rect.top == top && e.rect.right == right && e.rect.bottom == bottom)
+                return;
+
+            removeEntry(e);
+        }
+
+        if (!mapped) return;
+
+        e = new Entry(w, new Rect(left, top, right, bottom), shape);
+        _entries.put(w, e);
+        _stackingChanged = true;
+
+        int cx1 = left >> CellShift;
+        int cy1 = top >> CellShift;
+        int cx2 = (right - 1) >> CellShift;
+        int cy2 = (bottom - 1) >> CellShift;
+
+        if (shape != null || left >= right || top >= bottom || (long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MaxCellsPerEntry) {
+            _unbounded.add(e);
+            return;
+        }
+
+        e.cells = new Rect(cx1, cy1, cx2 + 1, cy2 + 1);
+        for (int cy = cy1; cy <= cy2; cy++) {
+            for (int cx = cx1; cx <= cx2; cx++) {
+                long key = cellKey(cx, cy);
+                ArrayList<Entry> cell = _cells.get(key);
+
+                if (cell == null) {
+                    cell = new ArrayList<Entry>(4);
+                    _cells.put(key, cell);
+                }
+
+                cell.add(e);
+            }
+        }
+    }
+
+    /**
+     * Remove a child's entry, if it has one.
+     *
+     * @param w The child window.
+     */
+    public void remove(Window w) {
+        Entry e = _entries.get(w);
+
+        if (e != null) removeEntry(e);
+    }
+
+    /**
+     * Remove an entry from the index.
+     *
+     * @param e The entry.
+     */
+    private void removeEntry(Entry e) {
+        _entries.remove(e.window);
+
+        if (e.cells == null) {
+            _unbounded.remove(e);
+            return;
+        }
+
+        for (int cy = e.cells.top; cy < e.cells.bottom; cy++) {
+            for (int cx = e.cells.left; cx < e.cells.right; cx++) {
+                long key = cellKey(cx, cy);
+                ArrayList<Entry> cell = _cells.get(key);
+
+                if (cell == null) continue;
+
+                cell.remove(e);
+                if (cell.isEmpty()) _cells.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear() {
+        _entries.clear();
+        _cells.clear();
+        _unbounded.clear();
+    }
+
+    /**
+     * Note that the children have been restacked.
+     */
+    public void restacked() {
+        _stackingChanged = true;
+    }
+
+    /**
+     * Number the entries by their position in the stacking order.
+     */
+    private void updateStacking() {
+        if (!_stackingChanged) return;
+
+        int n = _children.size();
+
+        for (int i = 0; i < n; i++) {
+            Entry e = _entries.get(_children.get(i));
+
+            if (e != null) e.position = i;
+        }
+
+        _stackingChanged = false;
+    }
+
+    /**
+     * Return the highest mapped child whose input area contains a point.
+     *
+     * @param rx X coordinate relative to the parent's inside corner.
+     * @param ry Y coordinate relative to the parent's inside corner.
+     * @param x  X coordinate on the screen.
+     * @param y  Y coordinate on the screen.
+     * @return The child containing the point, or null if there is none.
+     */
+    public Window windowAt(int rx, int ry, int x, int y) {
+        Entry best = null;
+
+        updateStacking();
+
+        ArrayList<Entry> cell = _cells.get(cellKey(rx >> CellShift, ry >> CellShift));
+
+        if (cell != null) {
+            for (Entry e : cell)
+                if ((best == null || e.position > best.position) && e.rect.contains(rx, ry)) best = e;
+        }
+
+        for (Entry e : _unbounded) {
+            if (best != null && e.position < best.position) continue;
+
+            if (e.shape != null ? e.shape.contains(x, y) : e.rect.contains(rx, ry)) best = e;
+        }
+
+        return (best == null) ? null : best.window;
+    }
+
+    /**
+     * Return the mapped children whose outer rectangles intersect a
+     * rectangle, from the top of the stacking order down.
+     *
+     * @param rect The rectangle, relative to the parent's inside corner.
+     * @return The children that intersect the rectangle.
+     */
+    public List<Window> windowsIn(Rect rect) {
+        ArrayList<Entry> found = new ArrayList<Entry>();
+
+        if (rect.isEmpty()) return new ArrayList<Window>();
+
+        updateStacking();
+
+        int cx1 = rect.left >> CellShift;
+        int cy1 = rect.top >> CellShift;
+        int cx2 = (rect.right - 1) >> CellShift;
+        int cy2 = (rect.bottom - 1) >> CellShift;
+
+        if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > _entries.size()) {    // Cheaper to check them all.
+            for (Entry e : _entries.values())
+                if (Rect.intersects(e.rect, rect)) found.add(e);
+        } else {
+            int stamp = ++_queryStamp;
+
+            for (int cy = cy1; cy <= cy2; cy++) {
+                for (int cx = cx1; cx <= cx2; cx++) {
+                    ArrayList<Entry> cell = _cells.get(cellKey(cx, cy));
+
+                    if (cell == null) continue;
+
+                    for (Entry e : cell) {
+                        if (e.stamp == stamp) continue;
+
+                        e.stamp = stamp;
+                        if (Rect.intersects(e.rect, rect)) found.add(e);
+                    }
+                }
+            }
+
+            for (Entry e : _unbounded)
+                if (Rect.intersects(e.rect, rect)) found.add(e);
+        }
+
+        Collections.sort(found, TopFirst);
+
+        ArrayList<Window> result = new ArrayList<Window>(found.size());
+
+        for (Entry e : found)
+            result.add(e.window);
+
+        return result;
+    }
+
+    /**
+     * A child window's entry in the index.
+     */
+    private static class Entry {
+        public final Window window;
+        public final Rect rect;
+        public final Region shape;
+        public Rect cells = null;
+        public int position = 0;
+        public int stamp = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param window The child window.
+         * @param rect   Its outer rectangle, relative to the parent.
+         * @param shape  Its input shape. May be null.
+         */
+        public Entry(Window window, Rect rect, Region shape) {
+            this.window = window;
+            this.rect = rect;
+            this.shape = shape;
+        }
+    }
+}
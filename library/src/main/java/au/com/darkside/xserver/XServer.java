@@ -13,12 +13,11 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import au.com.darkside.xserver.Xext.Extensions;
 import au.com.darkside.xserver.Xext.XShape;
@@ -39,14 +38,17 @@ public class XServer {
     public final short ProtocolMinorVersion = 0;
     public final String vendor = "Open source";
     public final int ReleaseNumber = 0;
+    public static final int MaxBigRequestLength = 1 << 22;    // In 4-byte units.
 
     private final int _port;
     private final Context _context;
     private final String _windowManagerClass;
     private final Vector<Format> _formats;
-    private final Hashtable<Integer, Resource> _resources;
+    private final ResourceTable _resources;
 
     private final Vector<Client> _clients;
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final RequestStats _requestStats = new RequestStats();
     private final int _clientIdBits = 20;
     private final int _clientIdStep = (1 << _clientIdBits);
     private int _clientIdBase = _clientIdStep;
@@ -63,6 +65,10 @@ public class XServer {
     private ScreenView _screen = null;
     private String[] _fontPath = null;
     private AcceptThread _acceptThread = null;
+    private SelectorThread _selectorThread = null;
+    private boolean _selectorEnabled = false;
+    private int _motionLatency = 50;
+    private int _maxPropertySize = 16 * 1024 * 1024;
     private long _timestamp;
     private Client _grabClient;
 
@@ -91,7 +97,7 @@ public class XServer {
         _port = port;
         _windowManagerClass = windowManagerClass;
         _formats = new Vector<Format>();
-        _resources = new Hashtable<Integer, Resource>();
+        _resources = new ResourceTable(_clientIdBits);
         _clients = new Vector<Client>();
         _atoms = new Hashtable<Integer, Atom>();
         _atomNames = new Hashtable<String, Atom>();
@@ -106,6 +112,9 @@ public class XServer {
         //_extensions.put("SYNC", new Extension(Extensions.Sync, XSync.EventBase, XSync.ErrorBase));
         _extensions.put("XTEST", new Extension(Extensions.XTEST, (byte) 0, (byte) 0));
 
+        for (String name : _extensions.keySet())
+            _requestStats.setOpcodeName(_extensions.get(name).majorOpcode, name);
+
         _formats.add(new Format((byte) 32, (byte) 24, (byte) 8));
 
         _keyboard = new Keyboard();
@@ -132,6 +141,37 @@ public class XServer {
         _onStartListener = l;
     }
 
+    /**
+     * Return the lock that guards the server's state.
+     * Requests that change windows, the screen or shared resources hold
+     * the write lock. Requests that only draw to a client's own pixmaps,
+     * and screen repaints, hold the read lock, so they can run in parallel.
+     *
+     * @return The server lock.
+     */
+    public ReentrantReadWriteLock getLock() {
+        return _lock;
+    }
+
+    /**
+     * Return the request processing statistics.
+     *
+     * @return The request statistics.
+     */
+    public RequestStats getRequestStats() {
+        return _requestStats;
+    }
+
+    /**
+     * Describe the request processing statistics, including the totals
+     * for each connected client.
+     *
+     * @return A readable report.
+     */
+    public String dumpRequestStats() {
+        return _requestStats.dump(_clients);
+    }
+
     /**
      * Start the thread that listens on the socket.
      * Also start the window manager if one is specified.
@@ -139,15 +179,22 @@ public class XServer {
      * @return True if the thread is started successfully.
      */
     public synchronized boolean start() {
-        if (_acceptThread != null) return true;    // Already running.
+        if (_acceptThread != null || _selectorThread != null) return true;    // Already running.
 
         try {
-            _acceptThread = new AcceptThread(_port);
-            _acceptThread.start();
+            if (_selectorEnabled) {
+                _selectorThread = new SelectorThread(this, _port);
+                _selectorThread.start();
+            } else {
+                _acceptThread = new AcceptThread(_port);
+                _acceptThread.start();
+            }
         } catch (IOException e) {
             return false;
         }
 
+        _screen.startInputDispatcher();
+
         if (_windowManagerClass != null) {
             int idx = _windowManagerClass.lastIndexOf('.');
 
@@ -182,8 +229,20 @@ public class XServer {
             _acceptThread = null;
         }
 
-        _grabClient = null;
-        while (!_clients.isEmpty()) _clients.get(0).cancel();
+        if (_selectorThread != null) {
+            _selectorThread.cancel();
+            _selectorThread = null;
+        }
+
+        _screen.stopInputDispatcher();
+
+        _lock.writeLock().lock();
+        try {
+            _grabClient = null;
+            while (!_clients.isEmpty()) _clients.get(0).cancel();
+        } finally {
+            _lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -192,11 +251,7 @@ public class XServer {
      * close-down mode of Destroy.
      */
     private void reset() {
-        Iterator<Integer> it = _resources.keySet().iterator();
-        while (it.hasNext()) {
-            Integer entry = it.next();
-            if (entry > _clientIdStep) _resources.remove(entry);
-        }
+        _resources.removeSegmentsFrom(_clientIdStep);
 
         _screen.removeNonDefaultColormaps();
 
@@ -225,11 +280,83 @@ public class XServer {
      * @return The internet address the server is listening on.
      */
     public InetAddress getInetAddress() {
+        if (_selectorThread != null) return _selectorThread.getInetAddress();
         if (_acceptThread == null) return null;
 
         return _acceptThread.getInetAddress();
     }
 
+    /**
+     * Enable/disable the selector connection engine.
+     * If enabled, a single thread services all connections using
+     * non-blocking I/O, instead of one thread per client.
+     * Takes effect the next time the server is started.
+     *
+     * @param enabled If true, use the selector engine.
+     */
+    public void setSelectorEnabled(boolean enabled) {
+        _selectorEnabled = enabled;
+    }
+
+    /**
+     * Set the longest time pointer motion can be held back from a client
+     * that is slow to read its events, so it can be merged with later
+     * motion. Motion is otherwise sent once per input frame.
+     *
+     * @param latency The maximum latency, in milliseconds.
+     */
+    public void setMotionLatency(int latency) {
+        _motionLatency = latency;
+    }
+
+    /**
+     * Return the longest time pointer motion can be held back.
+     *
+     * @return The maximum latency, in milliseconds.
+     */
+    public int getMotionLatency() {
+        return _motionLatency;
+    }
+
+    /**
+     * Set the largest size a property can grow to. ChangeProperty
+     * requests that would make a property larger fail with an Alloc error.
+     *
+     * @param size The maximum size, in bytes.
+     */
+    public void setMaxPropertySize(int size) {
+        _maxPropertySize = size;
+    }
+
+    /**
+     * Return the largest size a property can grow to.
+     *
+     * @return The maximum size, in bytes.
+     */
+    public int getMaxPropertySize() {
+        return _maxPropertySize;
+    }
+
+    /**
+     * Create a client for a connection accepted by the selector thread.
+     *
+     * @param socket      The client's socket.
+     * @param inputOutput The client's input/output handle.
+     * @return The new client, or null if the connection isn't allowed.
+     */
+    public Client addSelectorClient(Socket socket, InputOutput inputOutput) {
+        int addr = addressOf(socket.getInetAddress());
+
+        if (addr != 0 && !isAccessAllowed(addr)) return null;
+
+        Client c = new Client(this, socket, inputOutput, _clientIdBase, _clientIdStep - 1);
+
+        _clients.add(c);
+        _clientIdBase += _clientIdStep;
+
+        return c;
+    }
+
     /**
      * Return the number of milliseconds since the last reset.
      *
@@ -472,7 +599,7 @@ public class XServer {
      * @param r The resource to add.
      */
     public void addResource(Resource r) {
-        _resources.put(r.getId(), r);
+        _resources.put(r);
     }
 
     /**
@@ -482,8 +609,6 @@ public class XServer {
      * @return The specified resource, or null if it doesn't exist.
      */
     public Resource getResource(int id) {
-        if (!resourceExists(id)) return null;
-
         return _resources.get(id);
     }
 
@@ -494,7 +619,7 @@ public class XServer {
      * @return True if a resource with the ID exists.
      */
     public boolean resourceExists(int id) {
-        return _resources.containsKey(id);
+        return _resources.get(id) != null;
     }
 
     /**
@@ -512,11 +637,7 @@ public class XServer {
      * @param id The resource ID.
      */
     public int nextFreeResourceId() {
-        int maxKey = 0;  
-        for (int cur : _resources.keySet())
-            if (cur > maxKey)
-                maxKey = cur;  
-        return maxKey++; 
+        return _resources.getMaxId();
     }
 
     /**
@@ -528,18 +649,17 @@ public class XServer {
      * @param client The terminated client, or null.
      */
     public synchronized void destroyClientResources(Client client) {
-        Collection<Resource> rc = _resources.values();
         Vector<Resource> dl = new Vector<Resource>();
 
         if (client == null) {
-            for (Resource r : rc) {
+            for (Resource r : _resources.getAll()) {
                 Client c = r.getClient();
                 boolean disconnected = (c == null || !c.isConnected());
 
                 if (disconnected && r.getCloseDownMode() == Client.RetainTemporary) dl.add(r);
             }
         } else {
-            for (Resource r : rc)
+            for (Resource r : _resources.getSegment(client.getResourceIdBase()))
                 if (r.getClient() == client) dl.add(r);
         }
 
@@ -753,6 +873,22 @@ public class XServer {
         return _accessControlHosts;
     }
 
+    /**
+     * Return the address that access control checks for a peer. This is
+     * the first four bytes of the address, so IPv6 peers are checked too.
+     * Both ways of accepting connections must use this.
+     *
+     * @param ia The peer's address. May be null.
+     * @return The address, MSB format, or zero if unknown.
+     */
+    private static int addressOf(InetAddress ia) {
+        if (ia == null) return 0;
+
+        byte[] ba = ia.getAddress();
+
+        return ((ba[0] & 0xff) << 24) | ((ba[1] & 0xff) << 16) | ((ba[2] & 0xff) << 8) | (ba[3] & 0xff);
+    }
+
     /**
      * Is a client from the specified address allowed to connect?
      *
@@ -917,12 +1053,7 @@ public class XServer {
                 InetSocketAddress isa;
 
                 isa = (InetSocketAddress) socket.getRemoteSocketAddress();
-                if (isa != null) {
-                    InetAddress ia = isa.getAddress();
-                    byte[] ba = ia.getAddress();
-
-                    addr = ((ba[0] & 0xff) << 24) | ((ba[1] & 0xff) << 16) | ((ba[2] & 0xff) << 8) | (ba[3] & 0xff);
-                }
+                if (isa != null) addr = addressOf(isa.getAddress());
 
                 if (addr != 0 && !isAccessAllowed(addr)) {
                     try {
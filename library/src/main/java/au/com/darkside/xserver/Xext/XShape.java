@@ -1,18 +1,22 @@
 package au.com.darkside.xserver.Xext;
 
-import android.graphics.Bitmap;
+import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.Region;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+import au.com.darkside.xserver.BufferPool;
 import au.com.darkside.xserver.Client;
 import au.com.darkside.xserver.Drawable;
 import au.com.darkside.xserver.ErrorCode;
 import au.com.darkside.xserver.InputOutput;
 import au.com.darkside.xserver.Pixmap;
+import au.com.darkside.xserver.Surface;
 import au.com.darkside.xserver.Util;
 import au.com.darkside.xserver.Window;
 import au.com.darkside.xserver.XServer;
@@ -44,6 +48,9 @@ public class XShape {
     private static final byte OpSubtract = 3;
     private static final byte OpInvert = 4;
 
+    private static final int MaxBandPixels = 16384;
+    private static final Map<Pixmap, CachedRegion> _regionCache = new WeakHashMap<Pixmap, CachedRegion>();
+
     /**
      * Process a request relating to the X SHAPE extension.
      *
@@ -429,78 +436,146 @@ public class XShape {
 
     /**
      * Create a region using the non-zero pixels in the pixmap.
+     * The last regions created are cached, and reused while the pixmap
+     * is unchanged.
      *
      * @param p The pixmap.
      * @return A region equivalent to the non-zero pixels.
      */
     private static Region createRegion(Pixmap p) {
         Drawable d = p.getDrawable();
-        Region r = new Region();
+        int version = d.getVersion();
+
+        synchronized (_regionCache) {
+            CachedRegion cr = _regionCache.get(p);
 
-        extractRegion(r, d.getBitmap(), new Rect(0, 0, d.getWidth(), d.getHeight()));
+            if (cr != null && cr.version == version) return new Region(cr.region);
+        }
 
-        return r;
+        Region r = extractRegion(d.getSurface(), d.getWidth(), d.getHeight());
+
+        synchronized (_regionCache) {
+            _regionCache.put(p, new CachedRegion(version, r));
+        }
+
+        return new Region(r);
     }
 
     /**
-     * Recursively break the image contained in the rectangle into
-     * rectangles containing non-zero pixels.
+     * Convert the non-zero pixels of a surface to a region in a single
+     * pass. Each row is reduced to runs of non-zero pixels, and rows with
+     * the same runs are merged into a band. The bands' rectangles are
+     * collected in a path and turned into a region in one operation.
      *
-     * @param region Returned region.
-     * @param bitmap Bitmap where the pixels appear.
-     * @param rect   Rectangle containing the pixels.
+     * @param surface The surface containing the pixels.
+     * @param width   Width of the area to convert.
+     * @param height  Height of the area to convert.
+     * @return A region equivalent to the non-zero pixels.
      */
-    private static void extractRegion(Region region, Bitmap bitmap, Rect rect) {
-        int nzp = checkNonZeroPixels(bitmap, rect);
+    private static Region extractRegion(Surface surface, int width, int height) {
+        Region region = new Region();
+
+        if (width <= 0 || height <= 0) return region;
+
+        int bandRows = Math.max(1, Math.min(height, MaxBandPixels / width));
+        BufferPool pool = BufferPool.get();
+        int[] pixels = pool.getInts(bandRows * width);
+        int[] runs = new int[width + 1];
+        int[] prevRuns = new int[width + 1];
+        int prevCount = 0;
+        int bandTop = 0;
+        Path path = new Path();
+
+        for (int row = 0; row < height; row += bandRows) {
+            int rows = Math.min(bandRows, height - row);
+
+            surface.getPixels(pixels, 0, width, 0, row, width, rows);
+            for (int yi = 0; yi < rows; yi++) {
+                int offset = yi * width;
+                int count = 0;
+                boolean inRun = false;
+
+                for (int x = 0; x < width; x++) {
+                    if ((pixels[offset + x] != 0xff000000) != inRun) {
+                        runs[count++] = x;
+                        inRun = !inRun;
+                    }
+                }
 
-        if (nzp == 1)    // Empty.
-            return;
+                if (inRun) runs[count++] = width;
 
-        int rw = rect.width();
-        int rh = rect.height();
+                if (sameRuns(runs, prevRuns, count, prevCount)) continue;
 
-        if (nzp == 2) {    // All non-zero. We have a rectangle.
-            region.op(rect, Region.Op.UNION);
-            return;
-        }
+                int y = row + yi;
 
-        if (rw > rh) {    // Split the rectangle horizontally.
-            int cx = rect.left + rw / 2;
+                addBand(path, prevRuns, prevCount, bandTop, y);
 
-            extractRegion(region, bitmap, new Rect(rect.left, rect.top, cx, rect.bottom));
-            extractRegion(region, bitmap, new Rect(cx, rect.top, rect.right, rect.bottom));
-        } else {    // Split it vertically.
-            int cy = rect.top + rh / 2;
+                int[] t = prevRuns;
 
-            extractRegion(region, bitmap, new Rect(rect.left, rect.top, rect.right, cy));
-            extractRegion(region, bitmap, new Rect(rect.left, cy, rect.right, rect.bottom));
+                prevRuns = runs;
+                runs = t;
+                prevCount = count;
+                bandTop = y;
+            }
         }
+
+        addBand(path, prevRuns, prevCount, bandTop, height);
+        pool.release(pixels);
+
+        if (!path.isEmpty()) region.setPath(path, new Region(0, 0, width, height));
+
+        return region;
     }
 
     /**
-     * Check the number of non-zero pixels contained in the rectangle.
-     * Return a bit mask indicating whether all the pixels are non-zero,
-     * none of them, or a mix.
+     * Check whether two rows have the same runs of non-zero pixels.
      *
-     * @param bitmap The bitmap containing the pixels.
-     * @param rect   The rectangle.
-     * @return 1 = no pixels set; 2 = all pixels set; 0 = some pixels set
+     * @param a      The first row's runs.
+     * @param b      The second row's runs.
+     * @param acount Number of entries in the first row's runs.
+     * @param bcount Number of entries in the second row's runs.
+     * @return True if the runs are the same.
      */
-    private static int checkNonZeroPixels(Bitmap bitmap, Rect rect) {
-        final int width = rect.width();
-        final int height = rect.height();
-        int[] pixels = new int[width];
-        int mask = 3;
-
-        for (int i = 0; i < height; i++) {
-            bitmap.getPixels(pixels, 0, width, rect.left, rect.top + i, width, 1);
-
-            for (int p : pixels) {
-                mask &= (p != 0xff000000) ? 2 : 1;
-                if (mask == 0) return 0;
-            }
-        }
+    private static boolean sameRuns(int[] a, int[] b, int acount, int bcount) {
+        if (acount != bcount) return false;
+
+        for (int i = 0; i < acount; i++)
+            if (a[i] != b[i]) return false;
+
+        return true;
+    }
 
-        return mask;
+    /**
+     * Add the rectangles of a band of identical rows to a path.
+     *
+     * @param path   The path to add to.
+     * @param runs   Start and end X coordinates of the runs of non-zero pixels.
+     * @param count  Number of entries in the runs array.
+     * @param top    Top of the band.
+     * @param bottom Bottom of the band.
+     */
+    private static void addBand(Path path, int[] runs, int count, int top, int bottom) {
+        for (int i = 0; i < count; i += 2)
+            path.addRect(runs[i], top, runs[i + 1], bottom, Path.Direction.CW);
+    }
+
+    /**
+     * A region extracted from a pixmap, and the pixmap's version at the
+     * time.
+     */
+    private static class CachedRegion {
+        public final int version;
+        public final Region region;
+
+        /**
+         * Constructor.
+         *
+         * @param version The pixmap's version.
+         * @param region  The region.
+         */
+        public CachedRegion(int version, Region region) {
+            this.version = version;
+            this.region = region;
+        }
     }
 }
\ No newline at end of file